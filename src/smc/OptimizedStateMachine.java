@@ -1,7 +1,12 @@
 package smc;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 // This is the final output of the finite state machine parser.
 // Code generators will use this format as their input.
@@ -10,16 +15,53 @@ public class OptimizedStateMachine {
   public List<String> states = new ArrayList<>();
   public List<String> events = new ArrayList<>();
   public List<String> actions = new ArrayList<>();
+  public List<String> decisions = new ArrayList<>();
   public Header header;
   public List<Transition> transitions = new ArrayList<>();
+  public List<Transition> handlers = new ArrayList<>();
+  // The enter_<state> and exit_<state> functions that transitions call, by
+  // name, each with the actions of a state's whole entry or exit chain.
+  public Map<String, List<String>> entryExitFunctions = new TreeMap<>();
 
   public String transitionsToString() {
     String result = "";
     for (Transition t : transitions)
       result += t;
+    for (Transition handler : handlers)
+      result += "super " + handler;
     return result;
   }
 
+  // The actions, with the entry and exit functions replaced by their chains.
+  public List<String> expandedActions(List<String> actions) {
+    List<String> expanded = new ArrayList<>();
+    for (String action : actions)
+      expanded.addAll(entryExitFunctions.getOrDefault(action, Collections.singletonList(action)));
+    return expanded;
+  }
+
+  public Transition handler(String superState) {
+    for (Transition handler : handlers)
+      if (handler.currentState.equals(superState))
+        return handler;
+    return null;
+  }
+
+  // The subtransitions of a state, followed by those of the handler it
+  // delegates to for the events it does not handle itself.
+  public List<SubTransition> subTransitionsOf(Transition t) {
+    List<SubTransition> subTransitions = new ArrayList<>(t.subTransitions);
+    if (t.delegate == null)
+      return subTransitions;
+    Set<String> events = new HashSet<>();
+    for (SubTransition st : t.subTransitions)
+      events.add(st.event);
+    for (SubTransition st : handler(t.delegate).subTransitions)
+      if (!events.contains(st.event))
+        subTransitions.add(st);
+    return subTransitions;
+  }
+
   public String toString() {
     String transitionsString = transitionsToString().replaceAll("\n", "\n  ");
     transitionsString = transitionsString.substring(0, transitionsString.length()-2);
@@ -38,17 +80,44 @@ public class OptimizedStateMachine {
       String result = String.format("%s {\n", currentState);
       for (SubTransition st : subTransitions)
         result += st.toString();
+      if (delegate != null)
+        result += String.format("  * super %s\n", delegate);
       result += "}\n";
       return result;
     }
 
     public String currentState;
     public List<SubTransition> subTransitions = new ArrayList<>();
+    // Every state this one inherits from, directly or not.
+    public List<String> superStates = new ArrayList<>();
+    // The superstate whose handler gets the events this state does not handle.
+    public String delegate;
   }
 
+  // A subtransition that leads to a choice has a decision instead of a next
+  // state: the decision returns the index of the branch to take, and each
+  // branch holds all the actions of the transition that takes it.
   public static class SubTransition {
     public String toString() {
-      return String.format("  %s %s {%s}\n", event, nextState, actionsToString());
+      return String.format("  %s %s\n", event, outcomeToString());
+    }
+
+    private String outcomeToString() {
+      if (decision == null)
+        return String.format("%s {%s}", nextState, actionsToString());
+      String result = "";
+      for (SubTransition branch : branches)
+        result += String.format(" | %s %s", branch.event, branch.outcomeToString());
+      return String.format("?%s [%s]", decision, result.substring(3));
+    }
+
+    public List<String> nextStates() {
+      List<String> nextStates = new ArrayList<>();
+      if (decision == null)
+        nextStates.add(nextState);
+      for (SubTransition branch : branches)
+        nextStates.addAll(branch.nextStates());
+      return nextStates;
     }
 
     private String actionsToString() {
@@ -63,5 +132,7 @@ public class OptimizedStateMachine {
     public String event;
     public String nextState;
     public List<String> actions = new ArrayList<>();
+    public String decision;
+    public List<SubTransition> branches = new ArrayList<>();
   }
 }
@@ -4,6 +4,8 @@ import com.cleancoder.args.Args;
 import com.cleancoder.args.ArgsException;
 import smc.generators.CodeGenerator;
 import smc.lexer.Lexer;
+import smc.optimizer.DelegationOptimizer;
+import smc.optimizer.LocalityOptimizer;
 import smc.optimizer.Optimizer;
 import smc.parser.FsmSyntax;
 import smc.parser.Parser;
@@ -57,7 +59,11 @@ public class SMC {
       int syntaxErrorCount = reportSyntaxErrors(fsm);
 
       if (syntaxErrorCount == 0) {
-        generateCode(optimize(fsm));
+        try {
+          generateCode(optimize(fsm));
+        } catch (LocalityOptimizer.ProfileError e) {
+          System.out.println(e.getMessage());
+        }
       }
     }
 
@@ -96,9 +102,22 @@ public class SMC {
       return syntaxErrorCount;
     }
 
-    private OptimizedStateMachine optimize(FsmSyntax fsm) {
+    private OptimizedStateMachine optimize(FsmSyntax fsm) throws IOException {
       SemanticStateMachine ast = new SemanticAnalyzer().analyze(fsm);
-      return new Optimizer().optimize(ast);
+      OptimizedStateMachine optimizedStateMachine = new Optimizer().optimize(ast, "functions".equals(flags.get("entryexit")));
+      if ("locality".equals(flags.get("order")))
+        new LocalityOptimizer().optimize(optimizedStateMachine, getProfile(optimizedStateMachine));
+      if ("delegate".equals(flags.get("hierarchy")))
+        new DelegationOptimizer().optimize(optimizedStateMachine);
+      return optimizedStateMachine;
+    }
+
+    private Map<String, Long> getProfile(OptimizedStateMachine optimizedStateMachine) throws IOException {
+      if (!flags.containsKey("profile"))
+        return new HashMap<>();
+      String profilePath = flags.get("profile");
+      String profileText = new String(Files.readAllBytes(Paths.get(profilePath)));
+      return LocalityOptimizer.parseProfile(profilePath, profileText, optimizedStateMachine);
     }
 
     private void generateCode(OptimizedStateMachine optimizedStateMachine) throws IOException {
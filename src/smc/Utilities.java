@@ -2,6 +2,7 @@ package smc;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 public class Utilities {
   public static String commaList(List<String> names) {
@@ -36,6 +37,20 @@ public class Utilities {
     return result;
   }
 
+  public static int powerOfTwoAtLeast(int n) {
+    return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+  }
+
+  // The capacity of the run to completion queue asked for by the reentrant
+  // flag: reentrant:queue for the default, or reentrant:<capacity>.  Zero
+  // means events raised by actions are dispatched recursively.
+  public static int reentrantQueueCapacity(Map<String, String> flags) {
+    String reentrant = flags.get("reentrant");
+    if (reentrant == null)
+      return 0;
+    return powerOfTwoAtLeast(reentrant.equals("queue") ? 16 : Integer.parseInt(reentrant));
+  }
+
   public static String compressWhiteSpace(String s) {
     return s.replaceAll("\\n+", "\n").replaceAll("[\t ]+", " ").replaceAll(" *\n *", "\n");
   }
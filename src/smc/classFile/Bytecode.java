@@ -0,0 +1,291 @@
+package smc.classFile;
+
+import java.util.Arrays;
+
+// The instruction buffer of one method.  It only knows the handful of
+// instructions the generated state machines use, and tracks the operand stack
+// depth so that max_stack can be written without a separate analysis pass.
+
+public class Bytecode {
+  private static final int ALOAD = 0x19;
+  private static final int ALOAD_0 = 0x2A;
+  private static final int ILOAD = 0x15;
+  private static final int ILOAD_0 = 0x1A;
+  private static final int ICONST_0 = 0x03;
+  private static final int BIPUSH = 0x10;
+  private static final int SIPUSH = 0x11;
+  private static final int LDC = 0x12;
+  private static final int LDC_W = 0x13;
+  private static final int RETURN = 0xB1;
+  private static final int IRETURN = 0xAC;
+  private static final int ARETURN = 0xB0;
+  private static final int GETFIELD = 0xB4;
+  private static final int PUTFIELD = 0xB5;
+  private static final int INVOKEVIRTUAL = 0xB6;
+  private static final int INVOKESPECIAL = 0xB7;
+  private static final int INVOKESTATIC = 0xB8;
+  private static final int INVOKEINTERFACE = 0xB9;
+  private static final int TABLESWITCH = 0xAA;
+  private static final int NEW = 0xBB;
+  private static final int DUP = 0x59;
+  private static final int ATHROW = 0xBF;
+
+  private final ClassFileWriter classFile;
+  private byte[] code = new byte[256];
+  private int length = 0;
+  private int stack = 0;
+  private int maxStack = 0;
+  private int maxLocals;
+
+  public Bytecode(ClassFileWriter classFile, int maxLocals) {
+    this.classFile = classFile;
+    this.maxLocals = maxLocals;
+  }
+
+  public int getMaxStack() {
+    return maxStack;
+  }
+
+  public int getMaxLocals() {
+    return maxLocals;
+  }
+
+  public int position() {
+    return length;
+  }
+
+  public void aload(int local) {
+    local(ALOAD, ALOAD_0, local);
+    push(1);
+  }
+
+  public void iload(int local) {
+    local(ILOAD, ILOAD_0, local);
+    push(1);
+  }
+
+  private void local(int opcode, int shortOpcode, int local) {
+    if (local <= 3)
+      u1(shortOpcode + local);
+    else {
+      u1(opcode);
+      u1(local);
+    }
+    maxLocals = Math.max(maxLocals, local + 1);
+  }
+
+  public void pushInt(int value) {
+    if (value >= -1 && value <= 5)
+      u1(ICONST_0 + value);
+    else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+      u1(BIPUSH);
+      u1(value);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      u1(SIPUSH);
+      u2(value);
+    } else
+      ldc(classFile.integer(value));
+    if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+      push(1);
+  }
+
+  public void pushString(String s) {
+    ldc(classFile.stringRef(s));
+  }
+
+  private void ldc(int constant) {
+    if (constant <= 0xFF) {
+      u1(LDC);
+      u1(constant);
+    } else {
+      u1(LDC_W);
+      u2(constant);
+    }
+    push(1);
+  }
+
+  public void getField(String owner, String name, String descriptor) {
+    u1(GETFIELD);
+    u2(classFile.fieldRef(owner, name, descriptor));
+  }
+
+  public void putField(String owner, String name, String descriptor) {
+    u1(PUTFIELD);
+    u2(classFile.fieldRef(owner, name, descriptor));
+    pop(2);
+  }
+
+  public void invokeVirtual(String owner, String name, String descriptor) {
+    u1(INVOKEVIRTUAL);
+    u2(classFile.methodRef(owner, name, descriptor));
+    invoked(descriptor, 1);
+  }
+
+  public void invokeSpecial(String owner, String name, String descriptor) {
+    u1(INVOKESPECIAL);
+    u2(classFile.methodRef(owner, name, descriptor));
+    invoked(descriptor, 1);
+  }
+
+  public void invokeStatic(String owner, String name, String descriptor) {
+    u1(INVOKESTATIC);
+    u2(classFile.methodRef(owner, name, descriptor));
+    invoked(descriptor, 0);
+  }
+
+  public void invokeInterface(String owner, String name, String descriptor) {
+    u1(INVOKEINTERFACE);
+    u2(classFile.interfaceMethodRef(owner, name, descriptor));
+    u1(1 + argumentSlots(descriptor));
+    u1(0);
+    invoked(descriptor, 1);
+  }
+
+  private void invoked(String descriptor, int receiver) {
+    pop(receiver + argumentSlots(descriptor));
+    if (!descriptor.endsWith(")V"))
+      push(1);
+  }
+
+  // Only int and reference arguments are ever passed, so every argument takes
+  // a single slot.
+  private static int argumentSlots(String descriptor) {
+    int slots = 0;
+    int i = 1;
+    while (descriptor.charAt(i) != ')') {
+      while (descriptor.charAt(i) == '[')
+        i++;
+      if (descriptor.charAt(i) == 'L')
+        i = descriptor.indexOf(';', i);
+      i++;
+      slots++;
+    }
+    return slots;
+  }
+
+  public void newObject(String internalName) {
+    u1(NEW);
+    u2(classFile.classRef(internalName));
+    push(1);
+  }
+
+  public void dup() {
+    u1(DUP);
+    push(1);
+  }
+
+  public void throwException() {
+    u1(ATHROW);
+    pop(1);
+  }
+
+  public void returnVoid() {
+    u1(RETURN);
+  }
+
+  public void returnInt() {
+    u1(IRETURN);
+    pop(1);
+  }
+
+  public void returnReference() {
+    u1(ARETURN);
+    pop(1);
+  }
+
+  // Writes a tableswitch over the keys low..high (the int on top of the stack)
+  // and returns a handle used to bind each case and the default to a position.
+  public TableSwitch tableSwitch(int low, int high) {
+    int opcodePosition = position();
+    u1(TABLESWITCH);
+    pop(1);
+    while (position() % 4 != 0)
+      u1(0);
+    TableSwitch tableSwitch = new TableSwitch(opcodePosition, position(), low, high);
+    u4(0);
+    u4(low);
+    u4(high);
+    for (int key = low; key <= high; key++)
+      u4(0);
+    return tableSwitch;
+  }
+
+  public class TableSwitch {
+    private final int opcodePosition;
+    private final int defaultOffsetPosition;
+    private final int low;
+    private final int high;
+
+    private TableSwitch(int opcodePosition, int defaultOffsetPosition, int low, int high) {
+      this.opcodePosition = opcodePosition;
+      this.defaultOffsetPosition = defaultOffsetPosition;
+      this.low = low;
+      this.high = high;
+    }
+
+    public void bindCase(int key) {
+      if (key < low || key > high)
+        throw new IllegalArgumentException("case " + key + " is outside " + low + ".." + high);
+      patch(defaultOffsetPosition + 12 + 4 * (key - low), position() - opcodePosition);
+    }
+
+    public void bindDefault() {
+      patch(defaultOffsetPosition, position() - opcodePosition);
+    }
+
+    public void bindUnboundCasesToDefault() {
+      int defaultOffset = readInt(defaultOffsetPosition);
+      for (int key = low; key <= high; key++) {
+        int position = defaultOffsetPosition + 12 + 4 * (key - low);
+        if (readInt(position) == 0)
+          patch(position, defaultOffset);
+      }
+    }
+  }
+
+  private void patch(int position, int value) {
+    code[position] = (byte) (value >> 24);
+    code[position + 1] = (byte) (value >> 16);
+    code[position + 2] = (byte) (value >> 8);
+    code[position + 3] = (byte) value;
+  }
+
+  private int readInt(int position) {
+    return ((code[position] & 0xFF) << 24) | ((code[position + 1] & 0xFF) << 16) |
+      ((code[position + 2] & 0xFF) << 8) | (code[position + 3] & 0xFF);
+  }
+
+  public byte[] toByteArray() {
+    return Arrays.copyOf(code, length);
+  }
+
+  private void push(int slots) {
+    stack += slots;
+    maxStack = Math.max(maxStack, stack);
+  }
+
+  private void pop(int slots) {
+    stack = Math.max(0, stack - slots);
+  }
+
+  // Every case of a switch starts with an empty operand stack.
+  public void emptyStack() {
+    stack = 0;
+  }
+
+  private void u1(int value) {
+    if (length == code.length)
+      code = Arrays.copyOf(code, length * 2);
+    code[length++] = (byte) value;
+  }
+
+  private void u2(int value) {
+    u1(value >> 8);
+    u1(value);
+  }
+
+  private void u4(int value) {
+    u2(value >> 16);
+    u2(value);
+  }
+}
@@ -0,0 +1,224 @@
+package smc.classFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A minimal writer for JVM class files.  It writes version 49 (Java 5)
+// classes, which the verifier checks by type inference, so no StackMapTable
+// frames have to be computed.
+
+public class ClassFileWriter {
+  public static final int ACC_PUBLIC = 0x0001;
+  public static final int ACC_PRIVATE = 0x0002;
+  public static final int ACC_PROTECTED = 0x0004;
+  public static final int ACC_STATIC = 0x0008;
+  public static final int ACC_FINAL = 0x0010;
+  public static final int ACC_SUPER = 0x0020;
+  public static final int ACC_ABSTRACT = 0x0400;
+
+  private static final int MAJOR_VERSION = 49;
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private final ByteArrayOutputStream constantPoolBytes = new ByteArrayOutputStream();
+  private final DataOutputStream constantPool = new DataOutputStream(constantPoolBytes);
+  private final Map<String, Integer> constants = new HashMap<>();
+  private int constantCount = 1;
+
+  private final String className;
+  private final int access;
+  private final int thisClass;
+  private final int superClass;
+  private final List<Integer> interfaces = new ArrayList<>();
+  private final List<Member> fields = new ArrayList<>();
+  private final List<Member> methods = new ArrayList<>();
+
+  public ClassFileWriter(int access, String className, String superName) {
+    this.access = access;
+    this.className = className;
+    thisClass = classRef(className);
+    superClass = classRef(superName);
+  }
+
+  public String getClassName() {
+    return className;
+  }
+
+  public void addInterface(String interfaceName) {
+    interfaces.add(classRef(interfaceName));
+  }
+
+  public void addField(int access, String name, String descriptor) {
+    fields.add(new Member(access, utf8(name), utf8(descriptor), null));
+  }
+
+  public void addAbstractMethod(int access, String name, String descriptor) {
+    methods.add(new Member(access | ACC_ABSTRACT, utf8(name), utf8(descriptor), null));
+  }
+
+  public void addMethod(int access, String name, String descriptor, Bytecode code) {
+    methods.add(new Member(access, utf8(name), utf8(descriptor), code));
+  }
+
+  public int utf8(String s) {
+    return constant("Utf8:" + s, out -> {
+      out.writeByte(CONSTANT_UTF8);
+      out.writeUTF(s);
+    });
+  }
+
+  public int integer(int value) {
+    return constant("Integer:" + value, out -> {
+      out.writeByte(CONSTANT_INTEGER);
+      out.writeInt(value);
+    });
+  }
+
+  public int classRef(String internalName) {
+    int name = utf8(internalName);
+    return constant("Class:" + internalName, out -> {
+      out.writeByte(CONSTANT_CLASS);
+      out.writeShort(name);
+    });
+  }
+
+  public int stringRef(String s) {
+    int string = utf8(s);
+    return constant("String:" + s, out -> {
+      out.writeByte(CONSTANT_STRING);
+      out.writeShort(string);
+    });
+  }
+
+  public int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+  }
+
+  public int methodRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+  }
+
+  public int interfaceMethodRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    int ownerClass = classRef(owner);
+    int nameAndType = nameAndType(name, descriptor);
+    return constant(tag + ":" + owner + "." + name + ":" + descriptor, out -> {
+      out.writeByte(tag);
+      out.writeShort(ownerClass);
+      out.writeShort(nameAndType);
+    });
+  }
+
+  private int nameAndType(String name, String descriptor) {
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    return constant("NameAndType:" + name + ":" + descriptor, out -> {
+      out.writeByte(CONSTANT_NAME_AND_TYPE);
+      out.writeShort(nameIndex);
+      out.writeShort(descriptorIndex);
+    });
+  }
+
+  private int constant(String key, ConstantWriter writer) {
+    Integer index = constants.get(key);
+    if (index != null)
+      return index;
+    if (constantCount >= 0xFFFF)
+      throw new IllegalStateException("Too many constants in class " + className);
+    try {
+      writer.write(constantPool);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    constants.put(key, constantCount);
+    return constantCount++;
+  }
+
+  public byte[] toByteArray() {
+    int codeAttribute = utf8("Code");
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(MAJOR_VERSION);
+      out.writeShort(constantCount);
+      constantPool.flush();
+      constantPoolBytes.writeTo(out);
+      out.writeShort(access);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(interfaces.size());
+      for (int i : interfaces)
+        out.writeShort(i);
+      writeMembers(out, fields, codeAttribute);
+      writeMembers(out, methods, codeAttribute);
+      out.writeShort(0);
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void writeMembers(DataOutputStream out, List<Member> members, int codeAttribute) throws IOException {
+    out.writeShort(members.size());
+    for (Member member : members) {
+      out.writeShort(member.access);
+      out.writeShort(member.name);
+      out.writeShort(member.descriptor);
+      if (member.code == null)
+        out.writeShort(0);
+      else {
+        out.writeShort(1);
+        writeCode(out, member.code, codeAttribute);
+      }
+    }
+  }
+
+  private void writeCode(DataOutputStream out, Bytecode code, int codeAttribute) throws IOException {
+    byte[] instructions = code.toByteArray();
+    if (instructions.length > 0xFFFF)
+      throw new IllegalStateException("Method too large in class " + className);
+    out.writeShort(codeAttribute);
+    out.writeInt(12 + instructions.length);
+    out.writeShort(code.getMaxStack());
+    out.writeShort(code.getMaxLocals());
+    out.writeInt(instructions.length);
+    out.write(instructions);
+    out.writeShort(0);
+    out.writeShort(0);
+  }
+
+  private interface ConstantWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private static class Member {
+    final int access;
+    final int name;
+    final int descriptor;
+    final Bytecode code;
+
+    Member(int access, int name, int descriptor, Bytecode code) {
+      this.access = access;
+      this.name = name;
+      this.descriptor = descriptor;
+      this.code = code;
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package smc.generators;
+
+import smc.OptimizedStateMachine;
+import smc.generators.nestedSwitchCaseGenerator.NSCNodeVisitor;
+import smc.implementers.ClassFileNestedSwitchCaseImplementer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+
+public class ClassFileCodeGenerator extends CodeGenerator {
+  private ClassFileNestedSwitchCaseImplementer implementer;
+
+  public ClassFileCodeGenerator(OptimizedStateMachine optimizedStateMachine,
+                                String outputDirectory,
+                                Map<String, String> flags) {
+    super(optimizedStateMachine, outputDirectory, flags);
+    implementer = new ClassFileNestedSwitchCaseImplementer(flags);
+  }
+
+  protected NSCNodeVisitor getImplementer() {
+    return implementer;
+  }
+
+  public void writeFiles() throws IOException {
+    String outputFileName = optimizedStateMachine.header.fsm + ".class";
+    Files.write(getOutputPath(outputFileName), implementer.getOutput());
+  }
+}
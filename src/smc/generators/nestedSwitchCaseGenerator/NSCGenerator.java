@@ -2,6 +2,11 @@ package smc.generators.nestedSwitchCaseGenerator;
 
 import smc.OptimizedStateMachine;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class NSCGenerator {
   private NSCNode.EnumNode stateEnumNode;
   private NSCNode.EnumNode eventEnumNode;
@@ -9,6 +14,7 @@ public class NSCGenerator {
   private NSCNode.StatePropertyNode statePropertyNode;
   private NSCNode.HandleEventNode handleEventNode;
   private NSCNode.SwitchCaseNode stateSwitch;
+  private Map<String, NSCNode.HandlerNode> handlers;
 
   public NSCNode generate(OptimizedStateMachine sm) {
     eventDelegatorsNode = new NSCNode.EventDelegatorsNode(sm.events);
@@ -16,6 +22,7 @@ public class NSCGenerator {
     stateEnumNode = new NSCNode.EnumNode("State", sm.states);
     eventEnumNode = new NSCNode.EnumNode("Event", sm.events);
     stateSwitch = new NSCNode.SwitchCaseNode("state");
+    addHandlers(sm);
     addStateCases(sm);
     handleEventNode = new NSCNode.HandleEventNode(stateSwitch);
     return makeFsmNode(sm);
@@ -31,10 +38,23 @@ public class NSCGenerator {
     fsm.stateProperty = statePropertyNode;
     fsm.handleEvent = handleEventNode;
     fsm.actions = sm.actions;
+    fsm.decisions = sm.decisions;
     fsm.states = sm.states;
+    fsm.handlers.addAll(handlers.values());
+    fsm.entryExitFunctions.putAll(sm.entryExitFunctions);
     return fsm;
   }
 
+  private void addHandlers(OptimizedStateMachine sm) {
+    handlers = new LinkedHashMap<>();
+    for (OptimizedStateMachine.Transition t : sm.handlers) {
+      NSCNode.HandlerNode handler = new NSCNode.HandlerNode(t.currentState);
+      for (OptimizedStateMachine.SubTransition st : t.subTransitions)
+        addEventCase(handler.eventSwitch, st, t.currentState);
+      handlers.put(t.currentState, handler);
+    }
+  }
+
   private void addStateCases(OptimizedStateMachine sm) {
     for (OptimizedStateMachine.Transition t : sm.transitions)
       addStateCase(stateSwitch, t);
@@ -49,24 +69,38 @@ public class NSCGenerator {
   private void addEventCases(NSCNode.CaseNode stateCaseNode, OptimizedStateMachine.Transition t) {
     NSCNode.SwitchCaseNode eventSwitch = new NSCNode.SwitchCaseNode("event");
     stateCaseNode.caseActionNode = eventSwitch;
-    for (OptimizedStateMachine.SubTransition st : t.subTransitions)
-      addEventCase(eventSwitch, st);
-    eventSwitch.caseNodes.add(new NSCNode.DefaultCaseNode(t.currentState));
+    List<String> ownEvents = new ArrayList<>();
+    for (OptimizedStateMachine.SubTransition st : t.subTransitions) {
+      addEventCase(eventSwitch, st, t.currentState);
+      ownEvents.add(st.event);
+    }
+    if (t.delegate == null)
+      eventSwitch.caseNodes.add(new NSCNode.DefaultCaseNode(t.currentState));
+    else
+      eventSwitch.caseNodes.add(new NSCNode.DelegateNode(handlers.get(t.delegate), t.currentState, ownEvents));
   }
 
-  private void addEventCase(NSCNode.SwitchCaseNode eventSwitch, OptimizedStateMachine.SubTransition st) {
+  private void addEventCase(NSCNode.SwitchCaseNode eventSwitch, OptimizedStateMachine.SubTransition st, String state) {
     NSCNode.CaseNode eventCaseNode = new NSCNode.CaseNode("Event", st.event);
-    addActions(st, eventCaseNode);
+    eventCaseNode.caseActionNode = makeOutcome(st, state);
     eventSwitch.caseNodes.add(eventCaseNode);
   }
 
-  private void addActions(OptimizedStateMachine.SubTransition st, NSCNode.CaseNode eventCaseNode) {
+  private NSCNode makeOutcome(OptimizedStateMachine.SubTransition st, String state) {
+    if (st.decision == null)
+      return makeActions(st);
+    NSCNode.ChoiceNode choice = new NSCNode.ChoiceNode(st.decision, state);
+    for (OptimizedStateMachine.SubTransition branch : st.branches)
+      choice.branches.add(makeOutcome(branch, state));
+    return choice;
+  }
+
+  private NSCNode.CompositeNode makeActions(OptimizedStateMachine.SubTransition st) {
     NSCNode.CompositeNode actions = new NSCNode.CompositeNode();
     addSetStateNode(st.nextState, actions);
     for (String action : st.actions)
       actions.add(new NSCNode.FunctionCallNode(action));
-
-    eventCaseNode.caseActionNode = actions;
+    return actions;
   }
 
   private void addSetStateNode(String stateName, NSCNode.CompositeNode actions) {
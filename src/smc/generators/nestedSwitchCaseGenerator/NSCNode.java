@@ -2,6 +2,8 @@ package smc.generators.nestedSwitchCaseGenerator;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public interface NSCNode {
   public void accept(NSCNodeVisitor visitor);
@@ -118,7 +120,10 @@ public interface NSCNode {
     public String className;
     public String actionsName;
     public List<String> actions;
+    public List<String> decisions;
     public List<String> states;
+    public List<HandlerNode> handlers = new ArrayList<>();
+    public Map<String, List<String>> entryExitFunctions = new TreeMap<>();
 
     public void accept(NSCNodeVisitor visitor) {
       visitor.visit(this);
@@ -162,4 +167,69 @@ public interface NSCNode {
         visitor.visit(this);
       }
     }
+
+  // Switches on the index returned by the decision.  Each branch is either
+  // the actions of a whole transition or another choice; an index with no
+  // branch is an unhandled transition in the given state.
+  public class ChoiceNode implements NSCNode {
+    public String decision;
+    public List<NSCNode> branches = new ArrayList<>();
+    public DefaultCaseNode defaultCase;
+
+    public ChoiceNode(String decision, String state) {
+      this.decision = decision;
+      defaultCase = new DefaultCaseNode(state);
+    }
+
+    public void accept(NSCNodeVisitor visitor) {
+      visitor.visit(this);
+    }
+  }
+
+  // The transitions that the substates of a superstate share, in a function
+  // of their own that tells whether it handled the event.  Its event switch
+  // has no default case: the substate that delegated an event the handler
+  // does not handle reports it as unhandled.
+  public class HandlerNode implements NSCNode {
+    public String superState;
+    public SwitchCaseNode eventSwitch = new SwitchCaseNode("event");
+
+    public HandlerNode(String superState) {
+      this.superState = superState;
+    }
+
+    public void accept(NSCNodeVisitor visitor) {
+      visitor.visit(this);
+    }
+  }
+
+  // The default case of a substate that delegates to a superstate's handler.
+  // The substate's own events are those it handles without the handler.
+  public class DelegateNode implements NSCNode {
+    public HandlerNode handler;
+    public DefaultCaseNode defaultCase;
+    public List<String> ownEvents;
+
+    public DelegateNode(HandlerNode handler, String state, List<String> ownEvents) {
+      this.handler = handler;
+      this.ownEvents = ownEvents;
+      defaultCase = new DefaultCaseNode(state);
+    }
+
+    // The handler's cases that the substate does not override, followed by
+    // the substate's own default case, for the implementers that have to
+    // render the delegation in place.
+    public SwitchCaseNode inlined() {
+      SwitchCaseNode eventSwitch = new SwitchCaseNode("event");
+      for (NSCNode caseNode : handler.eventSwitch.caseNodes)
+        if (!ownEvents.contains(((CaseNode) caseNode).caseName))
+          eventSwitch.caseNodes.add(caseNode);
+      eventSwitch.caseNodes.add(defaultCase);
+      return eventSwitch;
+    }
+
+    public void accept(NSCNodeVisitor visitor) {
+      visitor.visit(this);
+    }
+  }
 }
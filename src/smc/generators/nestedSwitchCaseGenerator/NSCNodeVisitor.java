@@ -11,4 +11,7 @@ public interface NSCNodeVisitor {
   void visit(NSCNode.HandleEventNode handleEventNode);
   void visit(NSCNode.EnumeratorNode enumeratorNode);
   void visit(NSCNode.DefaultCaseNode defaultCaseNode);
+  void visit(NSCNode.ChoiceNode choiceNode);
+  void visit(NSCNode.HandlerNode handlerNode);
+  void visit(NSCNode.DelegateNode delegateNode);
 }
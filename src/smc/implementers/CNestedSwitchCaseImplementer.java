@@ -1,9 +1,11 @@
 package smc.implementers;
 
 import smc.Utilities;
+import smc.generators.nestedSwitchCaseGenerator.NSCNode;
 import smc.generators.nestedSwitchCaseGenerator.NSCNodeVisitor;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -16,9 +18,27 @@ public class CNestedSwitchCaseImplementer implements NSCNodeVisitor {
   private String fsmImplementation = "";
   private List<Error> errors = new ArrayList<>();
   private Map<String, String> flags;
+  private boolean batch;
+  private boolean renderingBatch = false;
+  private boolean histograms;
+  private int recorderSize;
+  private boolean dumpOnUnhandled;
+  private int reentrantQueueCapacity;
+  private boolean delegating;
+  private List<String> states;
+  private List<String> events;
+  private String currentState;
+  private String currentEvent;
 
   public CNestedSwitchCaseImplementer(Map<String, String> flags) {
     this.flags = flags;
+    batch = "true".equals(flags.get("batch"));
+    histograms = Arrays.asList(flags.getOrDefault("metrics", "").split("\\+")).contains("histograms");
+    if (flags.containsKey("recorder"))
+      recorderSize = Utilities.powerOfTwoAtLeast(Integer.parseInt(flags.get("recorder")));
+    dumpOnUnhandled = recorderSize > 0 && "unhandled".equals(flags.get("dump"));
+    reentrantQueueCapacity = Utilities.reentrantQueueCapacity(flags);
+    delegating = !histograms && recorderSize == 0;
   }
 
   public void visit(SwitchCaseNode switchCaseNode) {
@@ -28,18 +48,57 @@ public class CNestedSwitchCaseImplementer implements NSCNodeVisitor {
   }
 
   public void visit(CaseNode caseNode) {
+    if (caseNode.switchName.equals("State"))
+      currentState = caseNode.caseName;
+    else
+      currentEvent = caseNode.caseName;
     fsmImplementation += String.format("case %s:\n", caseNode.caseName);
     caseNode.caseActionNode.accept(this);
+    if (caseNode.switchName.equals("Event") && !(caseNode.caseActionNode instanceof ChoiceNode))
+      addTransitionDone();
     fsmImplementation += "break;\n\n";
   }
 
+  private void addTransitionDone() {
+    if (histograms)
+      fsmImplementation += String.format("transition_done(fsm, %d);\n",
+        states.indexOf(currentState) * events.size() + events.indexOf(currentEvent));
+  }
+
+  public void visit(ChoiceNode choiceNode) {
+    fsmImplementation += String.format("switch (%s(fsm)) {\n", choiceNode.decision);
+    for (int i = 0; i < choiceNode.branches.size(); i++) {
+      NSCNode branch = choiceNode.branches.get(i);
+      fsmImplementation += String.format("case %d:\n", i);
+      branch.accept(this);
+      if (!(branch instanceof ChoiceNode))
+        addTransitionDone();
+      fsmImplementation += "break;\n";
+    }
+    choiceNode.defaultCase.accept(this);
+    fsmImplementation += "}\n";
+  }
+
   public void visit(FunctionCallNode functionCallNode) {
-    fsmImplementation += String.format("%s(fsm", functionCallNode.functionName);
-    if (functionCallNode.argument != null) {
-      fsmImplementation += ", ";
+    if (renderingBatch && functionCallNode.functionName.equals("setState")) {
+      fsmImplementation += "state = ";
       functionCallNode.argument.accept(this);
+      fsmImplementation += ";\n";
+    } else {
+      fsmImplementation += String.format("%s(fsm", functionCallNode.functionName);
+      if (functionCallNode.argument != null) {
+        fsmImplementation += ", ";
+        functionCallNode.argument.accept(this);
+      }
+      fsmImplementation += ");\n";
+    }
+    if (histograms && functionCallNode.functionName.equals("setState"))
+      fsmImplementation += String.format("enter_state(fsm, %s);\n", currentState);
+    if (recorderSize > 0 && functionCallNode.functionName.equals("setState")) {
+      String nextState = ((EnumeratorNode) functionCallNode.argument).enumerator;
+      long entry = (long) states.indexOf(currentState) << 40 | (long) events.indexOf(currentEvent) << 20 | states.indexOf(nextState);
+      fsmImplementation += String.format("record_transition(fsm, %dULL);\n", entry);
     }
-    fsmImplementation += ");\n";
   }
 
   public void visit(EnumNode enumNode) {
@@ -52,6 +111,9 @@ public class CNestedSwitchCaseImplementer implements NSCNodeVisitor {
         String.format("\tstruct %s *fsm = malloc(sizeof(struct %s));\n", fsmName, fsmName) +
         String.format("\tfsm->actions = actions;\n") +
         String.format("\tfsm->state = %s;\n", statePropertyNode.initialState) +
+        (histograms ? "\tfsm->state_entered_at = now_nanos();\n" : "") +
+        (recorderSize > 0 ? "\tfsm->recorder_count = 0;\n" : "") +
+        (reentrantQueueCapacity > 0 ? "\tfsm->dispatching = 0;\n\tfsm->pending_head = 0;\n\tfsm->pending_count = 0;\n" : "") +
         String.format("\treturn fsm;\n") + "}\n\n";
 
     fsmImplementation += String.format("" +
@@ -64,10 +126,16 @@ public class CNestedSwitchCaseImplementer implements NSCNodeVisitor {
     for (String event : eventDelegatorsNode.events) {
       fsmHeader += String.format("void %s_%s(struct %s*);\n", fsmName, event, fsmName);
 
-      fsmImplementation += String.format("" +
-        "void %s_%s(struct %s* fsm) {\n" +
-        "\tprocessEvent(fsm->state, %s, fsm, \"%s\");\n" +
-        "}\n", fsmName, event, fsmName, event, event);
+      if (reentrantQueueCapacity > 0)
+        fsmImplementation += String.format("" +
+          "void %s_%s(struct %s* fsm) {\n" +
+          "\trun_to_completion(fsm, %s, \"%s\");\n" +
+          "}\n", fsmName, event, fsmName, event, event);
+      else
+        fsmImplementation += String.format("" +
+          "void %s_%s(struct %s* fsm) {\n" +
+          "\tprocessEvent(fsm->state, %s, fsm, \"%s\");\n" +
+          "}\n", fsmName, event, fsmName, event, event);
     }
   }
 
@@ -78,8 +146,14 @@ public class CNestedSwitchCaseImplementer implements NSCNodeVisitor {
     }
     actionsName = fsmClassNode.actionsName;
     fsmName = fsmClassNode.className;
+    states = fsmClassNode.stateEnum.enumerators;
+    events = fsmClassNode.eventEnum.enumerators;
 
     fsmImplementation += "#include <stdlib.h>\n";
+    if (histograms)
+      fsmImplementation += "#include <string.h>\n#include <stdatomic.h>\n";
+    if (histograms || recorderSize > 0)
+      fsmImplementation += "#include <time.h>\n";
     fsmImplementation += String.format("#include \"%s.h\"\n", toLowerCamelCase(actionsName));
     fsmImplementation += String.format("#include \"%s.h\"\n\n", toLowerCamelCase(fsmName));
     fsmClassNode.eventEnum.accept(this);
@@ -89,8 +163,28 @@ public class CNestedSwitchCaseImplementer implements NSCNodeVisitor {
       "struct %s {\n" +
       "\tenum State state;\n" +
       "\tstruct %s *actions;\n" +
-      "};\n\n", fsmName, actionsName);
+      "%s%s%s" +
+      "};\n\n", fsmName, actionsName,
+      histograms ? "\tunsigned long long state_entered_at;\n\tunsigned long long transition_started_at;\n" : "",
+      recorderSize > 0 ? String.format("\tunsigned long long recorder[%d];\n\tunsigned long long recorder_count;\n", 2 * recorderSize) : "",
+      reentrantQueueCapacity > 0 ? String.format("\tint dispatching;\n\tenum Event pending[%d];\n\tint pending_head;\n\tint pending_count;\n",
+        reentrantQueueCapacity) : "");
 
+    if (histograms || recorderSize > 0)
+      fsmImplementation += String.format("static char *state_names[] = {%s};\n", quotedList(states));
+    if (histograms || recorderSize > 0 || batch || reentrantQueueCapacity > 0)
+      fsmImplementation += String.format("static char *event_names[] = {%s};\n\n", quotedList(events));
+    if (histograms || recorderSize > 0)
+      fsmImplementation += "" +
+        "static unsigned long long now_nanos(void) {\n" +
+        "\tstruct timespec ts;\n" +
+        "\tclock_gettime(CLOCK_MONOTONIC, &ts);\n" +
+        "\treturn (unsigned long long) ts.tv_sec * 1000000000ULL + ts.tv_nsec;\n" +
+        "}\n\n";
+    if (histograms)
+      addHistograms();
+    if (recorderSize > 0)
+      addFlightRecorder();
     fsmClassNode.stateProperty.accept(this);
 
     for (String action : fsmClassNode.actions) {
@@ -99,17 +193,54 @@ public class CNestedSwitchCaseImplementer implements NSCNodeVisitor {
         "\tfsm->actions->%s();\n" +
         "}\n\n", action, fsmName, action);
     }
+    for (String decision : fsmClassNode.decisions) {
+      fsmImplementation += String.format("" +
+        "static int %s(struct %s *fsm) {\n" +
+        "\treturn fsm->actions->%s();\n" +
+        "}\n\n", decision, fsmName, decision);
+    }
+    addEntryExitFunctions(fsmClassNode.entryExitFunctions);
+    if (delegating)
+      for (HandlerNode handler : fsmClassNode.handlers)
+        handler.accept(this);
     fsmClassNode.handleEvent.accept(this);
+    if (reentrantQueueCapacity > 0)
+      addRunToCompletionQueue();
+    if (batch)
+      addBatchHandler(fsmClassNode);
 
     String includeGuard = fsmName.toUpperCase();
     fsmHeader += String.format("#ifndef %s_H\n#define %s_H\n\n", includeGuard, includeGuard);
+    if (recorderSize > 0)
+      fsmHeader += "#include <stdio.h>\n\n";
     fsmHeader += String.format("struct %s;\n", actionsName);
     fsmHeader += String.format("struct %s;\n", fsmName);
     fsmHeader += String.format("struct %s *make_%s(struct %s*);\n", fsmName, fsmName, actionsName);
+    if (recorderSize > 0)
+      fsmHeader += String.format("void %s_dumpFlightRecorder(struct %s*, FILE *out);\n", fsmName, fsmName);
+    if (histograms) {
+      fsmHeader += String.format("unsigned long long %s_stateDwellPercentile(const char *state, double percentile);\n", fsmName);
+      fsmHeader += String.format("" +
+        "unsigned long long %s_transitionLatencyPercentile(const char *state, const char *event, double percentile);\n", fsmName);
+    }
+    if (batch) {
+      List<String> eventCodes = Utilities.addPrefix(fsmName + "_Event_", fsmClassNode.eventEnum.enumerators);
+      fsmHeader += String.format("enum %s_Event {%s};\n", fsmName, Utilities.commaList(eventCodes));
+      fsmHeader += String.format("void %s_handleEvents(struct %s*, const int *events, int offset, int count);\n", fsmName, fsmName);
+    }
     fsmClassNode.delegators.accept(this);
     fsmHeader += "#endif\n";
   }
 
+  private void addEntryExitFunctions(Map<String, List<String>> entryExitFunctions) {
+    for (Map.Entry<String, List<String>> function : entryExitFunctions.entrySet()) {
+      fsmImplementation += String.format("static void %s(struct %s *fsm) {\n", function.getKey(), fsmName);
+      for (String action : function.getValue())
+        fsmImplementation += String.format("\t%s(fsm);\n", action);
+      fsmImplementation += "}\n\n";
+    }
+  }
+
   public void visit(HandleEventNode handleEventNode) {
     fsmImplementation += String.format("" +
         "static void processEvent(enum State state, enum Event event, struct %s *fsm, char *event_name) {\n",
@@ -118,15 +249,192 @@ public class CNestedSwitchCaseImplementer implements NSCNodeVisitor {
     fsmImplementation += "}\n\n";
   }
 
+  // An event sent while another is being handled, typically by one of its
+  // actions, waits in a ring until the outer call has finished with the
+  // first; the outer call then handles the queued events in order.  The ring
+  // does not grow: an event that finds it full is reported to
+  // unexpected_transition, with "queue full" as the state.
+  private void addRunToCompletionQueue() {
+    fsmImplementation += String.format("" +
+      "#define PENDING_SIZE %d\n\n" +
+      "static void run_to_completion(struct %s *fsm, enum Event event, char *event_name) {\n" +
+      "\tif (fsm->dispatching) {\n" +
+      "\t\tif (fsm->pending_count == PENDING_SIZE)\n" +
+      "\t\t\t(fsm->actions->unexpected_transition)(\"queue full\", event_name);\n" +
+      "\t\telse\n" +
+      "\t\t\tfsm->pending[(fsm->pending_head + fsm->pending_count++) & (PENDING_SIZE - 1)] = event;\n" +
+      "\t\treturn;\n" +
+      "\t}\n" +
+      "\tfsm->dispatching = 1;\n" +
+      "\tprocessEvent(fsm->state, event, fsm, event_name);\n" +
+      "\twhile (fsm->pending_count > 0) {\n" +
+      "\t\tenum Event next = fsm->pending[fsm->pending_head];\n" +
+      "\t\tfsm->pending_head = (fsm->pending_head + 1) & (PENDING_SIZE - 1);\n" +
+      "\t\tfsm->pending_count--;\n" +
+      "\t\tprocessEvent(fsm->state, next, fsm, event_names[next]);\n" +
+      "\t}\n" +
+      "\tfsm->dispatching = 0;\n" +
+      "}\n\n", reentrantQueueCapacity, fsmName);
+  }
+
+  // Log2 histograms shared by all instances: bucket b holds the durations
+  // whose highest set bit is bit b-1.
+  private void addHistograms() {
+    fsmImplementation += String.format("" +
+      "#define BUCKETS 64\n" +
+      "static atomic_ullong state_dwell[%d * BUCKETS];\n" +
+      "static atomic_ullong transition_latency[%d * BUCKETS];\n\n",
+      states.size(), states.size() * events.size());
+
+    fsmImplementation += "" +
+      "static void record(atomic_ullong *histogram, int index, unsigned long long nanos) {\n" +
+      "\tint bucket = 0;\n" +
+      "\twhile (nanos) {\n" +
+      "\t\tbucket++;\n" +
+      "\t\tnanos >>= 1;\n" +
+      "\t}\n" +
+      "\tif (bucket == BUCKETS)\n" +
+      "\t\tbucket--;\n" +
+      "\tatomic_fetch_add_explicit(&histogram[index * BUCKETS + bucket], 1, memory_order_relaxed);\n" +
+      "}\n\n";
+
+    fsmImplementation += String.format("" +
+      "static void enter_state(struct %s *fsm, int previous_state) {\n" +
+      "\tunsigned long long now = now_nanos();\n" +
+      "\trecord(state_dwell, previous_state, now - fsm->state_entered_at);\n" +
+      "\tfsm->state_entered_at = now;\n" +
+      "\tfsm->transition_started_at = now;\n" +
+      "}\n\n" +
+      "static void transition_done(struct %s *fsm, int transition) {\n" +
+      "\trecord(transition_latency, transition, now_nanos() - fsm->transition_started_at);\n" +
+      "}\n\n", fsmName, fsmName);
+
+    fsmImplementation += "" +
+      "static int index_of(char **names, int count, const char *name) {\n" +
+      "\tfor (int i = 0; i < count; i++)\n" +
+      "\t\tif (strcmp(names[i], name) == 0)\n" +
+      "\t\t\treturn i;\n" +
+      "\treturn -1;\n" +
+      "}\n\n" +
+      "static unsigned long long percentile(atomic_ullong *histogram, int index, double percentile) {\n" +
+      "\tunsigned long long total = 0, seen = 0, rank;\n" +
+      "\tdouble exact;\n" +
+      "\tif (index < 0)\n" +
+      "\t\treturn 0;\n" +
+      "\tfor (int b = 0; b < BUCKETS; b++)\n" +
+      "\t\ttotal += atomic_load_explicit(&histogram[index * BUCKETS + b], memory_order_relaxed);\n" +
+      "\texact = percentile / 100 * total;\n" +
+      "\trank = (unsigned long long) exact;\n" +
+      "\tif (rank < exact || rank == 0)\n" +
+      "\t\trank++;\n" +
+      "\tfor (int b = 0; b < BUCKETS; b++) {\n" +
+      "\t\tseen += atomic_load_explicit(&histogram[index * BUCKETS + b], memory_order_relaxed);\n" +
+      "\t\tif (seen >= rank)\n" +
+      "\t\t\treturn b == 0 ? 0 : (1ULL << b) - 1;\n" +
+      "\t}\n" +
+      "\treturn 0;\n" +
+      "}\n\n";
+
+    fsmImplementation += String.format("" +
+      "unsigned long long %s_stateDwellPercentile(const char *state, double p) {\n" +
+      "\treturn percentile(state_dwell, index_of(state_names, %d, state), p);\n" +
+      "}\n\n" +
+      "unsigned long long %s_transitionLatencyPercentile(const char *state, const char *event, double p) {\n" +
+      "\tint s = index_of(state_names, %d, state);\n" +
+      "\tint e = index_of(event_names, %d, event);\n" +
+      "\treturn percentile(transition_latency, s < 0 || e < 0 ? -1 : s * %d + e, p);\n" +
+      "}\n\n",
+      fsmName, states.size(), fsmName, states.size(), events.size(), events.size());
+  }
+
+  // Each entry is two words: a time stamp, and the state, event and next
+  // state packed 20 bits apiece.  The ring belongs to the instance.
+  private void addFlightRecorder() {
+    fsmImplementation += String.format("" +
+      "#define RECORDER_SIZE %d\n" +
+      "#define UNHANDLED 0xFFFFFULL\n\n" +
+      "static void record_transition(struct %s *fsm, unsigned long long entry) {\n" +
+      "\tunsigned long long *slot = &fsm->recorder[(fsm->recorder_count++ & (RECORDER_SIZE - 1)) * 2];\n" +
+      "\tslot[0] = now_nanos();\n" +
+      "\tslot[1] = entry;\n" +
+      "}\n\n" +
+      "void %s_dumpFlightRecorder(struct %s *fsm, FILE *out) {\n" +
+      "\tunsigned long long n = fsm->recorder_count > RECORDER_SIZE ? fsm->recorder_count - RECORDER_SIZE : 0;\n" +
+      "\tfor (; n < fsm->recorder_count; n++) {\n" +
+      "\t\tunsigned long long *slot = &fsm->recorder[(n & (RECORDER_SIZE - 1)) * 2];\n" +
+      "\t\tunsigned long long next = slot[1] & UNHANDLED;\n" +
+      "\t\tfprintf(out, \"%%llu %%s %%s %%s\\n\", slot[0], state_names[slot[1] >> 40], event_names[(slot[1] >> 20) & UNHANDLED],\n" +
+      "\t\t\tnext == UNHANDLED ? \"unhandled\" : state_names[next]);\n" +
+      "\t}\n" +
+      "}\n\n", recorderSize, fsmName, fsmName, fsmName);
+  }
+
+  private static String quotedList(List<String> names) {
+    List<String> quotedNames = new ArrayList<>();
+    for (String name : names)
+      quotedNames.add("\"" + name + "\"");
+    return Utilities.commaList(quotedNames);
+  }
+
+  // The whole batch runs against a local copy of the state, which is written
+  // back once at the end.
+  private void addBatchHandler(FSMClassNode fsmClassNode) {
+    fsmImplementation += String.format("" +
+      "void %s_handleEvents(struct %s *fsm, const int *events, int offset, int count) {\n" +
+      "\tenum State state = fsm->state;\n" +
+      "\tfor (int i = offset; i < offset + count; i++) {\n" +
+      "\t\tenum Event event = events[i];\n", fsmName, fsmName);
+    renderingBatch = true;
+    fsmClassNode.handleEvent.switchCase.accept(this);
+    renderingBatch = false;
+    fsmImplementation += "\t}\n\tfsm->state = state;\n}\n\n";
+  }
+
   public void visit(EnumeratorNode enumeratorNode) {
     fsmImplementation += enumeratorNode.enumerator;
   }
 
   public void visit(DefaultCaseNode defaultCaseNode) {
+    fsmImplementation += "default:\n";
+    addUnhandled(defaultCaseNode);
+  }
+
+  // A superstate's handler returns whether it handled the event.
+  public void visit(HandlerNode handlerNode) {
+    fsmImplementation += String.format("static int %s(struct %s *fsm, enum Event event) {\n",
+      superHandlerName(handlerNode), fsmName);
+    fsmImplementation += "switch (event) {\n";
+    handlerNode.eventSwitch.generateCases(this);
+    fsmImplementation += "default:\nreturn 0;\n}\n";
+    fsmImplementation += "return 1;\n}\n\n";
+  }
+
+  // The instrumentation and the batch's local state need the substate, so
+  // the handler's cases are then rendered in the substate.
+  public void visit(DelegateNode delegateNode) {
+    if (!delegating || renderingBatch) {
+      fsmImplementation += "default:\n";
+      delegateNode.inlined().accept(this);
+      fsmImplementation += "break;\n";
+    } else {
+      fsmImplementation += String.format("default:\nif (%s(fsm, event))\nbreak;\n", superHandlerName(delegateNode.handler));
+      addUnhandled(delegateNode.defaultCase);
+    }
+  }
+
+  private String superHandlerName(HandlerNode handlerNode) {
+    return "super_" + handlerNode.superState;
+  }
+
+  private void addUnhandled(DefaultCaseNode defaultCaseNode) {
+    if (recorderSize > 0)
+      fsmImplementation += String.format("record_transition(fsm, %dULL << 40 | (unsigned long long) event << 20 | UNHANDLED);\n",
+        states.indexOf(defaultCaseNode.state));
+    if (dumpOnUnhandled)
+      fsmImplementation += String.format("%s_dumpFlightRecorder(fsm, stderr);\n", fsmName);
     fsmImplementation += String.format("" +
-      "default:\n" +
-      "(fsm->actions->unexpected_transition)(\"%s\", event_name);\n" +
-      "break;\n", defaultCaseNode.state);
+      "(fsm->actions->unexpected_transition)(\"%s\", %s);\n" +
+      "break;\n", defaultCaseNode.state, renderingBatch ? "event_names[event]" : "event_name");
   }
 
   public String getFsmHeader() {
@@ -0,0 +1,323 @@
+package smc.implementers;
+
+import smc.classFile.Bytecode;
+import smc.classFile.ClassFileWriter;
+import smc.generators.nestedSwitchCaseGenerator.NSCNode;
+import smc.generators.nestedSwitchCaseGenerator.NSCNodeVisitor;
+
+import java.util.List;
+import java.util.Map;
+
+import static smc.classFile.ClassFileWriter.*;
+
+// Writes the nested switch/case tree straight to JVM bytecode.  The class has
+// the same public shape as the one the Java backend writes: an abstract class
+// that implements the actions interface (or declares protected abstract
+// actions), an abstract unhandledTransition(String, String), and one public
+// method per event.  The state is an int field holding the state's index, and
+// both switches are tableswitches over those indices.
+
+public class ClassFileNestedSwitchCaseImplementer implements NSCNodeVisitor {
+  private static final int HUGE_METHOD_LIMIT = 8000;
+  private static final String EVENT_METHOD = "(I)V";
+  private static final String ACTION_METHOD = "()V";
+  private static final String DECISION_METHOD = "()I";
+  private static final String HANDLER_METHOD = "(I)Z";
+  private static final String UNHANDLED_METHOD = "(Ljava/lang/String;Ljava/lang/String;)V";
+  private static final String EVENT_NAME_METHOD = "(I)Ljava/lang/String;";
+
+  private Map<String, String> flags;
+  private String javaPackage;
+  private ClassFileWriter classFile;
+  private String className;
+  private List<String> states;
+  private List<String> events;
+  private Bytecode code;
+  private Bytecode.TableSwitch currentSwitch;
+  private boolean defaultBound;
+  private boolean renderingHandler;
+  private Map<String, List<String>> entryExitFunctions;
+
+  public ClassFileNestedSwitchCaseImplementer(Map<String, String> flags) {
+    this.flags = flags;
+    if (flags.containsKey("package"))
+      javaPackage = flags.get("package");
+  }
+
+  public byte[] getOutput() {
+    return classFile.toByteArray();
+  }
+
+  public String getClassName() {
+    return className;
+  }
+
+  public void visit(NSCNode.FSMClassNode fsmClassNode) {
+    className = internalName(fsmClassNode.className);
+    states = fsmClassNode.stateEnum.enumerators;
+    events = fsmClassNode.eventEnum.enumerators;
+    entryExitFunctions = fsmClassNode.entryExitFunctions;
+    classFile = new ClassFileWriter(ACC_PUBLIC | ACC_SUPER | ACC_ABSTRACT, className, "java/lang/Object");
+    if (fsmClassNode.actionsName != null)
+      classFile.addInterface(internalName(fsmClassNode.actionsName));
+
+    classFile.addField(ACC_PRIVATE, "state", "I");
+    fsmClassNode.stateProperty.accept(this);
+    classFile.addAbstractMethod(ACC_PUBLIC, "unhandledTransition", UNHANDLED_METHOD);
+    fsmClassNode.delegators.accept(this);
+    fsmClassNode.handleEvent.accept(this);
+    for (NSCNode.HandlerNode handler : fsmClassNode.handlers)
+      handler.accept(this);
+    addEntryExitFunctions();
+    addEventNames();
+    if (fsmClassNode.actionsName == null) {
+      for (String action : fsmClassNode.actions)
+        classFile.addAbstractMethod(ACC_PROTECTED, action, ACTION_METHOD);
+      for (String decision : fsmClassNode.decisions)
+        classFile.addAbstractMethod(ACC_PROTECTED, decision, DECISION_METHOD);
+    }
+  }
+
+  private String internalName(String name) {
+    if (javaPackage == null)
+      return name;
+    return javaPackage.replace('.', '/') + "/" + name;
+  }
+
+  // The constructor is protected, as the implicit one of an abstract class is.
+  public void visit(NSCNode.StatePropertyNode statePropertyNode) {
+    Bytecode constructor = new Bytecode(classFile, 1);
+    constructor.aload(0);
+    constructor.invokeSpecial("java/lang/Object", "<init>", ACTION_METHOD);
+    setState(constructor, statePropertyNode.initialState);
+    constructor.returnVoid();
+    classFile.addMethod(ACC_PROTECTED, "<init>", ACTION_METHOD, constructor);
+  }
+
+  public void visit(NSCNode.EventDelegatorsNode eventDelegatorsNode) {
+    for (String event : eventDelegatorsNode.events) {
+      Bytecode delegator = new Bytecode(classFile, 1);
+      delegator.aload(0);
+      delegator.pushInt(events.indexOf(event));
+      delegator.invokeSpecial(className, "handleEvent", EVENT_METHOD);
+      delegator.returnVoid();
+      classFile.addMethod(ACC_PUBLIC, event, ACTION_METHOD, delegator);
+    }
+  }
+
+  public void visit(NSCNode.HandleEventNode handleEventNode) {
+    Bytecode inline = null;
+    if (!"states".equals(flags.get("split"))) {
+      inline = dispatchMethod(handleEventNode.switchCase);
+      if (inline.position() > HUGE_METHOD_LIMIT)
+        inline = null;
+    }
+    if (inline != null)
+      classFile.addMethod(ACC_PRIVATE, "handleEvent", EVENT_METHOD, inline);
+    else
+      splitIntoMethods(handleEventNode.switchCase);
+  }
+
+  private Bytecode dispatchMethod(NSCNode.SwitchCaseNode stateSwitch) {
+    code = new Bytecode(classFile, 2);
+    stateSwitch.accept(this);
+    return code;
+  }
+
+  private void splitIntoMethods(NSCNode.SwitchCaseNode stateSwitch) {
+    Bytecode dispatch = new Bytecode(classFile, 2);
+    dispatch.aload(0);
+    dispatch.getField(className, "state", "I");
+    Bytecode.TableSwitch stateSwitchCode = dispatch.tableSwitch(0, states.size() - 1);
+    for (NSCNode caseNode : stateSwitch.caseNodes) {
+      NSCNode.CaseNode stateCase = (NSCNode.CaseNode) caseNode;
+      stateSwitchCode.bindCase(states.indexOf(stateCase.caseName));
+      dispatch.emptyStack();
+      dispatch.aload(0);
+      dispatch.iload(1);
+      dispatch.invokeSpecial(className, handlerName(stateCase), EVENT_METHOD);
+      dispatch.returnVoid();
+    }
+    stateSwitchCode.bindDefault();
+    dispatch.returnVoid();
+    stateSwitchCode.bindUnboundCasesToDefault();
+    classFile.addMethod(ACC_PRIVATE, "handleEvent", EVENT_METHOD, dispatch);
+
+    for (NSCNode caseNode : stateSwitch.caseNodes) {
+      NSCNode.CaseNode stateCase = (NSCNode.CaseNode) caseNode;
+      code = new Bytecode(classFile, 2);
+      stateCase.caseActionNode.accept(this);
+      classFile.addMethod(ACC_PRIVATE, handlerName(stateCase), EVENT_METHOD, code);
+    }
+  }
+
+  private String handlerName(NSCNode.CaseNode stateCase) {
+    return "handle_" + stateCase.caseName;
+  }
+
+  public void visit(NSCNode.SwitchCaseNode switchCaseNode) {
+    Bytecode.TableSwitch outerSwitch = currentSwitch;
+    boolean outerDefaultBound = defaultBound;
+    if (switchCaseNode.variableName.equals("state")) {
+      code.aload(0);
+      code.getField(className, "state", "I");
+      currentSwitch = code.tableSwitch(0, states.size() - 1);
+    } else {
+      code.iload(1);
+      currentSwitch = code.tableSwitch(0, events.size() - 1);
+    }
+    defaultBound = false;
+    switchCaseNode.generateCases(this);
+    if (!defaultBound) {
+      currentSwitch.bindDefault();
+      code.emptyStack();
+      returnHandled(false);
+    }
+    currentSwitch.bindUnboundCasesToDefault();
+    currentSwitch = outerSwitch;
+    defaultBound = outerDefaultBound;
+  }
+
+  // Every event case ends in a return, so a state case never falls out of its
+  // event switch and needs no return of its own.  Neither does a choice,
+  // every branch of which returns.
+  public void visit(NSCNode.CaseNode caseNode) {
+    boolean stateCase = caseNode.switchName.equals("State");
+    List<String> enumerators = stateCase ? states : events;
+    currentSwitch.bindCase(enumerators.indexOf(caseNode.caseName));
+    code.emptyStack();
+    caseNode.caseActionNode.accept(this);
+    if (!stateCase && !(caseNode.caseActionNode instanceof NSCNode.ChoiceNode))
+      returnHandled(true);
+  }
+
+  // Outside a handler, every case returns void.
+  private void returnHandled(boolean handled) {
+    if (renderingHandler) {
+      code.pushInt(handled ? 1 : 0);
+      code.returnInt();
+    } else
+      code.returnVoid();
+  }
+
+  // A superstate's handler returns whether it handled the event.
+  public void visit(NSCNode.HandlerNode handlerNode) {
+    code = new Bytecode(classFile, 2);
+    renderingHandler = true;
+    handlerNode.eventSwitch.accept(this);
+    renderingHandler = false;
+    classFile.addMethod(ACC_PRIVATE, superHandlerName(handlerNode), HANDLER_METHOD, code);
+  }
+
+  // Bytecode has no conditional branches, so the handler's result is
+  // switched on instead.
+  public void visit(NSCNode.DelegateNode delegateNode) {
+    currentSwitch.bindDefault();
+    defaultBound = true;
+    code.emptyStack();
+    code.aload(0);
+    code.iload(1);
+    code.invokeSpecial(className, superHandlerName(delegateNode.handler), HANDLER_METHOD);
+    Bytecode.TableSwitch outerSwitch = currentSwitch;
+    currentSwitch = code.tableSwitch(1, 1);
+    currentSwitch.bindCase(1);
+    code.emptyStack();
+    code.returnVoid();
+    delegateNode.defaultCase.accept(this);
+    currentSwitch.bindUnboundCasesToDefault();
+    currentSwitch = outerSwitch;
+  }
+
+  private String superHandlerName(NSCNode.HandlerNode handlerNode) {
+    return "super_" + handlerNode.superState;
+  }
+
+  // A tableswitch over the branch index the decision returns.  An index with
+  // no branch goes to the unhandled transition.
+  public void visit(NSCNode.ChoiceNode choiceNode) {
+    Bytecode.TableSwitch outerSwitch = currentSwitch;
+    boolean outerDefaultBound = defaultBound;
+    code.aload(0);
+    code.invokeVirtual(className, choiceNode.decision, DECISION_METHOD);
+    currentSwitch = code.tableSwitch(0, choiceNode.branches.size() - 1);
+    for (int i = 0; i < choiceNode.branches.size(); i++) {
+      NSCNode branch = choiceNode.branches.get(i);
+      currentSwitch.bindCase(i);
+      code.emptyStack();
+      branch.accept(this);
+      if (!(branch instanceof NSCNode.ChoiceNode))
+        code.returnVoid();
+    }
+    choiceNode.defaultCase.accept(this);
+    currentSwitch.bindUnboundCasesToDefault();
+    currentSwitch = outerSwitch;
+    defaultBound = outerDefaultBound;
+  }
+
+  public void visit(NSCNode.FunctionCallNode functionCallNode) {
+    if (functionCallNode.functionName.equals("setState"))
+      setState(code, ((NSCNode.EnumeratorNode) functionCallNode.argument).enumerator);
+    else if (entryExitFunctions.containsKey(functionCallNode.functionName)) {
+      code.aload(0);
+      code.invokeSpecial(className, functionCallNode.functionName, ACTION_METHOD);
+    } else {
+      code.aload(0);
+      code.invokeVirtual(className, functionCallNode.functionName, ACTION_METHOD);
+    }
+  }
+
+  private void addEntryExitFunctions() {
+    for (Map.Entry<String, List<String>> function : entryExitFunctions.entrySet()) {
+      Bytecode body = new Bytecode(classFile, 1);
+      for (String action : function.getValue()) {
+        body.aload(0);
+        body.invokeVirtual(className, action, ACTION_METHOD);
+      }
+      body.returnVoid();
+      classFile.addMethod(ACC_PRIVATE, function.getKey(), ACTION_METHOD, body);
+    }
+  }
+
+  private void setState(Bytecode code, String state) {
+    code.aload(0);
+    code.pushInt(states.indexOf(state));
+    code.putField(className, "state", "I");
+  }
+
+  public void visit(NSCNode.DefaultCaseNode defaultCaseNode) {
+    currentSwitch.bindDefault();
+    defaultBound = true;
+    code.emptyStack();
+    code.aload(0);
+    code.pushString(defaultCaseNode.state);
+    code.iload(1);
+    code.invokeStatic(className, "eventName", EVENT_NAME_METHOD);
+    code.invokeVirtual(className, "unhandledTransition", UNHANDLED_METHOD);
+    code.returnVoid();
+  }
+
+  private void addEventNames() {
+    Bytecode eventName = new Bytecode(classFile, 1);
+    if (!events.isEmpty()) {
+      eventName.iload(0);
+      Bytecode.TableSwitch eventSwitch = eventName.tableSwitch(0, events.size() - 1);
+      for (int i = 0; i < events.size(); i++) {
+        eventSwitch.bindCase(i);
+        eventName.emptyStack();
+        eventName.pushString(events.get(i));
+        eventName.returnReference();
+      }
+      eventSwitch.bindDefault();
+      eventName.emptyStack();
+    }
+    eventName.pushString("");
+    eventName.returnReference();
+    classFile.addMethod(ACC_PRIVATE | ACC_STATIC, "eventName", EVENT_NAME_METHOD, eventName);
+  }
+
+  public void visit(NSCNode.EnumNode enumNode) {
+  }
+
+  public void visit(NSCNode.EnumeratorNode enumeratorNode) {
+  }
+}
@@ -15,9 +15,25 @@ public class CppNestedSwitchCaseImplementer implements NSCNodeVisitor {
   private String output = "";
   private List<Error> errors = new ArrayList<>();
   private Map<String, String> flags;
+  private boolean batch;
+  private boolean renderingBatch = false;
+  private int recorderSize;
+  private boolean dumpOnUnhandled;
+  private int reentrantQueueCapacity;
+  private boolean delegating;
+  private List<String> states;
+  private List<String> events;
+  private String currentState;
+  private String currentEvent;
 
   public CppNestedSwitchCaseImplementer(Map<String, String> flags) {
     this.flags = flags;
+    batch = "true".equals(flags.get("batch"));
+    if (flags.containsKey("recorder"))
+      recorderSize = Utilities.powerOfTwoAtLeast(Integer.parseInt(flags.get("recorder")));
+    dumpOnUnhandled = recorderSize > 0 && "unhandled".equals(flags.get("dump"));
+    reentrantQueueCapacity = Utilities.reentrantQueueCapacity(flags);
+    delegating = recorderSize == 0;
   }
 
   public void visit(SwitchCaseNode switchCaseNode) {
@@ -27,17 +43,32 @@ public class CppNestedSwitchCaseImplementer implements NSCNodeVisitor {
   }
 
   public void visit(CaseNode caseNode) {
+    if (caseNode.switchName.equals("State"))
+      currentState = caseNode.caseName;
+    else
+      currentEvent = caseNode.caseName;
     output += String.format("case %s_%s:\n",caseNode.switchName, caseNode.caseName);
     caseNode.caseActionNode.accept(this);
     output += "break;\n\n";
   }
 
   public void visit(FunctionCallNode functionCallNode) {
-    output += String.format("%s(", functionCallNode.functionName);
-    if (functionCallNode.argument != null) {
+    if (renderingBatch && functionCallNode.functionName.equals("setState")) {
+      output += "state = ";
       functionCallNode.argument.accept(this);
+      output += ";\n";
+    } else {
+      output += String.format("%s(", functionCallNode.functionName);
+      if (functionCallNode.argument != null) {
+        functionCallNode.argument.accept(this);
+      }
+      output += ");\n";
+    }
+    if (recorderSize > 0 && functionCallNode.functionName.equals("setState")) {
+      String nextState = ((EnumeratorNode) functionCallNode.argument).enumerator;
+      long entry = (long) states.indexOf(currentState) << 40 | (long) events.indexOf(currentEvent) << 20 | states.indexOf(nextState);
+      output += String.format("recordTransition(%dULL);\n", entry);
     }
-    output += ");\n";
   }
 
   public void visit(EnumNode enumNode) {
@@ -53,7 +84,8 @@ public class CppNestedSwitchCaseImplementer implements NSCNodeVisitor {
 
   public void visit(EventDelegatorsNode eventDelegatorsNode) {
     for (String event : eventDelegatorsNode.events) {
-      output += String.format("\tvoid %s() {processEvent(Event_%s, \"%s\");}\n", event, event, event);
+      output += String.format("\tvoid %s() {%s(Event_%s, \"%s\");}\n",
+        event, reentrantQueueCapacity > 0 ? "runToCompletion" : "processEvent", event, event);
     }
   }
 
@@ -64,8 +96,12 @@ public class CppNestedSwitchCaseImplementer implements NSCNodeVisitor {
     }
 
     fsmName = fsmClassNode.className;
+    states = fsmClassNode.stateEnum.enumerators;
+    events = fsmClassNode.eventEnum.enumerators;
     String includeGuard = fsmName.toUpperCase();
     output += String.format("#ifndef %s_H\n#define %s_H\n\n", includeGuard, includeGuard);
+    if (recorderSize > 0)
+      output += String.format("#include <chrono>\n#include <%s>\n", dumpOnUnhandled ? "iostream" : "ostream");
 
     actionsName = fsmClassNode.actionsName;
     output += String.format("#include \"%s.h\"\n", actionsName);
@@ -78,17 +114,125 @@ public class CppNestedSwitchCaseImplementer implements NSCNodeVisitor {
     output += ")\n\t{}\n\n";
 
     fsmClassNode.delegators.accept(this);
+    if (batch)
+      addBatchHandler(fsmClassNode);
+    if (recorderSize > 0)
+      addFlightRecorderDump();
     output += "\nprivate:\n";
+    if (recorderSize > 0)
+      addFlightRecorder();
     fsmClassNode.stateEnum.accept(this);
     output += "\tState state;\n";
     output += "\tvoid setState(State s) {state=s;}\n";
+    addEntryExitFunctions(fsmClassNode.entryExitFunctions);
     fsmClassNode.eventEnum.accept(this);
     fsmClassNode.handleEvent.accept(this);
+    if (delegating)
+      for (HandlerNode handler : fsmClassNode.handlers)
+        handler.accept(this);
+    if (reentrantQueueCapacity > 0)
+      addRunToCompletionQueue();
 
     output += "};\n\n";
     output += "#endif\n";
   }
 
+  // The whole batch runs against a local copy of the state, which is written
+  // back once at the end.
+  private void addBatchHandler(FSMClassNode fsmClassNode) {
+    output += String.format("\tenum EventCode {%s};\n",
+      Utilities.commaList(Utilities.addPrefix("EventCode_", fsmClassNode.eventEnum.enumerators)));
+    output += "\tvoid handleEvents(const int *events, int offset, int count) {\n";
+    output += String.format("\t\tstatic const char* const eventNames[] = {%s};\n", quotedList(events));
+    output += "\t\tState state = this->state;\n";
+    output += "\t\tfor (int i = offset; i < offset + count; i++) {\n";
+    output += "\t\t\tEvent event = static_cast<Event>(events[i]);\n";
+    renderingBatch = true;
+    fsmClassNode.handleEvent.switchCase.accept(this);
+    renderingBatch = false;
+    output += "\t\t}\n\t\tthis->state = state;\n\t}\n";
+  }
+
+  // An event sent while another is being handled, typically by one of its
+  // actions, waits in a ring until the outer call has finished with the
+  // first; the outer call then handles the queued events in order.  The ring
+  // does not grow: an event that finds it full is reported to
+  // unexpected_transition, with "queue full" as the state.
+  private void addRunToCompletionQueue() {
+    output += "\tbool dispatching = false;\n";
+    output += String.format("\tEvent pending[%d];\n", reentrantQueueCapacity);
+    output += "\tint pendingHead = 0;\n";
+    output += "\tint pendingCount = 0;\n\n";
+    output += "\tvoid runToCompletion(Event event, const char* eventName) {\n";
+    output += String.format("\t\tstatic const char* const eventNames[] = {%s};\n", quotedList(events));
+    output += "\t\tif (dispatching) {\n";
+    output += String.format("\t\t\tif (pendingCount == %d)\n", reentrantQueueCapacity);
+    output += "\t\t\t\tunexpected_transition(\"queue full\", eventName);\n";
+    output += "\t\t\telse\n";
+    output += String.format("\t\t\t\tpending[(pendingHead + pendingCount++) & %d] = event;\n", reentrantQueueCapacity - 1);
+    output += "\t\t\treturn;\n";
+    output += "\t\t}\n";
+    output += "\t\tdispatching = true;\n";
+    output += "\t\ttry {\n";
+    output += "\t\t\tprocessEvent(event, eventName);\n";
+    output += "\t\t\twhile (pendingCount > 0) {\n";
+    output += "\t\t\t\tEvent next = pending[pendingHead];\n";
+    output += String.format("\t\t\t\tpendingHead = (pendingHead + 1) & %d;\n", reentrantQueueCapacity - 1);
+    output += "\t\t\t\tpendingCount--;\n";
+    output += "\t\t\t\tprocessEvent(next, eventNames[next]);\n";
+    output += "\t\t\t}\n";
+    output += "\t\t} catch (...) {\n";
+    output += "\t\t\tdispatching = false;\n";
+    output += "\t\t\tpendingCount = 0;\n";
+    output += "\t\t\tthrow;\n";
+    output += "\t\t}\n";
+    output += "\t\tdispatching = false;\n";
+    output += "\t}\n";
+  }
+
+  // Each entry is two words: a time stamp, and the state, event and next
+  // state packed 20 bits apiece.  The ring belongs to the instance.
+  private void addFlightRecorder() {
+    output += String.format("\tunsigned long long recorder[%d] = {};\n", 2 * recorderSize);
+    output += "\tunsigned long long recorderCount = 0;\n";
+    output += "\tvoid recordTransition(unsigned long long entry) {\n";
+    output += String.format("\t\tunsigned long long *slot = &recorder[(recorderCount++ & %d) * 2];\n", recorderSize - 1);
+    output += "\t\tslot[0] = std::chrono::duration_cast<std::chrono::nanoseconds>(\n";
+    output += "\t\t\tstd::chrono::steady_clock::now().time_since_epoch()).count();\n";
+    output += "\t\tslot[1] = entry;\n";
+    output += "\t}\n";
+  }
+
+  private void addFlightRecorderDump() {
+    output += "\tvoid dumpFlightRecorder(std::ostream &out) const {\n";
+    output += String.format("\t\tstatic const char* const stateNames[] = {%s};\n", quotedList(states));
+    output += String.format("\t\tstatic const char* const eventNames[] = {%s};\n", quotedList(events));
+    output += String.format("\t\tunsigned long long n = recorderCount > %d ? recorderCount - %d : 0;\n", recorderSize, recorderSize);
+    output += "\t\tfor (; n < recorderCount; n++) {\n";
+    output += String.format("\t\t\tconst unsigned long long *slot = &recorder[(n & %d) * 2];\n", recorderSize - 1);
+    output += "\t\t\tunsigned long long next = slot[1] & 0xFFFFF;\n";
+    output += "\t\t\tout << slot[0] << ' ' << stateNames[slot[1] >> 40] << ' ' << eventNames[(slot[1] >> 20) & 0xFFFFF] << ' '\n";
+    output += "\t\t\t\t<< (next == 0xFFFFF ? \"unhandled\" : stateNames[next]) << '\\n';\n";
+    output += "\t\t}\n";
+    output += "\t}\n";
+  }
+
+  private static String quotedList(List<String> names) {
+    List<String> quotedNames = new ArrayList<>();
+    for (String name : names)
+      quotedNames.add("\"" + name + "\"");
+    return Utilities.commaList(quotedNames);
+  }
+
+  private void addEntryExitFunctions(Map<String, List<String>> entryExitFunctions) {
+    for (Map.Entry<String, List<String>> function : entryExitFunctions.entrySet()) {
+      output += String.format("\tvoid %s() {", function.getKey());
+      for (String action : function.getValue())
+        output += String.format("%s();", action);
+      output += "}\n";
+    }
+  }
+
   public void visit(HandleEventNode handleEventNode) {
     output += "\tvoid processEvent(Event event, const char* eventName) {\n";
     handleEventNode.switchCase.accept(this);
@@ -99,11 +243,57 @@ public class CppNestedSwitchCaseImplementer implements NSCNodeVisitor {
     output += enumeratorNode.enumeration + "_" + enumeratorNode.enumerator;
   }
 
+  public void visit(ChoiceNode choiceNode) {
+    output += String.format("switch (%s()) {\n", choiceNode.decision);
+    for (int i = 0; i < choiceNode.branches.size(); i++) {
+      output += String.format("case %d:\n", i);
+      choiceNode.branches.get(i).accept(this);
+      output += "break;\n";
+    }
+    choiceNode.defaultCase.accept(this);
+    output += "}\n";
+  }
+
   public void visit(DefaultCaseNode defaultCaseNode) {
+    output += "default:\n";
+    addUnhandled(defaultCaseNode);
+  }
+
+  // A superstate's handler returns whether it handled the event.
+  public void visit(HandlerNode handlerNode) {
+    output += String.format("\tbool %s(Event event) {\n", superHandlerName(handlerNode));
+    output += "switch (event) {\n";
+    handlerNode.eventSwitch.generateCases(this);
+    output += "default:\nreturn false;\n}\n";
+    output += "return true;\n}\n\n";
+  }
+
+  // The flight recorder and the batch's local state need the substate, so
+  // the handler's cases are then rendered in the substate.
+  public void visit(DelegateNode delegateNode) {
+    if (!delegating || renderingBatch) {
+      output += "default:\n";
+      delegateNode.inlined().accept(this);
+      output += "break;\n";
+    } else {
+      output += String.format("default:\nif (%s(event))\nbreak;\n", superHandlerName(delegateNode.handler));
+      addUnhandled(delegateNode.defaultCase);
+    }
+  }
+
+  private String superHandlerName(HandlerNode handlerNode) {
+    return "super_" + handlerNode.superState;
+  }
+
+  private void addUnhandled(DefaultCaseNode defaultCaseNode) {
+    if (recorderSize > 0)
+      output += String.format("recordTransition(%dULL << 40 | (unsigned long long) event << 20 | 0xFFFFF);\n",
+        states.indexOf(defaultCaseNode.state));
+    if (dumpOnUnhandled)
+      output += "dumpFlightRecorder(std::cerr);\n";
     output += String.format("" +
-      "default:\n" +
-      "unexpected_transition(\"%s\", eventName);\n" +
-      "break;\n", defaultCaseNode.state);
+      "unexpected_transition(\"%s\", %s);\n" +
+      "break;\n", defaultCaseNode.state, renderingBatch ? "eventNames[event]" : "eventName");
   }
 
   public String getOutput() {
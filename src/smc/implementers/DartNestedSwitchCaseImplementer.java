@@ -15,9 +15,22 @@ public class DartNestedSwitchCaseImplementer implements NSCNodeVisitor {
   private String output = "";
   private List<Error> errors = new ArrayList<>();
   private Map<String, String> flags;
+  private int recorderSize;
+  private boolean dumpOnUnhandled;
+  private int reentrantQueueCapacity;
+  private boolean delegating;
+  private List<String> states;
+  private List<String> events;
+  private String currentState;
+  private String currentEvent;
 
   public DartNestedSwitchCaseImplementer(Map<String, String> flags) {
     this.flags = flags;
+    if (flags.containsKey("recorder"))
+      recorderSize = Utilities.powerOfTwoAtLeast(Integer.parseInt(flags.get("recorder")));
+    dumpOnUnhandled = recorderSize > 0 && "unhandled".equals(flags.get("dump"));
+    reentrantQueueCapacity = Utilities.reentrantQueueCapacity(flags);
+    delegating = recorderSize == 0;
   }
 
   public void visit(SwitchCaseNode switchCaseNode) {
@@ -27,6 +40,10 @@ public class DartNestedSwitchCaseImplementer implements NSCNodeVisitor {
   }
 
   public void visit(CaseNode caseNode) {
+    if (caseNode.switchName.equals("State"))
+      currentState = caseNode.caseName;
+    else
+      currentEvent = caseNode.caseName;
     output += String.format("case %s.%s:\n",caseNode.switchName, caseNode.caseName);
     caseNode.caseActionNode.accept(this);
     output += "break;\n\n";
@@ -38,6 +55,11 @@ public class DartNestedSwitchCaseImplementer implements NSCNodeVisitor {
       functionCallNode.argument.accept(this);
     }
     output += ");\n";
+    if (recorderSize > 0 && functionCallNode.functionName.equals("setState")) {
+      String nextState = ((EnumeratorNode) functionCallNode.argument).enumerator;
+      long entry = (long) states.indexOf(currentState) << 40 | (long) events.indexOf(currentEvent) << 20 | states.indexOf(nextState);
+      output += String.format("_recordTransition(%d);\n", entry);
+    }
   }
 
   public void visit(EnumNode enumNode) {
@@ -53,7 +75,8 @@ public class DartNestedSwitchCaseImplementer implements NSCNodeVisitor {
 
   public void visit(EventDelegatorsNode eventDelegatorsNode) {
     for (String event : eventDelegatorsNode.events) {
-      output += String.format("\t%s() {_processEvent(Event.%s, \"%s\");}\n", event, event, event);
+      output += String.format("\t%s() {%s(Event.%s, \"%s\");}\n",
+        event, reentrantQueueCapacity > 0 ? "_runToCompletion" : "_processEvent", event, event);
     }
   }
 
@@ -65,6 +88,8 @@ public class DartNestedSwitchCaseImplementer implements NSCNodeVisitor {
 
     fsmName = fsmClassNode.className;
     actionsName = fsmClassNode.actionsName;
+    states = fsmClassNode.stateEnum.enumerators;
+    events = fsmClassNode.eventEnum.enumerators;
 
     output += "import 'package:meta/meta.dart';\n\n";
     output += String.format("import '%s.dart';\n", actionsName);
@@ -81,11 +106,103 @@ public class DartNestedSwitchCaseImplementer implements NSCNodeVisitor {
 
     fsmClassNode.delegators.accept(this);
     output += "\n\tsetState(State s) {state=s;}\n\n";
+    addEntryExitFunctions(fsmClassNode.entryExitFunctions);
+    if (recorderSize > 0)
+      addFlightRecorder();
 
     fsmClassNode.handleEvent.accept(this);
+    if (delegating)
+      for (HandlerNode handler : fsmClassNode.handlers)
+        handler.accept(this);
+    if (reentrantQueueCapacity > 0)
+      addRunToCompletionQueue();
     output += "}\n";
   }
 
+  // An event sent while another is being handled, typically by one of its
+  // actions, waits in a ring until the outer call has finished with the
+  // first; the outer call then handles the queued events in order.  The ring
+  // only grows, by doubling, when an action queues more events than it holds.
+  private void addRunToCompletionQueue() {
+    output += String.format("\tstatic const _eventNames = [%s];\n", quotedList(events));
+    output += "\tbool _dispatching = false;\n";
+    output += String.format("\tList<int> _pending = List<int>.filled(%d, 0);\n", reentrantQueueCapacity);
+    output += "\tint _pendingHead = 0;\n";
+    output += "\tint _pendingCount = 0;\n\n";
+    output += "\t_runToCompletion(final Event event, final String eventName) {\n";
+    output += "\t\tif (_dispatching) {\n";
+    output += "\t\t\tif (_pendingCount == _pending.length) {\n";
+    output += "\t\t\t\tfinal grown = List<int>.filled(2 * _pending.length, 0);\n";
+    output += "\t\t\t\tfor (var i = 0; i < _pendingCount; i++)\n";
+    output += "\t\t\t\t\tgrown[i] = _pending[(_pendingHead + i) & (_pending.length - 1)];\n";
+    output += "\t\t\t\t_pending = grown;\n";
+    output += "\t\t\t\t_pendingHead = 0;\n";
+    output += "\t\t\t}\n";
+    output += "\t\t\t_pending[(_pendingHead + _pendingCount++) & (_pending.length - 1)] = event.index;\n";
+    output += "\t\t\treturn;\n";
+    output += "\t\t}\n";
+    output += "\t\t_dispatching = true;\n";
+    output += "\t\ttry {\n";
+    output += "\t\t\t_processEvent(event, eventName);\n";
+    output += "\t\t\twhile (_pendingCount > 0) {\n";
+    output += "\t\t\t\tfinal next = _pending[_pendingHead];\n";
+    output += "\t\t\t\t_pendingHead = (_pendingHead + 1) & (_pending.length - 1);\n";
+    output += "\t\t\t\t_pendingCount--;\n";
+    output += "\t\t\t\t_processEvent(Event.values[next], _eventNames[next]);\n";
+    output += "\t\t\t}\n";
+    output += "\t\t} finally {\n";
+    output += "\t\t\t_dispatching = false;\n";
+    output += "\t\t\t_pendingCount = 0;\n";
+    output += "\t\t}\n";
+    output += "\t}\n\n";
+  }
+
+  // Each entry is two ints: a time stamp in microseconds, and the state,
+  // event and next state packed 20 bits apiece.  The ring belongs to the
+  // instance.
+  private void addFlightRecorder() {
+    output += "\tstatic final Stopwatch _clock = Stopwatch()..start();\n";
+    output += String.format("\tfinal List<int> _recorder = List<int>.filled(%d, 0);\n", 2 * recorderSize);
+    output += "\tint _recorderCount = 0;\n\n";
+    output += "\t_recordTransition(int entry) {\n";
+    output += String.format("\t\tfinal slot = (_recorderCount++ & %d) * 2;\n", recorderSize - 1);
+    output += "\t\t_recorder[slot] = _clock.elapsedMicroseconds;\n";
+    output += "\t\t_recorder[slot + 1] = entry;\n";
+    output += "\t}\n\n";
+    output += "\tString dumpFlightRecorder() {\n";
+    output += String.format("\t\tconst stateNames = [%s];\n", quotedList(states));
+    output += String.format("\t\tconst eventNames = [%s];\n", quotedList(events));
+    output += "\t\tfinal dump = StringBuffer();\n";
+    output += String.format("\t\tfor (var n = _recorderCount > %d ? _recorderCount - %d : 0; n < _recorderCount; n++) {\n",
+      recorderSize, recorderSize);
+    output += String.format("\t\t\tfinal slot = (n & %d) * 2;\n", recorderSize - 1);
+    output += "\t\t\tfinal entry = _recorder[slot + 1];\n";
+    output += "\t\t\tfinal next = entry & 0xFFFFF;\n";
+    output += "\t\t\tdump.write('${_recorder[slot]} ${stateNames[entry >> 40]} ${eventNames[(entry >> 20) & 0xFFFFF]} ');\n";
+    output += "\t\t\tdump.write(next == 0xFFFFF ? 'unhandled\\n' : '${stateNames[next]}\\n');\n";
+    output += "\t\t}\n";
+    output += "\t\treturn dump.toString();\n";
+    output += "\t}\n\n";
+  }
+
+  private static String quotedList(List<String> names) {
+    List<String> quotedNames = new ArrayList<>();
+    for (String name : names)
+      quotedNames.add("'" + name + "'");
+    return Utilities.commaList(quotedNames);
+  }
+
+  private void addEntryExitFunctions(Map<String, List<String>> entryExitFunctions) {
+    for (Map.Entry<String, List<String>> function : entryExitFunctions.entrySet()) {
+      output += String.format("\t%s() {", function.getKey());
+      for (String action : function.getValue())
+        output += String.format("%s();", action);
+      output += "}\n";
+    }
+    if (!entryExitFunctions.isEmpty())
+      output += "\n";
+  }
+
   public void visit(HandleEventNode handleEventNode) {
     output += "\t_processEvent(final Event event, final String eventName) {\n";
     handleEventNode.switchCase.accept(this);
@@ -96,9 +213,54 @@ public class DartNestedSwitchCaseImplementer implements NSCNodeVisitor {
     output += enumeratorNode.enumeration + "." + enumeratorNode.enumerator;
   }
 
+  public void visit(ChoiceNode choiceNode) {
+    output += String.format("switch (%s()) {\n", choiceNode.decision);
+    for (int i = 0; i < choiceNode.branches.size(); i++) {
+      output += String.format("case %d:\n", i);
+      choiceNode.branches.get(i).accept(this);
+      output += "break;\n";
+    }
+    choiceNode.defaultCase.accept(this);
+    output += "}\n";
+  }
+
   public void visit(DefaultCaseNode defaultCaseNode) {
+    output += "default:\n";
+    addUnhandled(defaultCaseNode);
+  }
+
+  // A superstate's handler returns whether it handled the event.
+  public void visit(HandlerNode handlerNode) {
+    output += String.format("\tbool %s(final Event event) {\n", superHandlerName(handlerNode));
+    output += "switch (event) {\n";
+    handlerNode.eventSwitch.generateCases(this);
+    output += "default:\nreturn false;\n}\n";
+    output += "return true;\n}\n\n";
+  }
+
+  // The flight recorder needs the substate, so the handler's cases are then
+  // rendered in the substate.
+  public void visit(DelegateNode delegateNode) {
+    if (!delegating) {
+      output += "default:\n";
+      delegateNode.inlined().accept(this);
+      output += "break;\n";
+    } else {
+      output += String.format("default:\nif (%s(event))\nbreak;\n", superHandlerName(delegateNode.handler));
+      addUnhandled(delegateNode.defaultCase);
+    }
+  }
+
+  private String superHandlerName(HandlerNode handlerNode) {
+    return "_super_" + handlerNode.superState;
+  }
+
+  private void addUnhandled(DefaultCaseNode defaultCaseNode) {
+    if (recorderSize > 0)
+      output += String.format("_recordTransition(%d << 40 | event.index << 20 | 0xFFFFF);\n", states.indexOf(defaultCaseNode.state));
+    if (dumpOnUnhandled)
+      output += "print(dumpFlightRecorder());\n";
     output += String.format("" +
-      "default:\n" +
       "unexpected_transition(\"%s\", eventName);\n" +
       "break;\n", defaultCaseNode.state);
   }
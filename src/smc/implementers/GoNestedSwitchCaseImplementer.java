@@ -6,6 +6,7 @@ import smc.generators.nestedSwitchCaseGenerator.NSCNodeVisitor;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import static smc.generators.nestedSwitchCaseGenerator.NSCNode.*;
 
@@ -14,12 +15,30 @@ public class GoNestedSwitchCaseImplementer implements NSCNodeVisitor {
   private String actionsName;
   private String output = "";
   private List<String> actions = new ArrayList<>();
+  private List<String> decisions = new ArrayList<>();
   private List<Error> errors = new ArrayList<>();
   private List<String> states = new ArrayList<>();
   private Map<String, String> flags;
+  private boolean batch;
+  private boolean renderingBatch = false;
+  private int recorderSize;
+  private boolean dumpOnUnhandled;
+  private int reentrantQueueCapacity;
+  private boolean delegating;
+  private List<HandlerNode> handlers = new ArrayList<>();
+  private Map<String, List<String>> entryExitFunctions = new TreeMap<>();
+  private List<String> events = new ArrayList<>();
+  private String currentState;
+  private String currentEvent;
 
   public GoNestedSwitchCaseImplementer(Map<String, String> flags) {
     this.flags = flags;
+    batch = "true".equals(flags.get("batch"));
+    if (flags.containsKey("recorder"))
+      recorderSize = Utilities.powerOfTwoAtLeast(Integer.parseInt(flags.get("recorder")));
+    dumpOnUnhandled = recorderSize > 0 && "unhandled".equals(flags.get("dump"));
+    reentrantQueueCapacity = Utilities.reentrantQueueCapacity(flags);
+    delegating = recorderSize == 0;
   }
 
   public void visit(SwitchCaseNode switchCaseNode) {
@@ -29,17 +48,32 @@ public class GoNestedSwitchCaseImplementer implements NSCNodeVisitor {
   }
 
   public void visit(CaseNode caseNode) {
+    if (caseNode.switchName.equals("State"))
+      currentState = caseNode.caseName;
+    else
+      currentEvent = caseNode.caseName;
     output += String.format("\tcase %s%s:\n", caseNode.switchName.toLowerCase(), caseNode.caseName);
     caseNode.caseActionNode.accept(this);
     output += "\n\n";
   }
 
   public void visit(FunctionCallNode functionCallNode) {
-    output += String.format("%s(", functionCallNode.functionName);
-    if (functionCallNode.argument != null) {
+    if (renderingBatch && functionCallNode.functionName.equals("setState")) {
+      output += "state = ";
       functionCallNode.argument.accept(this);
+      output += "\n";
+    } else {
+      output += String.format("%s(", functionCallNode.functionName);
+      if (functionCallNode.argument != null) {
+        functionCallNode.argument.accept(this);
+      }
+      output += ")\n";
+    }
+    if (recorderSize > 0 && functionCallNode.functionName.equals("setState")) {
+      String nextState = ((EnumeratorNode) functionCallNode.argument).enumerator;
+      long entry = (long) states.indexOf(currentState) << 40 | (long) events.indexOf(currentEvent) << 20 | states.indexOf(nextState);
+      output += String.format("f.recordTransition(%d)\n", entry);
     }
-    output += ")\n";
   }
 
   public void visit(EnumNode enumNode) {
@@ -56,7 +90,8 @@ public class GoNestedSwitchCaseImplementer implements NSCNodeVisitor {
 
   public void visit(EventDelegatorsNode eventDelegatorsNode) {
     for (String event : eventDelegatorsNode.events) {
-      output += String.format("func (f *%s) %s() { f.processEvent(event%s, \"%s\") }\n", fsmName, event, event, event);
+      output += String.format("func (f *%s) %s() { f.%s(event%s, \"%s\") }\n",
+        fsmName, event, reentrantQueueCapacity > 0 ? "runToCompletion" : "processEvent", event, event);
     }
   }
 
@@ -69,23 +104,36 @@ public class GoNestedSwitchCaseImplementer implements NSCNodeVisitor {
     fsmName = fsmClassNode.className;
     actionsName = fsmClassNode.actionsName;
     actions = fsmClassNode.actions;
+    decisions = fsmClassNode.decisions;
+    handlers = fsmClassNode.handlers;
+    entryExitFunctions = fsmClassNode.entryExitFunctions;
     states = fsmClassNode.states;
+    events = fsmClassNode.eventEnum.enumerators;
 
     output += String.format(
       "// Package %s is an auto-generated Finite State Machine.\n" +
       "// DO NOT EDIT.\n" +
-      "package %s\n\n" +
+      "package %s\n\n",
+      fsmName.toLowerCase(), fsmName.toLowerCase());
+    if (recorderSize > 0)
+      output += String.format("import (\n\t\"fmt\"\n%s\t\"strings\"\n\t\"time\"\n)\n\n", dumpOnUnhandled ? "\t\"os\"\n" : "");
+    output += String.format(
       "// %s is the Finite State Machine.\n" +
       "type %s struct {\n" +
       "\tactions %s\n" +
       "\tstate stateT\n" +
+      "%s%s" +
       "}\n\n" +
       "// New returns a new %s.\n" +
       "func New(actions %s) *%s {\n" +
       "\t return &%s{actions: actions, state: ",
-      fsmName.toLowerCase(), fsmName.toLowerCase(), fsmName, fsmName,
-      actionsName, fsmName, actionsName, fsmName, fsmName);
+      fsmName, fsmName, actionsName,
+      recorderSize > 0 ? String.format("\trecorder [%d]uint64\n\trecorderCount uint64\n", 2 * recorderSize) : "",
+      reentrantQueueCapacity > 0 ? "\tdispatching bool\n\tpending []eventT\n\tpendingHead int\n\tpendingCount int\n" : "",
+      fsmName, actionsName, fsmName, fsmName);
     fsmClassNode.stateProperty.accept(this);
+    if (reentrantQueueCapacity > 0)
+      output += String.format(", pending: make([]eventT, %d)", reentrantQueueCapacity);
     output += "}\n}\n\n";
 
     fsmClassNode.delegators.accept(this);
@@ -94,7 +142,94 @@ public class GoNestedSwitchCaseImplementer implements NSCNodeVisitor {
     fsmClassNode.stateEnum.accept(this);
     output += "type eventT int\n";
     fsmClassNode.eventEnum.accept(this);
+    if (recorderSize > 0)
+      output += String.format("var stateNames = [...]string{%s}\n", quotedList(states));
+    if (batch || recorderSize > 0 || reentrantQueueCapacity > 0)
+      output += String.format("var eventNames = [...]string{%s}\n\n", quotedList(events));
     fsmClassNode.handleEvent.accept(this);
+    if (reentrantQueueCapacity > 0)
+      addRunToCompletionQueue();
+    if (batch)
+      addBatchHandler(fsmClassNode);
+    if (recorderSize > 0)
+      addFlightRecorder();
+  }
+
+  // An event sent while another is being handled, typically by one of its
+  // actions, waits in a ring until the outer call has finished with the
+  // first; the outer call then handles the queued events in order.  The ring
+  // only grows, by doubling, when an action queues more events than it holds.
+  private void addRunToCompletionQueue() {
+    output += String.format(
+      "func (f *%s) runToCompletion(event eventT, eventName string) {\n" +
+      "\tif f.dispatching {\n" +
+      "\t\tif f.pendingCount == len(f.pending) {\n" +
+      "\t\t\tgrown := make([]eventT, 2*len(f.pending))\n" +
+      "\t\t\tfor i := 0; i < f.pendingCount; i++ {\n" +
+      "\t\t\t\tgrown[i] = f.pending[(f.pendingHead+i)&(len(f.pending)-1)]\n" +
+      "\t\t\t}\n" +
+      "\t\t\tf.pending = grown\n" +
+      "\t\t\tf.pendingHead = 0\n" +
+      "\t\t}\n" +
+      "\t\tf.pending[(f.pendingHead+f.pendingCount)&(len(f.pending)-1)] = event\n" +
+      "\t\tf.pendingCount++\n" +
+      "\t\treturn\n" +
+      "\t}\n" +
+      "\tf.dispatching = true\n" +
+      "\tdefer func() {\n" +
+      "\t\tf.dispatching = false\n" +
+      "\t\tf.pendingCount = 0\n" +
+      "\t}()\n" +
+      "\tf.processEvent(event, eventName)\n" +
+      "\tfor f.pendingCount > 0 {\n" +
+      "\t\tnext := f.pending[f.pendingHead]\n" +
+      "\t\tf.pendingHead = (f.pendingHead + 1) & (len(f.pending) - 1)\n" +
+      "\t\tf.pendingCount--\n" +
+      "\t\tf.processEvent(next, eventNames[next])\n" +
+      "\t}\n" +
+      "}\n\n",
+      fsmName);
+  }
+
+  // Each entry is two words: a time stamp, and the state, event and next
+  // state packed 20 bits apiece.  The ring belongs to the instance.
+  private void addFlightRecorder() {
+    output += String.format(
+      "const recorderSize = %d\n" +
+      "const recorderUnhandled = 0xFFFFF\n\n" +
+      "var recorderEpoch = time.Now()\n\n" +
+      "func (f *%s) recordTransition(entry uint64) {\n" +
+      "\tslot := (f.recorderCount & (recorderSize - 1)) * 2\n" +
+      "\tf.recorder[slot] = uint64(time.Since(recorderEpoch))\n" +
+      "\tf.recorder[slot+1] = entry\n" +
+      "\tf.recorderCount++\n" +
+      "}\n\n" +
+      "// DumpFlightRecorder returns the recorded transitions, oldest first.\n" +
+      "func (f *%s) DumpFlightRecorder() string {\n" +
+      "\tvar dump strings.Builder\n" +
+      "\tn := uint64(0)\n" +
+      "\tif f.recorderCount > recorderSize {\n" +
+      "\t\tn = f.recorderCount - recorderSize\n" +
+      "\t}\n" +
+      "\tfor ; n < f.recorderCount; n++ {\n" +
+      "\t\tslot := (n & (recorderSize - 1)) * 2\n" +
+      "\t\tentry := f.recorder[slot+1]\n" +
+      "\t\tnext := \"unhandled\"\n" +
+      "\t\tif entry&recorderUnhandled != recorderUnhandled {\n" +
+      "\t\t\tnext = stateNames[entry&recorderUnhandled]\n" +
+      "\t\t}\n" +
+      "\t\tfmt.Fprintf(&dump, \"%%d %%s %%s %%s\\n\", f.recorder[slot], stateNames[entry>>40], eventNames[entry>>20&recorderUnhandled], next)\n" +
+      "\t}\n" +
+      "\treturn dump.String()\n" +
+      "}\n\n",
+      recorderSize, fsmName, fsmName);
+  }
+
+  private static String quotedList(List<String> names) {
+    List<String> quotedNames = new ArrayList<>();
+    for (String name : names)
+      quotedNames.add("\"" + name + "\"");
+    return Utilities.commaList(quotedNames);
   }
 
   public void visit(HandleEventNode handleEventNode) {
@@ -103,12 +238,31 @@ public class GoNestedSwitchCaseImplementer implements NSCNodeVisitor {
       "\tstate := f.state\n" +
       "\tsetState := func(s stateT) { f.state = s; state = s }\n",
       fsmName);
+    addLocalDeclarations();
+    if (delegating)
+      for (HandlerNode handler : handlers)
+        handler.accept(this);
+    handleEventNode.switchCase.accept(this);
+    output += "}\n\n";
+  }
 
+  private void addLocalDeclarations() {
     for (String action : actions) {
       output += String.format(
         "\t%s := func() { f.actions.%s() }\n",
         action, Utilities.capitalize(action));
     }
+    for (String decision : decisions) {
+      output += String.format(
+        "\t%s := func() int { return f.actions.%s() }\n",
+        decision, Utilities.capitalize(decision));
+    }
+    for (Map.Entry<String, List<String>> function : entryExitFunctions.entrySet()) {
+      output += String.format("\t%s := func() {\n", function.getKey());
+      for (String action : function.getValue())
+        output += String.format("\t\t%s()\n", action);
+      output += "\t}\n";
+    }
     output += "\n";
 
     for (String state : states) {
@@ -117,21 +271,85 @@ public class GoNestedSwitchCaseImplementer implements NSCNodeVisitor {
         state, Utilities.capitalize(state));
     }
     output += "\n";
+  }
 
-    handleEventNode.switchCase.accept(this);
-    output += "}\n\n";
+  // The whole batch runs against a local copy of the state, which is written
+  // back once at the end.
+  private void addBatchHandler(FSMClassNode fsmClassNode) {
+    output += "// Event codes accepted by HandleEvents.\nconst (\n";
+    for (String event : events)
+      output += String.format("\tEvent%s = int(event%s)\n", Utilities.capitalize(event), event);
+    output += ")\n\n";
+
+    output += String.format(
+      "// HandleEvents processes events[offset:offset+count] in order.\n" +
+      "func (f *%s) HandleEvents(events []int, offset int, count int) {\n" +
+      "\tstate := f.state\n",
+      fsmName);
+    addLocalDeclarations();
+    output += "\tfor _, e := range events[offset : offset+count] {\n";
+    output += "\t\tevent := eventT(e)\n";
+    renderingBatch = true;
+    fsmClassNode.handleEvent.switchCase.accept(this);
+    renderingBatch = false;
+    output += "\t}\n\tf.state = state\n}\n\n";
   }
 
   public void visit(EnumeratorNode enumeratorNode) {
     output += enumeratorNode.enumeration + enumeratorNode.enumerator;
   }
 
+  public void visit(ChoiceNode choiceNode) {
+    output += String.format("\tswitch %s() {\n", choiceNode.decision);
+    for (int i = 0; i < choiceNode.branches.size(); i++) {
+      output += String.format("\tcase %d:\n", i);
+      choiceNode.branches.get(i).accept(this);
+    }
+    choiceNode.defaultCase.accept(this);
+    output += "}\n";
+  }
+
   public void visit(DefaultCaseNode defaultCaseNode) {
+    output += "\tdefault:\n";
+    addUnhandled(defaultCaseNode);
+  }
+
+  // A superstate's handler is a local function that returns whether it
+  // handled the event.
+  public void visit(HandlerNode handlerNode) {
+    output += String.format("\t%s := func() bool {\n", superHandlerName(handlerNode));
+    output += "\tswitch event {\n";
+    handlerNode.eventSwitch.generateCases(this);
+    output += "\tdefault:\n\t\treturn false\n}\n";
+    output += "\treturn true\n\t}\n\n";
+  }
+
+  // The flight recorder and the batch's local state need the substate, so
+  // the handler's cases are then rendered in the substate.
+  public void visit(DelegateNode delegateNode) {
+    if (!delegating || renderingBatch) {
+      output += "\tdefault:\n";
+      delegateNode.inlined().accept(this);
+    } else {
+      output += String.format("\tdefault:\n\t\tif %s() {\n\t\t\tbreak\n\t\t}\n", superHandlerName(delegateNode.handler));
+      addUnhandled(delegateNode.defaultCase);
+    }
+  }
+
+  private String superHandlerName(HandlerNode handlerNode) {
+    return "super" + Utilities.capitalize(handlerNode.superState);
+  }
+
+  private void addUnhandled(DefaultCaseNode defaultCaseNode) {
+    if (recorderSize > 0)
+      output += String.format("\t\tf.recordTransition(%d<<40 | uint64(event)<<20 | recorderUnhandled)\n",
+        states.indexOf(defaultCaseNode.state));
+    if (dumpOnUnhandled)
+      output += "\t\tos.Stderr.WriteString(f.DumpFlightRecorder())\n";
     output += String.format(
       "" +
-      "\tdefault:\n" +
-      "\t\tf.actions.UnexpectedTransition(\"%s\", eventName);\n\n",
-      defaultCaseNode.state);
+      "\t\tf.actions.UnexpectedTransition(\"%s\", %s);\n\n",
+      defaultCaseNode.state, renderingBatch ? "eventNames[event]" : "eventName");
   }
 
   public String getOutput() {
@@ -4,91 +4,979 @@ import smc.Utilities;
 import smc.generators.nestedSwitchCaseGenerator.NSCNode;
 import smc.generators.nestedSwitchCaseGenerator.NSCNodeVisitor;
 
-import java.util.Map;
+import java.util.*;
 
 public class JavaNestedSwitchCaseImplementer implements NSCNodeVisitor {
+  // HotSpot does not JIT-compile methods larger than this, because
+  // -XX:+DontCompileHugeMethods is on by default.
+  private static final int HUGE_METHOD_LIMIT = 8000;
+  private static final int CONSTANT_POOL_LIMIT = 65535;
+  private static final int MAILBOX_BATCH = 64;
+
   private String output = "";
   private Map<String, String> flags;
   private String javaPackage = null;
+  private boolean intStyle;
+  private boolean flyweight;
+  private boolean publicState;
+  private int reentrantQueueCapacity;
+  private boolean compareAndSet;
+  private int mailboxCapacity;
+  private String backpressure;
+  private boolean batch;
+  private boolean renderingBatch = false;
+  private boolean counters;
+  private boolean histograms;
+  private int recorderSize;
+  private boolean dumpOnUnhandled;
+  private String jfrThreshold;
+  private boolean delegating;
+  private String currentNextState;
+  private String currentState;
+  private String currentEvent;
+  private String className;
+  private List<String> states;
+  private List<String> events;
+  private String receiver = "";
 
   public JavaNestedSwitchCaseImplementer(Map<String, String> flags) {
     this.flags = flags;
     if (flags.containsKey("package"))
       javaPackage = flags.get("package");
+    flyweight = "flyweight".equals(flags.get("style"));
+    compareAndSet = !flyweight && "cas".equals(flags.get("concurrency"));
+    publicState = !flyweight && "public".equals(flags.get("state"));
+    if (!flyweight && !compareAndSet)
+      reentrantQueueCapacity = Utilities.reentrantQueueCapacity(flags);
+    intStyle = flyweight || compareAndSet || "int".equals(flags.get("style"));
+    if (flags.containsKey("mailbox") && !flyweight)
+      mailboxCapacity = Utilities.powerOfTwoAtLeast(Integer.parseInt(flags.get("mailbox")));
+    backpressure = flags.getOrDefault("backpressure", "reject");
+    batch = "true".equals(flags.get("batch")) && !compareAndSet && !flyweight;
+    List<String> metrics = Arrays.asList(flags.getOrDefault("metrics", "").split("\\+"));
+    counters = metrics.contains("counters");
+    histograms = metrics.contains("histograms") && !flyweight;
+    if (flags.containsKey("recorder") && !flyweight)
+      recorderSize = Utilities.powerOfTwoAtLeast(Integer.parseInt(flags.get("recorder")));
+    dumpOnUnhandled = recorderSize > 0 && "unhandled".equals(flags.get("dump"));
+    if (flags.containsKey("jfr"))
+      jfrThreshold = jfrThreshold(flags.get("jfr"));
+    delegating = !compareAndSet && !counters && !histograms && recorderSize == 0 && jfrThreshold == null;
+  }
+
+  // -f jfr:true records every transition, -f jfr:20ms only those slower than 20 ms.
+  private static String jfrThreshold(String flag) {
+    if (flag.equals("true"))
+      return "0 ns";
+    return flag.replaceAll("^(\\d+)\\s*(\\w+)$", "$1 $2");
   }
 
   public void visit(NSCNode.SwitchCaseNode switchCaseNode) {
-    output += String.format("switch(%s) {\n", switchCaseNode.variableName);
+    if (flyweight && switchCaseNode.variableName.equals("state"))
+      output += String.format("switch(%s) {\n", stateOrdinal());
+    else
+      output += String.format("switch(%s) {\n", switchCaseNode.variableName);
     switchCaseNode.generateCases(this);
     output += "}\n";
   }
 
   public void visit(NSCNode.CaseNode caseNode) {
-    output += String.format("case %s:\n", caseNode.caseName);
+    if (caseNode.switchName.equals("State"))
+      currentState = caseNode.caseName;
+    else
+      currentEvent = caseNode.caseName;
+    if (intStyle || (renderingBatch && caseNode.switchName.equals("Event")))
+      output += String.format("case %s_%s:\n", caseNode.switchName, caseNode.caseName);
+    else
+      output += String.format("case %s:\n", caseNode.caseName);
+    if (jfrThreshold != null && caseNode.switchName.equals("Event"))
+      output += String.format("TransitionEvent %s = beginTransition();\n", jfrEventVariable());
     caseNode.caseActionNode.accept(this);
+    if (caseNode.switchName.equals("Event") && !(caseNode.caseActionNode instanceof NSCNode.ChoiceNode))
+      addTransitionDone();
     output += "break;\n";
   }
 
+  private void addTransitionDone() {
+    if (jfrThreshold != null)
+      output += String.format("if (%s != null) commitTransition(%s, \"%s\", \"%s\", \"%s\");\n",
+        jfrEventVariable(), jfrEventVariable(), currentState, currentEvent, currentNextState);
+    if (histograms)
+      output += String.format("if (HISTOGRAMS_ENABLED) %stransitionDone(%d);\n", receiver, transitionIndex());
+  }
+
+  // Each branch is a whole transition, so each one finishes its own.
+  public void visit(NSCNode.ChoiceNode choiceNode) {
+    output += String.format("switch(%s%s(%s)) {\n", receiver, choiceNode.decision, flyweight ? "instanceId" : "");
+    for (int i = 0; i < choiceNode.branches.size(); i++) {
+      NSCNode branch = choiceNode.branches.get(i);
+      output += String.format("case %d:\n", i);
+      branch.accept(this);
+      if (!(branch instanceof NSCNode.ChoiceNode))
+        addTransitionDone();
+      output += "break;\n";
+    }
+    choiceNode.defaultCase.accept(this);
+    output += "}\n";
+  }
+
+  // Every case of the switch shares one scope, so each needs its own name.
+  private String jfrEventVariable() {
+    return "transition_" + transitionIndex();
+  }
+
   public void visit(NSCNode.FunctionCallNode functionCallNode) {
-    output += String.format("%s(", functionCallNode.functionName);
-    if (functionCallNode.argument != null)
+    if (functionCallNode.functionName.equals("setState"))
+      currentNextState = ((NSCNode.EnumeratorNode) functionCallNode.argument).enumerator;
+    if (renderingBatch && functionCallNode.functionName.equals("setState")) {
+      output += "state = ";
       functionCallNode.argument.accept(this);
-    output += ");\n";
+      output += ";\n";
+    } else if (compareAndSet && functionCallNode.functionName.equals("setState"))
+      addCompareAndSetState(functionCallNode);
+    else {
+      output += String.format("%s%s(%s", receiver, functionCallNode.functionName, flyweight ? "instanceId" : "");
+      if (functionCallNode.argument != null) {
+        if (flyweight)
+          output += ", ";
+        functionCallNode.argument.accept(this);
+      }
+      output += ");\n";
+    }
+    if (counters && functionCallNode.functionName.equals("setState"))
+      output += String.format("if (COUNTERS_ENABLED) TRANSITION_COUNTS[%d].increment();\n", transitionIndex());
+    if (histograms && functionCallNode.functionName.equals("setState"))
+      output += String.format("if (HISTOGRAMS_ENABLED) %senterState(%d);\n", receiver, states.indexOf(currentState));
+    if (recorderSize > 0 && functionCallNode.functionName.equals("setState"))
+      output += String.format("%srecordTransition(%dL);\n", receiver, recorderEntry(functionCallNode));
+  }
+
+  private long recorderEntry(NSCNode.FunctionCallNode setStateNode) {
+    String nextState = ((NSCNode.EnumeratorNode) setStateNode.argument).enumerator;
+    return (long) states.indexOf(currentState) << 40 | (long) events.indexOf(currentEvent) << 20 | states.indexOf(nextState);
+  }
+
+  private int transitionIndex() {
+    return states.indexOf(currentState) * events.size() + events.indexOf(currentEvent);
+  }
+
+  // A failed compareAndSet returns before the transition's counter, or any
+  // of its actions, so handleEvent retries it with nothing done; only the
+  // attempt that sets the state is counted.
+  private void addCompareAndSetState(NSCNode.FunctionCallNode setStateNode) {
+    output += String.format("if (!STATE.compareAndSet(%s, state, ", receiver.isEmpty() ? "this" : "fsm");
+    setStateNode.argument.accept(this);
+    output += ")) return false;\n";
   }
 
   public void visit(NSCNode.EnumNode enumNode) {
-    output += String.format("private enum %s {%s}\n", enumNode.name, Utilities.commaList(enumNode.enumerators));
+    if (intStyle)
+      addIntConstants(enumNode);
+    else {
+      output += String.format("private enum %s {%s}\n", enumNode.name, Utilities.commaList(enumNode.enumerators));
+      if (batch && enumNode.name.equals("Event"))
+        addIntConstants(enumNode);
+    }
+  }
 
+  // The event codes accepted by handleEvents are public.
+  private void addIntConstants(NSCNode.EnumNode enumNode) {
+    String modifier = (batch || flyweight) && enumNode.name.equals("Event") ? "public" : "private";
+    for (int i = 0; i < enumNode.enumerators.size(); i++)
+      output += String.format("%s static final int %s_%s = %d;\n", modifier, enumNode.name, enumNode.enumerators.get(i), i);
   }
 
   public void visit(NSCNode.StatePropertyNode statePropertyNode) {
-    output += String.format("private State state = State.%s;\n", statePropertyNode.initialState);
-    output += "private void setState(State s) {state = s;}\n";
+    if (compareAndSet) {
+      addStateVarHandle(statePropertyNode);
+      return;
+    }
+    if (flyweight) {
+      addStateArray(statePropertyNode);
+      return;
+    }
+    output += String.format("private %s state = %s;\n", stateType(), enumerator("State", statePropertyNode.initialState));
+    output += String.format("private void setState(%s s) {state = s;}\n", stateType());
+  }
+
+  private void addStateVarHandle(NSCNode.StatePropertyNode statePropertyNode) {
+    output += "private static final java.lang.invoke.VarHandle STATE;\n";
+    output += "static {\n";
+    output += "try {\n";
+    output += String.format("STATE = java.lang.invoke.MethodHandles.lookup().findVarHandle(%s.class, \"state\", int.class);\n", className);
+    output += "} catch (ReflectiveOperationException e) {\n";
+    output += "throw new ExceptionInInitializerError(e);\n";
+    output += "}\n";
+    output += "}\n";
+    output += String.format("private volatile int state = %s;\n", enumerator("State", statePropertyNode.initialState));
+  }
+
+  // The states of all instances share one array, of the narrowest type that
+  // holds every state ordinal.
+  private void addStateArray(NSCNode.StatePropertyNode statePropertyNode) {
+    String stateArrayType = states.size() <= Byte.MAX_VALUE + 1 ? "byte" : states.size() <= Short.MAX_VALUE + 1 ? "short" : "int";
+    output += String.format("private final %s[] states;\n", stateArrayType);
+    output += String.format("protected %s(int instances) {\n", className);
+    output += String.format("states = new %s[instances];\n", stateArrayType);
+    if (states.indexOf(statePropertyNode.initialState) != 0)
+      output += String.format("java.util.Arrays.fill(states, (%s) %s);\n", stateArrayType, enumerator("State", statePropertyNode.initialState));
+    output += "}\n";
+    output += "public int instances() {return states.length;}\n";
+    output += "public String getState(int instanceId) {return Names.STATES[states[instanceId]];}\n";
+    output += String.format("private void setState(int instanceId, int s) {states[instanceId] = (%s) s;}\n", stateArrayType);
+    output += "public int stateCode(int instanceId) {return states[instanceId];}\n";
+    output += "public void restoreState(int instanceId, int s) {setState(instanceId, s);}\n";
   }
 
   public void visit(NSCNode.EventDelegatorsNode eventDelegatorsNode) {
     for (String event : eventDelegatorsNode.events)
-      output += String.format("public void %s() {handleEvent(Event.%s);}\n", event, event);
+      output += String.format("public void %s(%s) {%s(%s%s);}\n", event, flyweight ? "int instanceId" : "",
+        reentrantQueueCapacity > 0 ? "runToCompletion" : "handleEvent", instanceArgument(), enumerator("Event", event));
+    if (mailboxCapacity > 0)
+      for (String event : eventDelegatorsNode.events)
+        output += String.format("public boolean post%s() {return post(%s);}\n", event, enumerator("Event", event));
   }
 
   public void visit(NSCNode.FSMClassNode fsmClassNode) {
     if (javaPackage != null)
       output += "package " + javaPackage + ";\n";
 
+    className = fsmClassNode.className;
+    states = fsmClassNode.stateEnum.enumerators;
+    events = fsmClassNode.eventEnum.enumerators;
     String actionsName = fsmClassNode.actionsName;
     if (actionsName == null)
       output += String.format("public abstract class %s {\n", fsmClassNode.className);
     else
       output += String.format("public abstract class %s implements %s {\n", fsmClassNode.className, actionsName);
 
-    output += "public abstract void unhandledTransition(String state, String event);\n";
+    output += String.format("public abstract void unhandledTransition(%sString state, String event);\n", instanceParameter());
     fsmClassNode.stateEnum.accept(this);
     fsmClassNode.eventEnum.accept(this);
+    if (intStyle)
+      addNameTables();
+    if (counters)
+      addCounters();
+    if (histograms)
+      addHistograms();
+    if (recorderSize > 0)
+      addFlightRecorder();
+    if (jfrThreshold != null)
+      addJfrEvents();
     fsmClassNode.stateProperty.accept(this);
+    if (publicState)
+      output += String.format("public String getState() {return %s;}\n", intStyle ? "Names.STATES[state]" : "state.name()");
     fsmClassNode.delegators.accept(this);
     fsmClassNode.handleEvent.accept(this);
+    if (delegating)
+      for (NSCNode.HandlerNode handler : fsmClassNode.handlers)
+        handler.accept(this);
+    addEntryExitFunctions(fsmClassNode.entryExitFunctions);
+    if (reentrantQueueCapacity > 0)
+      addRunToCompletionQueue();
+    if (batch)
+      addBatchHandler(fsmClassNode.handleEvent.switchCase);
+    if (mailboxCapacity > 0)
+      addMailbox();
     if (actionsName == null) {
       for (String action : fsmClassNode.actions)
-        output += String.format("protected abstract void %s();\n", action);
+        output += String.format("protected abstract void %s(%s);\n", action, flyweight ? "int instanceId" : "");
+      for (String decision : fsmClassNode.decisions)
+        output += String.format("protected abstract int %s(%s);\n", decision, flyweight ? "int instanceId" : "");
+    }
+    output += "}\n";
+  }
+
+  private void addEntryExitFunctions(Map<String, List<String>> entryExitFunctions) {
+    for (Map.Entry<String, List<String>> function : entryExitFunctions.entrySet()) {
+      output += String.format("private void %s(%s) {\n", function.getKey(), flyweight ? "int instanceId" : "");
+      for (String action : function.getValue())
+        output += String.format("%s(%s);\n", action, flyweight ? "instanceId" : "");
+      output += "}\n";
+    }
+  }
+
+  // The names are only needed by unhandledTransition, so they live in a holder
+  // class that is not initialized until the first unhandled transition.
+  private void addNameTables() {
+    output += "private static final class Names {\n";
+    output += String.format("static final String[] STATES = {%s};\n", quotedList(states));
+    output += String.format("static final String[] EVENTS = {%s};\n", quotedList(events));
+    output += "}\n";
+  }
+
+  // The counters are shared by all instances of the class.  Running with
+  // -Dsmc.counters=false leaves them unallocated, and the JIT drops the
+  // guarded increments.
+  private void addCounters() {
+    String adder = "java.util.concurrent.atomic.LongAdder";
+    output += "private static final boolean COUNTERS_ENABLED = !\"false\".equals(System.getProperty(\"smc.counters\"));\n";
+    output += String.format("private static final int COUNTER_EVENTS = %d;\n", events.size());
+    output += String.format("private static final %s[] TRANSITION_COUNTS = COUNTERS_ENABLED ? newCounters() : null;\n", adder);
+    output += String.format("private static final %s[] UNHANDLED_COUNTS = COUNTERS_ENABLED ? newCounters() : null;\n", adder);
+    output += String.format("private static %s[] newCounters() {\n", adder);
+    output += String.format("%s[] counters = new %s[%d * COUNTER_EVENTS];\n", adder, adder, states.size());
+    output += "for (int i = 0; i < counters.length; i++)\n";
+    output += String.format("counters[i] = new %s();\n", adder);
+    output += "return counters;\n";
+    output += "}\n";
+
+    output += "public static java.util.Map<String, Long> snapshotCounters() {\n";
+    output += "java.util.Map<String, Long> counts = new java.util.LinkedHashMap<>();\n";
+    output += "if (!COUNTERS_ENABLED)\n";
+    output += "return counts;\n";
+    output += "for (int i = 0; i < TRANSITION_COUNTS.length; i++) {\n";
+    output += String.format("String transition = %s + \".\" + %s;\n",
+      intStyle ? "Names.STATES[i / COUNTER_EVENTS]" : "State.values()[i / COUNTER_EVENTS].name()",
+      intStyle ? "Names.EVENTS[i % COUNTER_EVENTS]" : "Event.values()[i % COUNTER_EVENTS].name()");
+    output += "long handled = TRANSITION_COUNTS[i].sum();\n";
+    output += "long unhandled = UNHANDLED_COUNTS[i].sum();\n";
+    output += "if (handled != 0)\n";
+    output += "counts.put(transition, handled);\n";
+    output += "if (unhandled != 0)\n";
+    output += "counts.put(transition + \".unhandled\", unhandled);\n";
+    output += "}\n";
+    output += "return counts;\n";
+    output += "}\n";
+  }
+
+  // Log2 histograms: bucket b holds the durations whose highest set bit is
+  // bit b-1, so 64 preallocated buckets cover every long.  The histograms
+  // are shared by all instances; the time stamps belong to each instance.
+  private void addHistograms() {
+    String atomicArray = "java.util.concurrent.atomic.AtomicLongArray";
+    output += "private static final boolean HISTOGRAMS_ENABLED = !\"false\".equals(System.getProperty(\"smc.histograms\"));\n";
+    output += "private static final int BUCKETS = 64;\n";
+    output += String.format("private static final %s STATE_DWELL = new %s(HISTOGRAMS_ENABLED ? %d * BUCKETS : 0);\n",
+      atomicArray, atomicArray, states.size());
+    output += String.format("private static final %s TRANSITION_LATENCY = new %s(HISTOGRAMS_ENABLED ? %d * BUCKETS : 0);\n",
+      atomicArray, atomicArray, states.size() * events.size());
+    output += "private long stateEnteredAt = HISTOGRAMS_ENABLED ? System.nanoTime() : 0;\n";
+    output += "private long transitionStartedAt;\n";
+
+    output += "private void enterState(int previousState) {\n";
+    output += "long now = System.nanoTime();\n";
+    output += "record(STATE_DWELL, previousState, now - stateEnteredAt);\n";
+    output += "stateEnteredAt = now;\n";
+    output += "transitionStartedAt = now;\n";
+    output += "}\n";
+    output += "private void transitionDone(int transition) {\n";
+    output += "record(TRANSITION_LATENCY, transition, System.nanoTime() - transitionStartedAt);\n";
+    output += "}\n";
+    output += String.format("private static void record(%s histogram, int index, long nanos) {\n", atomicArray);
+    output += "histogram.getAndIncrement(index * BUCKETS + BUCKETS - Long.numberOfLeadingZeros(Math.max(0, nanos)));\n";
+    output += "}\n";
+
+    output += "public static long stateDwellPercentile(String state, double percentile) {\n";
+    output += String.format("return percentile(STATE_DWELL, %s, percentile);\n", ordinalOf("State", "state"));
+    output += "}\n";
+    output += "public static long transitionLatencyPercentile(String state, String event, double percentile) {\n";
+    output += String.format("return percentile(TRANSITION_LATENCY, %s * %d + %s, percentile);\n",
+      ordinalOf("State", "state"), events.size(), ordinalOf("Event", "event"));
+    output += "}\n";
+
+    output += String.format("private static long percentile(%s histogram, int index, double percentile) {\n", atomicArray);
+    output += "if (!HISTOGRAMS_ENABLED)\n";
+    output += "return 0;\n";
+    output += "long total = 0;\n";
+    output += "for (int b = 0; b < BUCKETS; b++)\n";
+    output += "total += histogram.get(index * BUCKETS + b);\n";
+    output += "long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));\n";
+    output += "long seen = 0;\n";
+    output += "for (int b = 0; b < BUCKETS; b++) {\n";
+    output += "seen += histogram.get(index * BUCKETS + b);\n";
+    output += "if (seen >= rank)\n";
+    output += "return b == 0 ? 0 : (1L << b) - 1;\n";
+    output += "}\n";
+    output += "return 0;\n";
+    output += "}\n";
+  }
+
+  // Each entry is two longs: a nanoTime stamp, and the state, event and next
+  // state packed 20 bits apiece.  The ring belongs to the instance and is
+  // written without locks, so it is only exact for one thread at a time.
+  private void addFlightRecorder() {
+    output += String.format("private static final int RECORDER_SIZE = %d;\n", recorderSize);
+    output += "private static final int UNHANDLED = 0xFFFFF;\n";
+    output += "private final long[] flightRecorder = new long[2 * RECORDER_SIZE];\n";
+    output += "private long recorderCount;\n";
+    output += "private void recordTransition(long entry) {\n";
+    output += "int i = (int) (recorderCount++ & (RECORDER_SIZE - 1)) * 2;\n";
+    output += "flightRecorder[i] = System.nanoTime();\n";
+    output += "flightRecorder[i + 1] = entry;\n";
+    output += "}\n";
+    output += "public String dumpFlightRecorder() {\n";
+    output += "StringBuilder dump = new StringBuilder();\n";
+    output += "for (long n = Math.max(0, recorderCount - RECORDER_SIZE); n < recorderCount; n++) {\n";
+    output += "int i = (int) (n & (RECORDER_SIZE - 1)) * 2;\n";
+    output += "long entry = flightRecorder[i + 1];\n";
+    output += "int next = (int) (entry & UNHANDLED);\n";
+    output += "dump.append(flightRecorder[i]).append(' ')\n";
+    output += String.format(".append(%s).append(' ')\n", nameOf("State", "(int) (entry >>> 40)"));
+    output += String.format(".append(%s).append(' ')\n", nameOf("Event", "(int) (entry >>> 20 & UNHANDLED)"));
+    output += String.format(".append(next == UNHANDLED ? \"unhandled\" : %s).append('\\n');\n", nameOf("State", "next"));
+    output += "}\n";
+    output += "return dump.toString();\n";
+    output += "}\n";
+  }
+
+  // The events cost a volatile read of isEnabled() while no recording is
+  // running, and constant strings are all they carry when one is.
+  private void addJfrEvents() {
+    String jfr = "jdk.jfr.";
+    output += String.format("@%sName(\"smc.%s.Transition\")\n", jfr, className);
+    output += String.format("@%sLabel(\"%s Transition\")\n", jfr, className);
+    output += String.format("@%sCategory(\"State Machines\")\n", jfr);
+    output += String.format("@%sThreshold(\"%s\")\n", jfr, jfrThreshold);
+    output += String.format("@%sStackTrace(false)\n", jfr);
+    output += String.format("static final class TransitionEvent extends %sEvent {\n", jfr);
+    output += String.format("@%sLabel(\"State\") String state;\n", jfr);
+    output += String.format("@%sLabel(\"Event\") String event;\n", jfr);
+    output += String.format("@%sLabel(\"Next State\") String nextState;\n", jfr);
+    output += "}\n";
+    output += String.format("@%sName(\"smc.%s.Unhandled\")\n", jfr, className);
+    output += String.format("@%sLabel(\"%s Unhandled Transition\")\n", jfr, className);
+    output += String.format("@%sCategory(\"State Machines\")\n", jfr);
+    output += String.format("static final class UnhandledEvent extends %sEvent {\n", jfr);
+    output += String.format("@%sLabel(\"State\") String state;\n", jfr);
+    output += String.format("@%sLabel(\"Event\") String event;\n", jfr);
+    output += "}\n";
+    output += String.format("private static final %sEventType TRANSITION_EVENT = %sEventType.getEventType(TransitionEvent.class);\n", jfr, jfr);
+    output += String.format("private static final %sEventType UNHANDLED_EVENT = %sEventType.getEventType(UnhandledEvent.class);\n", jfr, jfr);
+
+    output += "private static TransitionEvent beginTransition() {\n";
+    output += "if (!TRANSITION_EVENT.isEnabled())\n";
+    output += "return null;\n";
+    output += "TransitionEvent event = new TransitionEvent();\n";
+    output += "event.begin();\n";
+    output += "return event;\n";
+    output += "}\n";
+    output += "private static void commitTransition(TransitionEvent event, String state, String eventName, String nextState) {\n";
+    output += "event.end();\n";
+    output += "if (event.shouldCommit()) {\n";
+    output += "event.state = state;\n";
+    output += "event.event = eventName;\n";
+    output += "event.nextState = nextState;\n";
+    output += "event.commit();\n";
+    output += "}\n";
+    output += "}\n";
+    output += "private static void commitUnhandled(String state, String eventName) {\n";
+    output += "UnhandledEvent event = new UnhandledEvent();\n";
+    output += "if (event.shouldCommit()) {\n";
+    output += "event.state = state;\n";
+    output += "event.event = eventName;\n";
+    output += "event.commit();\n";
+    output += "}\n";
+    output += "}\n";
+  }
+
+  private String nameOf(String enumeration, String ordinal) {
+    if (intStyle)
+      return String.format("Names.%sS[%s]", enumeration.toUpperCase(), ordinal);
+    else
+      return String.format("%s.values()[%s].name()", enumeration, ordinal);
+  }
+
+  private String ordinalOf(String enumeration, String name) {
+    if (intStyle)
+      return String.format("java.util.Arrays.asList(Names.%sS).indexOf(%s)", enumeration.toUpperCase(), name);
+    else
+      return String.format("%s.valueOf(%s).ordinal()", enumeration, name);
+  }
+
+  private String quotedList(List<String> names) {
+    List<String> quotedNames = new ArrayList<>();
+    for (String name : names)
+      quotedNames.add("\"" + name + "\"");
+    return Utilities.commaList(quotedNames);
+  }
+
+  // The whole batch runs against a local copy of the state, which is written
+  // back once at the end; setState becomes an assignment to that local.
+  private void addBatchHandler(NSCNode.SwitchCaseNode stateSwitch) {
+    MethodSizeEstimator estimate = new MethodSizeEstimator(stateSwitch);
+    if (splitsIntoClasses(estimate) || splitsIntoMethods(estimate)) {
+      addSplitBatchHandler(stateSwitch, estimate);
+      return;
     }
+    output += "public void handleEvents(int[] events, int offset, int count) {\n";
+    output += String.format("%s state = this.state;\n", stateType());
+    output += "try {\n";
+    output += "for (int i = offset; i < offset + count; i++) {\n";
+    output += "int event = events[i];\n";
+    renderingBatch = true;
+    stateSwitch.accept(this);
+    renderingBatch = false;
+    output += "}\n";
+    output += "} finally {\n";
+    output += "this.state = state;\n";
+    output += "}\n";
+    output += "}\n";
+  }
+
+  // A bounded multi-producer, single-consumer ring.  Each slot carries a
+  // sequence number: a producer claims a slot by advancing the tail, and
+  // publishes it by setting the sequence; the drainer frees it by moving the
+  // sequence one lap ahead.  At most one drainer is scheduled at a time, so
+  // the events of one instance are handled one after another.  Under
+  // reentrant:queue the drainer runs each event to completion too, so the
+  // events its actions raise wait for the transition that raised them.
+  private void addMailbox() {
+    String atomic = "java.util.concurrent.atomic.";
+    output += String.format("private static final int MAILBOX_CAPACITY = %d;\n", mailboxCapacity);
+    output += String.format("private static final int MAILBOX_BATCH = %d;\n", Math.min(mailboxCapacity, MAILBOX_BATCH));
+    output += String.format("private final %s[] mailbox = new %s[MAILBOX_CAPACITY];\n", eventType(), eventType());
+    output += String.format("private final %sAtomicLongArray mailboxSequences = new %sAtomicLongArray(MAILBOX_CAPACITY);\n", atomic, atomic);
+    output += String.format("private final %sAtomicLong mailboxTail = new %sAtomicLong();\n", atomic, atomic);
+    output += String.format("private final %sAtomicLong mailboxHead = new %sAtomicLong();\n", atomic, atomic);
+    output += String.format("private final %sAtomicBoolean mailboxScheduled = new %sAtomicBoolean();\n", atomic, atomic);
+    output += String.format("private final %sAtomicInteger mailboxPeak = new %sAtomicInteger();\n", atomic, atomic);
+    output += String.format("private final %sAtomicLong mailboxDropped = new %sAtomicLong();\n", atomic, atomic);
+    output += "private final java.util.concurrent.Executor mailboxExecutor;\n";
+
+    output += String.format("protected %s(java.util.concurrent.Executor executor) {\n", className);
+    output += "mailboxExecutor = executor;\n";
+    output += "for (int i = 0; i < MAILBOX_CAPACITY; i++)\n";
+    output += "mailboxSequences.set(i, i);\n";
+    output += "}\n";
+
+    output += "public int mailboxDepth() {return (int) (mailboxTail.get() - mailboxHead.get());}\n";
+    output += "public int mailboxPeakDepth() {return mailboxPeak.get();}\n";
+    output += "public long mailboxDropped() {return mailboxDropped.get();}\n";
+
+    output += String.format("private boolean post(%s event) {\n", eventType());
+    output += "while (!offer(event)) {\n";
+    output += backpressureAction();
+    output += "}\n";
+    output += "if (mailboxScheduled.compareAndSet(false, true))\n";
+    output += "mailboxExecutor.execute(this::drainMailbox);\n";
+    output += "return true;\n";
+    output += "}\n";
+
+    output += String.format("private boolean offer(%s event) {\n", eventType());
+    output += "long tail;\n";
+    output += "while (true) {\n";
+    output += "tail = mailboxTail.get();\n";
+    output += "long sequence = mailboxSequences.get((int) tail & (MAILBOX_CAPACITY - 1));\n";
+    output += "if (sequence == tail && mailboxTail.compareAndSet(tail, tail + 1))\n";
+    output += "break;\n";
+    output += "if (sequence < tail)\n";
+    output += "return false;\n";
+    output += "}\n";
+    output += "int slot = (int) tail & (MAILBOX_CAPACITY - 1);\n";
+    output += "mailbox[slot] = event;\n";
+    output += "mailboxSequences.set(slot, tail + 1);\n";
+    output += "mailboxPeak.accumulateAndGet((int) (tail + 1 - mailboxHead.get()), Math::max);\n";
+    output += "return true;\n";
+    output += "}\n";
+
+    output += "private void drainMailbox() {\n";
+    output += "try {\n";
+    output += "for (int n = 0; n < MAILBOX_BATCH; n++) {\n";
+    output += "long head = mailboxHead.get();\n";
+    output += "int slot = (int) head & (MAILBOX_CAPACITY - 1);\n";
+    output += "if (mailboxSequences.get(slot) != head + 1)\n";
+    output += "break;\n";
+    output += String.format("%s event = mailbox[slot];\n", eventType());
+    output += "mailboxHead.set(head + 1);\n";
+    output += "mailboxSequences.set(slot, head + MAILBOX_CAPACITY);\n";
+    output += String.format("%s(event);\n", reentrantQueueCapacity > 0 ? "runToCompletion" : "handleEvent");
+    output += "}\n";
+    output += "} finally {\n";
+    output += "mailboxScheduled.set(false);\n";
+    output += "if (mailboxDepth() > 0 && mailboxScheduled.compareAndSet(false, true))\n";
+    output += "mailboxExecutor.execute(this::drainMailbox);\n";
+    output += "}\n";
+    output += "}\n";
+  }
+
+  private String backpressureAction() {
+    if (backpressure.equals("block"))
+      return "java.util.concurrent.locks.LockSupport.parkNanos(1000);\n";
+    else if (backpressure.equals("drop"))
+      return "mailboxDropped.incrementAndGet();\nreturn false;\n";
+    else
+      return "mailboxDropped.incrementAndGet();\nthrow new IllegalStateException(\"mailbox full\");\n";
+  }
+
+  // When handleEvent is split, the batch would be as large as the single
+  // method was, so it calls the same per-state methods instead.  Those set
+  // the state field, so the batch does not keep the state in a local.
+  private void addSplitBatchHandler(NSCNode.SwitchCaseNode stateSwitch, MethodSizeEstimator estimate) {
+    output += "public void handleEvents(int[] events, int offset, int count) {\n";
+    if (!intStyle)
+      output += "Event[] eventValues = Event.values();\n";
+    output += "for (int i = offset; i < offset + count; i++) {\n";
+    output += String.format("%s event = %s;\n", eventType(), intStyle ? "events[i]" : "eventValues[events[i]]");
+    if (splitsIntoClasses(estimate))
+      addChunkDispatch(estimate.constantPoolChunks());
+    else
+      addStateDispatch(stateSwitch);
+    output += "}\n";
     output += "}\n";
   }
 
   public void visit(NSCNode.HandleEventNode handleEventNode) {
-    output += "private void handleEvent(Event event) {\n";
-    handleEventNode.switchCase.accept(this);
+    if (compareAndSet)
+      addCompareAndSetLoop();
+
+    MethodSizeEstimator estimate = new MethodSizeEstimator(handleEventNode.switchCase);
+    if (splitsIntoClasses(estimate))
+      splitIntoClasses(handleEventNode.switchCase, estimate.constantPoolChunks());
+    else if (splitsIntoMethods(estimate))
+      splitIntoMethods(handleEventNode.switchCase);
+    else {
+      output += String.format("%s {\n", dispatchSignature());
+      handleEventNode.switchCase.accept(this);
+      output += dispatchEnd();
+    }
+  }
+
+  // An event sent while another is being handled, typically by one of its
+  // actions, waits in a ring until the outer call has finished with the
+  // first; the outer call then handles the queued events in order.  The ring
+  // only grows, by doubling, when an action queues more events than it holds.
+  private void addRunToCompletionQueue() {
+    if (!intStyle)
+      output += "private static final Event[] EVENTS = Event.values();\n";
+    output += "private boolean dispatching;\n";
+    output += String.format("private int[] pendingEvents = new int[%d];\n", reentrantQueueCapacity);
+    output += "private int pendingHead;\n";
+    output += "private int pendingCount;\n";
+    output += String.format("private void runToCompletion(%s event) {\n", eventType());
+    output += "if (dispatching) {\n";
+    output += "if (pendingCount == pendingEvents.length)\n";
+    output += "growPendingEvents();\n";
+    output += String.format("pendingEvents[(pendingHead + pendingCount++) & (pendingEvents.length - 1)] = %s;\n",
+      intStyle ? "event" : "event.ordinal()");
+    output += "return;\n";
+    output += "}\n";
+    output += "dispatching = true;\n";
+    output += "try {\n";
+    output += "handleEvent(event);\n";
+    output += "while (pendingCount > 0) {\n";
+    output += "int next = pendingEvents[pendingHead];\n";
+    output += "pendingHead = (pendingHead + 1) & (pendingEvents.length - 1);\n";
+    output += "pendingCount--;\n";
+    output += String.format("handleEvent(%s);\n", intStyle ? "next" : "EVENTS[next]");
+    output += "}\n";
+    output += "} finally {\n";
+    output += "dispatching = false;\n";
+    output += "pendingCount = 0;\n";
+    output += "}\n";
+    output += "}\n";
+    output += "private void growPendingEvents() {\n";
+    output += "int[] grown = new int[2 * pendingEvents.length];\n";
+    output += "for (int i = 0; i < pendingCount; i++)\n";
+    output += "grown[i] = pendingEvents[(pendingHead + i) & (pendingEvents.length - 1)];\n";
+    output += "pendingEvents = grown;\n";
+    output += "pendingHead = 0;\n";
     output += "}\n";
   }
 
+  // processEvent returns false when another thread changed the state first;
+  // nothing has been done yet, so the event is simply dispatched again.
+  private void addCompareAndSetLoop() {
+    output += "private void handleEvent(int event) {\n";
+    output += "while (!processEvent((int) STATE.getVolatile(this), event))\n";
+    output += "Thread.onSpinWait();\n";
+    output += "}\n";
+  }
+
+  private boolean splitsIntoClasses(MethodSizeEstimator estimate) {
+    return "classes".equals(flags.get("split")) || estimate.exceedsConstantPool();
+  }
+
+  private boolean splitsIntoMethods(MethodSizeEstimator estimate) {
+    return "states".equals(flags.get("split")) || estimate.isHuge();
+  }
+
+  private void splitIntoMethods(NSCNode.SwitchCaseNode stateSwitch) {
+    output += String.format("%s {\n", dispatchSignature());
+    addStateDispatch(stateSwitch);
+    output += dispatchEnd();
+    for (NSCNode.CaseNode stateCase : stateCases(stateSwitch))
+      addStateHandler("private", "", stateCase);
+  }
+
+  private void addStateDispatch(NSCNode.SwitchCaseNode stateSwitch) {
+    output += String.format("switch(%s) {\n", stateOrdinal());
+    for (NSCNode.CaseNode stateCase : stateCases(stateSwitch))
+      output += String.format("case %d: %s\n", states.indexOf(stateCase.caseName), handlerCall(stateCase, "", "state"));
+    output += "}\n";
+  }
+
+  private void splitIntoClasses(NSCNode.SwitchCaseNode stateSwitch, int chunks) {
+    int statesPerChunk = statesPerChunk(chunks);
+    output += String.format("%s {\n", dispatchSignature());
+    addChunkDispatch(chunks);
+    output += dispatchEnd();
+
+    receiver = "fsm.";
+    for (int chunk = 0; chunk < chunks; chunk++) {
+      List<NSCNode.CaseNode> chunkCases = new ArrayList<>();
+      for (NSCNode.CaseNode stateCase : stateCases(stateSwitch))
+        if (states.indexOf(stateCase.caseName) / statesPerChunk == chunk)
+          chunkCases.add(stateCase);
+      addStateHandlerClass(chunk, chunkCases);
+    }
+    receiver = "";
+  }
+
+  private int statesPerChunk(int chunks) {
+    return (states.size() + chunks - 1) / chunks;
+  }
+
+  private void addChunkDispatch(int chunks) {
+    output += String.format("int s = %s;\n", stateOrdinal());
+    output += String.format("switch(s / %d) {\n", statesPerChunk(chunks));
+    for (int chunk = 0; chunk < chunks; chunk++)
+      output += String.format("case %d: %s\n", chunk, chunkCall(chunk));
+    output += "}\n";
+  }
+
+  private void addStateHandlerClass(int chunk, List<NSCNode.CaseNode> chunkCases) {
+    output += String.format("private static final class StateHandlers%d {\n", chunk);
+    if (compareAndSet)
+      output += String.format("static boolean processEvent(%s fsm, int s, int event) {\n", className);
+    else
+      output += String.format("static void handleEvent(%s fsm, %sint s, %s event) {\n", className, instanceParameter(), eventType());
+    output += "switch(s) {\n";
+    for (NSCNode.CaseNode stateCase : chunkCases)
+      output += String.format("case %d: %s\n", states.indexOf(stateCase.caseName), handlerCall(stateCase, "fsm, ", "s"));
+    output += "}\n";
+    output += dispatchEnd();
+    for (NSCNode.CaseNode stateCase : chunkCases)
+      addStateHandler("private static", className + " fsm, ", stateCase);
+    output += "}\n";
+  }
+
+  private void addStateHandler(String modifiers, String fsmParameter, NSCNode.CaseNode stateCase) {
+    output += String.format("%s %s %s(%s%s%s event) {\n",
+      modifiers, compareAndSet ? "boolean" : "void", handlerName(stateCase),
+      fsmParameter, compareAndSet ? "int state, " : instanceParameter(), eventType());
+    currentState = stateCase.caseName;
+    stateCase.caseActionNode.accept(this);
+    output += dispatchEnd();
+  }
+
+  private String dispatchSignature() {
+    if (compareAndSet)
+      return "private boolean processEvent(int state, int event)";
+    else
+      return String.format("%s void handleEvent(%s%s event)", flyweight ? "public" : "private", instanceParameter(), eventType());
+  }
+
+  private String dispatchEnd() {
+    return compareAndSet ? "return true;\n}\n" : "}\n";
+  }
+
+  private String handlerCall(NSCNode.CaseNode stateCase, String fsmArgument, String stateArgument) {
+    if (compareAndSet)
+      return String.format("return %s(%s%s, event);", handlerName(stateCase), fsmArgument, stateArgument);
+    else
+      return String.format("%s(%s%sevent); break;", handlerName(stateCase), fsmArgument, instanceArgument());
+  }
+
+  private String chunkCall(int chunk) {
+    if (compareAndSet)
+      return String.format("return StateHandlers%d.processEvent(this, s, event);", chunk);
+    else
+      return String.format("StateHandlers%d.handleEvent(this, %ss, event); break;", chunk, instanceArgument());
+  }
+
+  private List<NSCNode.CaseNode> stateCases(NSCNode.SwitchCaseNode stateSwitch) {
+    List<NSCNode.CaseNode> stateCases = new ArrayList<>();
+    for (NSCNode caseNode : stateSwitch.caseNodes)
+      stateCases.add((NSCNode.CaseNode) caseNode);
+    return stateCases;
+  }
+
+  private String handlerName(NSCNode.CaseNode stateCase) {
+    return "handle_" + stateCase.caseName;
+  }
+
   public void visit(NSCNode.EnumeratorNode enumeratorNode) {
-    output += String.format("%s.%s", enumeratorNode.enumeration, enumeratorNode.enumerator);
+    output += enumerator(enumeratorNode.enumeration, enumeratorNode.enumerator);
   }
 
   public void visit(NSCNode.DefaultCaseNode defaultCaseNode) {
-    output += "default: unhandledTransition(state.name(), event.name()); break;\n";
+    output += "default: ";
+    addUnhandled(defaultCaseNode);
+  }
+
+  // A superstate's handler returns whether it handled the event.
+  public void visit(NSCNode.HandlerNode handlerNode) {
+    output += String.format("private boolean %s(%s%s event) {\n",
+      superHandlerName(handlerNode), instanceParameter(), eventType());
+    output += "switch(event) {\n";
+    handlerNode.eventSwitch.generateCases(this);
+    output += "default: return false;\n";
+    output += "}\n";
+    output += "return true;\n";
+    output += "}\n";
+  }
+
+  // The instrumentation, compareAndSet and the batch's local state all need
+  // the substate, so the handler's cases are then rendered in the substate.
+  public void visit(NSCNode.DelegateNode delegateNode) {
+    if (!delegating || renderingBatch) {
+      output += "default:\n";
+      delegateNode.inlined().accept(this);
+      output += "break;\n";
+    } else {
+      output += String.format("default: if (%s%s(%sevent)) break;\n",
+        receiver, superHandlerName(delegateNode.handler), instanceArgument());
+      addUnhandled(delegateNode.defaultCase);
+    }
+  }
+
+  private String superHandlerName(NSCNode.HandlerNode handlerNode) {
+    return "super_" + handlerNode.superState;
+  }
+
+  private void addUnhandled(NSCNode.DefaultCaseNode defaultCaseNode) {
+    if (counters)
+      output += String.format("if (COUNTERS_ENABLED) UNHANDLED_COUNTS[%s * COUNTER_EVENTS + %s].increment();\n",
+        stateReceiver() + stateOrdinal(), eventOrdinal());
+    if (recorderSize > 0)
+      output += String.format("%srecordTransition((long) %d << 40 | (long) %s << 20 | UNHANDLED);\n",
+        receiver, states.indexOf(defaultCaseNode.state), eventOrdinal());
+    if (dumpOnUnhandled)
+      output += String.format("System.err.print(%sdumpFlightRecorder());\n", receiver);
+    if (jfrThreshold != null)
+      output += String.format("if (UNHANDLED_EVENT.isEnabled()) commitUnhandled(\"%s\", %s);\n",
+        defaultCaseNode.state, intStyle || renderingBatch ? nameOf("Event", "event") : "event.name()");
+    if (renderingBatch && !intStyle)
+      output += "unhandledTransition(state.name(), Event.values()[event].name()); break;\n";
+    else if (intStyle)
+      output += String.format("%sunhandledTransition(%sNames.STATES[%s], Names.EVENTS[event]); break;\n",
+        receiver, instanceArgument(), stateReceiver() + stateOrdinal());
+    else
+      output += String.format("%sunhandledTransition(%sstate.name(), event.name()); break;\n", receiver, stateReceiver());
+  }
+
+  private String enumerator(String enumeration, String enumerator) {
+    return String.format(intStyle ? "%s_%s" : "%s.%s", enumeration, enumerator);
+  }
+
+  private String stateType() {
+    return intStyle ? "int" : "State";
+  }
+
+  private String eventType() {
+    return intStyle ? "int" : "Event";
+  }
+
+  private String stateOrdinal() {
+    if (flyweight)
+      return "states[instanceId]";
+    return intStyle ? "state" : "state.ordinal()";
+  }
+
+  private String instanceParameter() {
+    return flyweight ? "int instanceId, " : "";
+  }
+
+  private String instanceArgument() {
+    return flyweight ? "instanceId, " : "";
+  }
+
+  private String eventOrdinal() {
+    return renderingBatch || intStyle ? "event" : "event.ordinal()";
+  }
+
+  private String stateReceiver() {
+    return compareAndSet ? "" : receiver;
   }
 
   public String getOutput() {
     return output;
   }
+
+  // A pessimistic estimate of the bytecode javac will produce for the nested
+  // switch, and of the constant pool entries the class will need.
+  private static class MethodSizeEstimator implements NSCNodeVisitor {
+    private int bytecodeSize = 0;
+    private Set<String> constants = new HashSet<>();
+    private int stateCount = 0;
+
+    MethodSizeEstimator(NSCNode.SwitchCaseNode stateSwitch) {
+      stateCount = stateSwitch.caseNodes.size();
+      stateSwitch.accept(this);
+    }
+
+    boolean isHuge() {
+      return bytecodeSize > HUGE_METHOD_LIMIT;
+    }
+
+    boolean exceedsConstantPool() {
+      return constantPoolEntries() > CONSTANT_POOL_LIMIT / 2;
+    }
+
+    int constantPoolChunks() {
+      return Math.max(1, (2 * constantPoolEntries() + CONSTANT_POOL_LIMIT - 1) / CONSTANT_POOL_LIMIT);
+    }
+
+    private int constantPoolEntries() {
+      return 4 * constants.size() + 4 * stateCount;
+    }
+
+    public void visit(NSCNode.SwitchCaseNode switchCaseNode) {
+      bytecodeSize += 24 + 4 * switchCaseNode.caseNodes.size();
+      switchCaseNode.generateCases(this);
+    }
+
+    public void visit(NSCNode.CaseNode caseNode) {
+      bytecodeSize += 3;
+      constants.add(caseNode.switchName + "." + caseNode.caseName);
+      caseNode.caseActionNode.accept(this);
+    }
+
+    public void visit(NSCNode.FunctionCallNode functionCallNode) {
+      bytecodeSize += 9;
+      constants.add(functionCallNode.functionName + "()");
+      if (functionCallNode.argument != null)
+        functionCallNode.argument.accept(this);
+    }
+
+    public void visit(NSCNode.EnumeratorNode enumeratorNode) {
+      constants.add(enumeratorNode.enumeration + "." + enumeratorNode.enumerator);
+    }
+
+    public void visit(NSCNode.DefaultCaseNode defaultCaseNode) {
+      bytecodeSize += 18;
+    }
+
+    public void visit(NSCNode.ChoiceNode choiceNode) {
+      bytecodeSize += 33 + 4 * choiceNode.branches.size();
+      constants.add(choiceNode.decision + "()");
+      for (NSCNode branch : choiceNode.branches)
+        branch.accept(this);
+      choiceNode.defaultCase.accept(this);
+    }
+
+    public void visit(NSCNode.HandlerNode handlerNode) {
+    }
+
+    // The delegation may be rendered in place.
+    public void visit(NSCNode.DelegateNode delegateNode) {
+      delegateNode.inlined().accept(this);
+    }
+
+    public void visit(NSCNode.EnumNode enumNode) {
+    }
+
+    public void visit(NSCNode.StatePropertyNode statePropertyNode) {
+    }
+
+    public void visit(NSCNode.EventDelegatorsNode eventDelegatorsNode) {
+    }
+
+    public void visit(NSCNode.FSMClassNode fsmClassNode) {
+    }
+
+    public void visit(NSCNode.HandleEventNode handleEventNode) {
+    }
+  }
 }
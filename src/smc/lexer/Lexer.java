@@ -86,6 +86,9 @@ public class Lexer {
       case ":":
         collector.colon(lineNumber, position);
         break;
+      case "?":
+        collector.question(lineNumber, position);
+        break;
       default:
         return false;
     }
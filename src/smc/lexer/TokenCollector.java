@@ -9,6 +9,7 @@ public interface TokenCollector {
   void closedAngle(int line, int pos);
   void dash(int line, int pos);
   void colon(int line, int pos);
+  void question(int line, int pos);
   void name(String name, int line, int pos);
   void error(int line, int pos);
 }
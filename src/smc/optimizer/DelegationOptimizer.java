@@ -0,0 +1,149 @@
+package smc.optimizer;
+
+import smc.OptimizedStateMachine;
+
+import java.util.*;
+
+import static smc.OptimizedStateMachine.SubTransition;
+import static smc.OptimizedStateMachine.Transition;
+
+// Moves the transitions that the substates of a superstate share out of the
+// substates, and into a handler of the superstate's own.  The Optimizer
+// copies every inherited transition into every concrete substate, so a wide
+// hierarchy otherwise generates a case for every substate and every inherited
+// event.  A substate that delegates to a handler keeps the cases it does not
+// share, and passes every other event to the handler in its default case.
+//
+// Whether a superstate gets a handler is decided superstate by superstate, by
+// estimating the size of the code with and without it: a case costs its next
+// state and each of its actions, and a handler and each delegation cost a
+// call.  Each substate delegates to one handler at most; the superstates that
+// save the most are chosen first.
+//
+// The subtransitions are compared after flattening, so a substate that
+// overrides an inherited event, or whose inherited transition leads to
+// itself, keeps its own case.  Choices stay in the substates.
+
+public class DelegationOptimizer {
+  static final int CASE_COST = 2;
+  static final int DELEGATION_COST = 2;
+  static final int HANDLER_COST = 4;
+
+  private OptimizedStateMachine sm;
+  private Set<String> delegating;
+
+  public OptimizedStateMachine optimize(OptimizedStateMachine sm) {
+    this.sm = sm;
+    delegating = new HashSet<>();
+    for (Candidate best = bestCandidate(); best != null; best = bestCandidate())
+      best.delegate();
+    return sm;
+  }
+
+  private Candidate bestCandidate() {
+    Candidate best = null;
+    for (String superState : superStates()) {
+      if (sm.handler(superState) != null)
+        continue;
+      Candidate candidate = new Candidate(superState);
+      if (candidate.savings() > 0 && (best == null || candidate.savings() > best.savings()))
+        best = candidate;
+    }
+    return best;
+  }
+
+  private Set<String> superStates() {
+    Set<String> superStates = new TreeSet<>();
+    for (Transition t : sm.transitions)
+      superStates.addAll(t.superStates);
+    return superStates;
+  }
+
+  static int cost(SubTransition st) {
+    return CASE_COST + st.actions.size();
+  }
+
+  private class Candidate {
+    private String superState;
+    private List<Transition> substates = new ArrayList<>();
+    private Map<String, SubTransition> shared = new LinkedHashMap<>();
+    private Map<String, Integer> sharers = new HashMap<>();
+
+    Candidate(String superState) {
+      this.superState = superState;
+      for (Transition t : sm.transitions)
+        if (t.superStates.contains(superState) && !delegating.contains(t.currentState))
+          substates.add(t);
+      if (substates.size() > 1)
+        findSharedSubTransitions();
+    }
+
+    // An event can only be delegated if every substate handles it, or the
+    // handler would handle it for a substate that does not.
+    private void findSharedSubTransitions() {
+      for (SubTransition st : substates.get(0).subTransitions) {
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, SubTransition> outcomes = new LinkedHashMap<>();
+        for (Transition t : substates) {
+          SubTransition own = subTransition(t, st.event);
+          if (own == null || own.decision != null) {
+            outcomes.clear();
+            break;
+          }
+          outcomes.putIfAbsent(own.toString(), own);
+          counts.merge(own.toString(), 1, Integer::sum);
+        }
+        String common = null;
+        for (String outcome : outcomes.keySet())
+          if (common == null || counts.get(outcome) > counts.get(common))
+            common = outcome;
+        if (common != null && counts.get(common) > 1) {
+          shared.put(st.event, outcomes.get(common));
+          sharers.put(st.event, counts.get(common));
+        }
+      }
+    }
+
+    int savings() {
+      int savings = -HANDLER_COST;
+      for (String event : shared.keySet())
+        savings += (sharers.get(event) - 1) * cost(shared.get(event));
+      return savings - DELEGATION_COST * delegators().size();
+    }
+
+    private List<Transition> delegators() {
+      List<Transition> delegators = new ArrayList<>();
+      for (Transition t : substates)
+        for (SubTransition st : t.subTransitions)
+          if (isShared(st)) {
+            delegators.add(t);
+            break;
+          }
+      return delegators;
+    }
+
+    private boolean isShared(SubTransition st) {
+      SubTransition common = shared.get(st.event);
+      return common != null && common.toString().equals(st.toString());
+    }
+
+    void delegate() {
+      Transition handler = new Transition();
+      handler.currentState = superState;
+      handler.subTransitions.addAll(shared.values());
+      for (Transition t : delegators()) {
+        t.subTransitions.removeIf(this::isShared);
+        t.delegate = superState;
+        delegating.add(t.currentState);
+      }
+      sm.handlers.add(handler);
+    }
+  }
+
+  private static SubTransition subTransition(Transition t, String event) {
+    for (SubTransition st : t.subTransitions)
+      if (st.event.equals(event))
+        return st;
+    return null;
+  }
+}
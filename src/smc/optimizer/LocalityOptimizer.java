@@ -0,0 +1,150 @@
+package smc.optimizer;
+
+import smc.OptimizedStateMachine;
+
+import java.util.*;
+
+import static smc.OptimizedStateMachine.SubTransition;
+import static smc.OptimizedStateMachine.Transition;
+
+// Renumbers the states and events of an optimized state machine so that the
+// enumerators that are used together end up next to each other.  States are
+// ordered breadth first from the initial state, following the heaviest
+// transitions first.  Events are ordered by how heavily they are used.
+// Without a profile every transition weighs the same; with a profile (a map of
+// "state.event" to a firing count) the hot transitions come first.
+
+public class LocalityOptimizer {
+  private OptimizedStateMachine sm;
+  private Map<String, Long> profile;
+  private Map<String, Transition> transitionsByState;
+
+  public OptimizedStateMachine optimize(OptimizedStateMachine sm) {
+    return optimize(sm, new HashMap<>());
+  }
+
+  public OptimizedStateMachine optimize(OptimizedStateMachine sm, Map<String, Long> profile) {
+    this.sm = sm;
+    this.profile = profile;
+    transitionsByState = new HashMap<>();
+    for (Transition t : sm.transitions)
+      transitionsByState.put(t.currentState, t);
+
+    sortSubTransitionsByWeight();
+    List<String> states = orderStates();
+    List<String> events = orderEvents(states);
+    sm.states = states;
+    sm.events = events;
+    sm.transitions = orderTransitions(states);
+    return sm;
+  }
+
+  // Blank lines and lines starting with # are skipped.  Any other line must
+  // name a state and an event of the machine and give a count; the first line
+  // that does not is thrown as a ProfileError, so that a typo cannot quietly
+  // turn the profile off.
+  public static Map<String, Long> parseProfile(String path, String profileText, OptimizedStateMachine sm) {
+    Map<String, Long> profile = new HashMap<>();
+    String[] lines = profileText.split("\n");
+    for (int lineNumber = 1; lineNumber <= lines.length; lineNumber++) {
+      String line = lines[lineNumber - 1].trim();
+      if (line.isEmpty() || line.startsWith("#"))
+        continue;
+      String[] fields = line.split("\\s+");
+      if (fields.length != 3)
+        throw new ProfileError(ProfileError.Type.MALFORMED_LINE, path, lineNumber, line);
+      if (!sm.states.contains(fields[0]))
+        throw new ProfileError(ProfileError.Type.UNKNOWN_STATE, path, lineNumber, fields[0]);
+      if (!sm.events.contains(fields[1]))
+        throw new ProfileError(ProfileError.Type.UNKNOWN_EVENT, path, lineNumber, fields[1]);
+      profile.merge(fields[0] + "." + fields[1], parseCount(path, lineNumber, fields[2]), Long::sum);
+    }
+    return profile;
+  }
+
+  private static long parseCount(String path, int lineNumber, String token) {
+    try {
+      return Long.parseLong(token);
+    } catch (NumberFormatException e) {
+      throw new ProfileError(ProfileError.Type.BAD_COUNT, path, lineNumber, token);
+    }
+  }
+
+  public static class ProfileError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public Type type;
+    public String path;
+    public int lineNumber;
+    public String token;
+
+    public ProfileError(Type type, String path, int lineNumber, String token) {
+      super(String.format("Profile Error File: %s, Line: %d.  (%s) %s", path, lineNumber, type.name(), token));
+      this.type = type;
+      this.path = path;
+      this.lineNumber = lineNumber;
+      this.token = token;
+    }
+
+    public enum Type {MALFORMED_LINE, UNKNOWN_STATE, UNKNOWN_EVENT, BAD_COUNT}
+  }
+
+  private void sortSubTransitionsByWeight() {
+    for (Transition t : sm.transitions)
+      t.subTransitions.sort((st1, st2) -> Long.compare(weight(t, st2), weight(t, st1)));
+  }
+
+  private long weight(Transition t, SubTransition st) {
+    return 1 + profile.getOrDefault(t.currentState + "." + st.event, 0L);
+  }
+
+  private List<String> orderStates() {
+    List<String> orderedStates = new ArrayList<>();
+    Set<String> reached = new HashSet<>();
+    Deque<String> frontier = new ArrayDeque<>();
+    reach(sm.header.initial, reached, frontier);
+    while (!frontier.isEmpty()) {
+      String state = frontier.remove();
+      orderedStates.add(state);
+      Transition t = transitionsByState.get(state);
+      if (t != null)
+        for (SubTransition st : t.subTransitions)
+          for (String nextState : st.nextStates())
+            reach(nextState, reached, frontier);
+    }
+    for (String state : sm.states)
+      if (!reached.contains(state))
+        orderedStates.add(state);
+    return orderedStates;
+  }
+
+  private void reach(String state, Set<String> reached, Deque<String> frontier) {
+    if (sm.states.contains(state) && reached.add(state))
+      frontier.add(state);
+  }
+
+  private List<String> orderEvents(List<String> orderedStates) {
+    Map<String, Long> eventWeights = new LinkedHashMap<>();
+    for (String state : orderedStates) {
+      Transition t = transitionsByState.get(state);
+      if (t != null)
+        for (SubTransition st : t.subTransitions)
+          eventWeights.merge(st.event, weight(t, st), Long::sum);
+    }
+
+    List<String> orderedEvents = new ArrayList<>(eventWeights.keySet());
+    orderedEvents.sort((e1, e2) -> Long.compare(eventWeights.get(e2), eventWeights.get(e1)));
+    for (String event : sm.events)
+      if (!eventWeights.containsKey(event))
+        orderedEvents.add(event);
+    return orderedEvents;
+  }
+
+  private List<Transition> orderTransitions(List<String> orderedStates) {
+    List<Transition> orderedTransitions = new ArrayList<>();
+    for (String state : orderedStates)
+      if (transitionsByState.containsKey(state))
+        orderedTransitions.add(transitionsByState.get(state));
+    return orderedTransitions;
+  }
+}
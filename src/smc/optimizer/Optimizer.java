@@ -12,9 +12,19 @@ import static smc.semanticAnalyzer.SemanticStateMachine.SemanticTransition;
 public class Optimizer {
   private OptimizedStateMachine optimizedStateMachine;
   private SemanticStateMachine semanticStateMachine;
+  private boolean entryExitFunctions;
 
   public OptimizedStateMachine optimize(SemanticStateMachine ast) {
+    return optimize(ast, false);
+  }
+
+  // With entryExitFunctions, a transition calls enter_<state> and
+  // exit_<state> instead of holding the whole entry and exit chains; the
+  // functions are defined in the optimized state machine.  A chain of one
+  // action is still called directly.
+  public OptimizedStateMachine optimize(SemanticStateMachine ast, boolean entryExitFunctions) {
     this.semanticStateMachine = ast;
+    this.entryExitFunctions = entryExitFunctions;
     optimizedStateMachine = new OptimizedStateMachine();
     addHeader(ast);
     addLists();
@@ -24,10 +34,15 @@ public class Optimizer {
 
   private void addTransitions() {
     for (SemanticState s : semanticStateMachine.states.values())
-      if (!s.abstractState)
+      if (isConcrete(s))
         new StateOptimizer(s).addTransitionsForState();
   }
 
+  // Choice states are never entered, so they are not states of the machine.
+  private boolean isConcrete(SemanticState s) {
+    return !s.abstractState && s.decision == null;
+  }
+
   private class StateOptimizer {
     private SemanticState currentState;
     private Set<String> eventsForThisState = new HashSet<>();
@@ -39,10 +54,17 @@ public class Optimizer {
     private void addTransitionsForState() {
       Transition transition = new Transition();
       transition.currentState = currentState.name;
+      addSuperStates(transition);
       addSubTransitions(transition);
       optimizedStateMachine.transitions.add(transition);
     }
 
+    private void addSuperStates(Transition transition) {
+      for (SemanticState stateInHierarchy : makeRootFirstHierarchyOfStates())
+        if (stateInHierarchy != currentState)
+          transition.superStates.add(stateInHierarchy.name);
+    }
+
     private void addSubTransitions(Transition transition) {
       for (SemanticState stateInHierarchy : makeRootFirstHierarchyOfStates())
         addStateTransitions(transition, stateInHierarchy);
@@ -84,26 +106,70 @@ public class Optimizer {
 
       public void optimize() {
         subTransition.event = semanticTransition.event;
-        subTransition.nextState = semanticTransition.nextState.name;
-        addExitActions(currentState);
-        addEntryActions(semanticTransition.nextState);
-        subTransition.actions.addAll(semanticTransition.actions);
+        addStep(subTransition, new ArrayList<>(), currentState, concreteNextState(), semanticTransition.actions);
+      }
+
+      // A '*' or '-' names the state the transition is written in.  In a
+      // concrete super state that is the super state itself, which substates
+      // inherit as it is.  An abstract state is not a state of the optimized
+      // machine, and cannot be named as a next state, so an abstract next state
+      // is always such an implicit one; it means the state that inherited it.
+      private SemanticState concreteNextState() {
+        if (semanticTransition.nextState.abstractState)
+          return currentState;
+        return semanticTransition.nextState;
       }
 
-      private void addEntryActions(SemanticState entryState) {
+      // A transition into a choice state is folded with each of the choice's
+      // branches: the branch runs the actions of the step into the choice,
+      // then those of its own step out of it, and goes straight to its target.
+      private void addStep(SubTransition step, List<String> actionsSoFar, SemanticState from, SemanticState to,
+                           List<String> stepActions) {
+        step.actions.addAll(actionsSoFar);
+        addExitActions(step, from);
+        addEntryActions(step, to);
+        step.actions.addAll(stepActions);
+        if (to.decision == null) {
+          step.nextState = to.name;
+          return;
+        }
+        step.decision = to.decision;
+        for (SemanticTransition branchTransition : to.transitions) {
+          SubTransition branch = new SubTransition();
+          branch.event = branchTransition.event;
+          addStep(branch, step.actions, to, branchTransition.nextState, branchTransition.actions);
+          step.branches.add(branch);
+        }
+        step.actions.clear();
+      }
+
+      private void addEntryActions(SubTransition step, SemanticState entryState) {
         List<SemanticState> hierarchy = new ArrayList<>();
         addAllStatesInHiearchyLeafFirst(entryState, hierarchy);
+        List<String> entryActions = new ArrayList<>();
         for (SemanticState superState : hierarchy) {
-          subTransition.actions.addAll(superState.entryActions);
+          entryActions.addAll(superState.entryActions);
         }
+        addChain(step, "enter_" + entryState.name, entryActions);
       }
 
-      private void addExitActions(SemanticState exitState) {
+      private void addExitActions(SubTransition step, SemanticState exitState) {
         List<SemanticState> hierarchy = new ArrayList<>();
         addAllStatesInHiearchyLeafFirst(exitState, hierarchy);
         Collections.reverse(hierarchy);
+        List<String> exitActions = new ArrayList<>();
         for (SemanticState superState : hierarchy) {
-          subTransition.actions.addAll(superState.exitActions);
+          exitActions.addAll(superState.exitActions);
+        }
+        addChain(step, "exit_" + exitState.name, exitActions);
+      }
+
+      private void addChain(SubTransition step, String functionName, List<String> chain) {
+        if (!entryExitFunctions || chain.size() < 2)
+          step.actions.addAll(chain);
+        else {
+          optimizedStateMachine.entryExitFunctions.put(functionName, chain);
+          step.actions.add(functionName);
         }
       }
     } // SubTransitionOptimizer
@@ -128,11 +194,12 @@ public class Optimizer {
     addStates();
     addEvents();
     addActions();
+    addDecisions();
   }
 
   private void addStates() {
     for (SemanticState s : semanticStateMachine.states.values())
-      if (!s.abstractState)
+      if (isConcrete(s))
         optimizedStateMachine.states.add(s.name);
   }
 
@@ -143,4 +210,8 @@ public class Optimizer {
   private void addActions() {
     optimizedStateMachine.actions.addAll(semanticStateMachine.actions);
   }
+
+  private void addDecisions() {
+    optimizedStateMachine.decisions.addAll(semanticStateMachine.decisions);
+  }
 }
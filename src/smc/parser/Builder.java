@@ -11,6 +11,7 @@ public interface Builder {
   void setEntryAction();
   void setExitAction();
   void setStateBase();
+  void setDecision();
   void setNextState();
   void setNullNextState();
   void transitionWithAction();
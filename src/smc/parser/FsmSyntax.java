@@ -52,6 +52,7 @@ public class FsmSyntax {
     public List<String> entryActions = new ArrayList<>();
     public List<String> exitActions = new ArrayList<>();
     public boolean abstractState;
+    public String decision;
   }
 
   public static class SubTransition {
@@ -132,6 +133,8 @@ public class FsmSyntax {
       stateName += " <" + entryAction;
     for (String exitAction : stateSpec.exitActions)
       stateName += " >" + exitAction;
+    if (stateSpec.decision != null)
+      stateName += " ?" + stateSpec.decision;
     return stateName;
   }
 
@@ -16,10 +16,12 @@ package smc.parser;
 <state-modifier>  ::= ":" <state>
                   |   "<" <action-spec>
                   |   ">" <action-spec>
+                  |   "?" <decision>
 
 <next-state> ::= <state> | "-"
 <event-spec> :: <event> | "-"
 <action> ::= <name>
+<decision> ::= <name>
 <state> ::= <name>
 <event> ::= <name>
 */
@@ -71,6 +73,10 @@ public class Parser implements TokenCollector {
     handleEvent(COLON, line, pos);
   }
 
+  public void question(int line, int pos) {
+    handleEvent(QUESTION, line, pos);
+  }
+
   public void name(String name, int line, int pos) {
     builder.setName(name);
     handleEvent(NAME, line, pos);
@@ -108,6 +114,7 @@ public class Parser implements TokenCollector {
     new Transition(STATE_MODIFIER, OPEN_ANGLE, ENTRY_ACTION, null),
     new Transition(STATE_MODIFIER, CLOSED_ANGLE, EXIT_ACTION, null),
     new Transition(STATE_MODIFIER, COLON, STATE_BASE, null),
+    new Transition(STATE_MODIFIER, QUESTION, DECISION, null),
     new Transition(STATE_MODIFIER, NAME, SINGLE_EVENT, t -> t.setEvent()),
     new Transition(STATE_MODIFIER, DASH, SINGLE_EVENT, t -> t.setNullEvent()),
     new Transition(STATE_MODIFIER, OPEN_BRACE, SUBTRANSITION_GROUP, null),
@@ -120,6 +127,7 @@ public class Parser implements TokenCollector {
     new Transition(MULTIPLE_EXIT_ACTIONS, NAME, MULTIPLE_EXIT_ACTIONS, t -> t.setExitAction()),
     new Transition(MULTIPLE_EXIT_ACTIONS, CLOSED_BRACE, STATE_MODIFIER, null),
     new Transition(STATE_BASE, NAME, STATE_MODIFIER, t -> t.setStateBase()),
+    new Transition(DECISION, NAME, STATE_MODIFIER, t -> t.setDecision()),
     new Transition(SINGLE_EVENT, NAME, SINGLE_NEXT_STATE, t -> t.setNextState()),
     new Transition(SINGLE_EVENT, DASH, SINGLE_NEXT_STATE, t -> t.setNullNextState()),
     new Transition(SINGLE_NEXT_STATE, NAME, STATE_SPEC, t -> t.transitionWithAction()),
@@ -171,6 +179,7 @@ public class Parser implements TokenCollector {
       case EXIT_ACTION:
       case ENTRY_ACTION:
       case STATE_BASE:
+      case DECISION:
         builder.stateSpecError(state, event, line, pos);
         break;
 
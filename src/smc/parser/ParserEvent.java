@@ -10,5 +10,6 @@ public enum ParserEvent {
   CLOSED_ANGLE,
   DASH,
   EOF,
-  COLON
+  COLON,
+  QUESTION
 }
@@ -11,6 +11,7 @@ public enum ParserState {
   EXIT_ACTION,
   ENTRY_ACTION,
   STATE_BASE,
+  DECISION,
   SINGLE_EVENT,
   SINGLE_NEXT_STATE,
   SINGLE_ACTION_GROUP,
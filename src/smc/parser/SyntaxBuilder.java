@@ -60,6 +60,10 @@ public class SyntaxBuilder implements Builder {
     transition.state.superStates.add(parsedName);
   }
 
+  public void setDecision() {
+    transition.state.decision = parsedName;
+  }
+
   public void setNextState() {
     subtransition.nextState = parsedName;
   }
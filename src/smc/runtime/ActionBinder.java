@@ -0,0 +1,186 @@
+package smc.runtime;
+
+import java.lang.invoke.*;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
+
+import static java.lang.invoke.MethodType.methodType;
+
+// Binds action names to Runnables on an actions object, or to IntConsumers
+// for actions that take an instance id; decisions, which return the index of
+// a choice's branch, are bound to IntSuppliers or IntUnaryOperators.  The
+// method lookup and the LambdaMetafactory call happen once per actions type
+// and action; binding an instance then costs one small allocation per action,
+// and running an action is a plain interface call.  Types that cannot be
+// opened to a private lookup (classes in named modules, say) fall back to
+// bound MethodHandles.
+
+final class ActionBinder {
+  private static final ClassValue<Map<String, Function<Object, Object>>> binders =
+    new ClassValue<Map<String, Function<Object, Object>>>() {
+      protected Map<String, Function<Object, Object>> computeValue(Class<?> actionsType) {
+        return new ConcurrentHashMap<>();
+      }
+    };
+
+  private ActionBinder() {
+  }
+
+  static <A> Runnable[] bind(Class<A> actionsType, A actions, String[] actionNames) {
+    Runnable[] bound = new Runnable[actionNames.length];
+    for (int i = 0; i < actionNames.length; i++)
+      bound[i] = (Runnable) bind(actionsType, actions, actionNames[i], Runnable.class, "run", methodType(void.class));
+    return bound;
+  }
+
+  static <A> IntConsumer[] bindWithInstanceId(Class<A> actionsType, A actions, String[] actionNames) {
+    IntConsumer[] bound = new IntConsumer[actionNames.length];
+    for (int i = 0; i < actionNames.length; i++)
+      bound[i] = (IntConsumer) bind(actionsType, actions, actionNames[i], IntConsumer.class, "accept", methodType(void.class, int.class));
+    return bound;
+  }
+
+  static <A> IntSupplier[] bindDecisions(Class<A> actionsType, A actions, String[] decisionNames) {
+    IntSupplier[] bound = new IntSupplier[decisionNames.length];
+    for (int i = 0; i < decisionNames.length; i++)
+      bound[i] = (IntSupplier) bind(actionsType, actions, decisionNames[i], IntSupplier.class, "getAsInt", methodType(int.class));
+    return bound;
+  }
+
+  static <A> IntUnaryOperator[] bindDecisionsWithInstanceId(Class<A> actionsType, A actions, String[] decisionNames) {
+    IntUnaryOperator[] bound = new IntUnaryOperator[decisionNames.length];
+    for (int i = 0; i < decisionNames.length; i++)
+      bound[i] = (IntUnaryOperator) bind(actionsType, actions, decisionNames[i], IntUnaryOperator.class, "applyAsInt",
+        methodType(int.class, int.class));
+    return bound;
+  }
+
+  private static Object bind(Class<?> actionsType, Object actions, String action,
+                             Class<?> functionalInterface, String functionName, MethodType functionType) {
+    if (!actionsType.isInstance(actions))
+      throw new IllegalArgumentException(actions + " is not a " + actionsType.getName());
+    return binders.get(actionsType)
+      .computeIfAbsent(action + functionType.toMethodDescriptorString(),
+        key -> binder(actionsType, action, functionalInterface, functionName, functionType))
+      .apply(actions);
+  }
+
+  private static Function<Object, Object> binder(Class<?> actionsType, String action,
+                                                 Class<?> functionalInterface, String functionName, MethodType functionType) {
+    MethodHandle implementation = findAction(actionsType, action, functionType);
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(actionsType, MethodHandles.lookup());
+      MethodHandle factory = LambdaMetafactory.metafactory(lookup, functionName,
+        methodType(functionalInterface, actionsType), functionType, implementation, functionType)
+        .getTarget().asType(methodType(Object.class, Object.class));
+      return actions -> {
+        try {
+          return factory.invokeExact(actions);
+        } catch (Throwable e) {
+          throw new IllegalStateException(e);
+        }
+      };
+    } catch (IllegalAccessException | LambdaConversionException e) {
+      if (functionalInterface == Runnable.class)
+        return actions -> new BoundAction(implementation.bindTo(actions));
+      if (functionalInterface == IntConsumer.class)
+        return actions -> new BoundInstanceAction(implementation.bindTo(actions));
+      if (functionalInterface == IntSupplier.class)
+        return actions -> new BoundDecision(implementation.bindTo(actions));
+      return actions -> new BoundInstanceDecision(implementation.bindTo(actions));
+    }
+  }
+
+  private static MethodHandle findAction(Class<?> actionsType, String action, MethodType functionType) {
+    String signature = String.format("%s.%s(%s)", actionsType.getName(), action,
+      functionType.parameterCount() == 0 ? "" : "int");
+    try {
+      Method method = actionsType.getMethod(action, functionType.parameterArray());
+      if (method.getReturnType() != functionType.returnType())
+        throw new IllegalArgumentException(signature + " must return " + functionType.returnType());
+      return MethodHandles.publicLookup().unreflect(method);
+    } catch (NoSuchMethodException e) {
+      throw new IllegalArgumentException(signature + " does not exist");
+    } catch (IllegalAccessException e) {
+      throw new IllegalArgumentException(signature + " is not accessible");
+    }
+  }
+
+  private static final class BoundAction implements Runnable {
+    private final MethodHandle action;
+
+    BoundAction(MethodHandle action) {
+      this.action = action;
+    }
+
+    public void run() {
+      try {
+        action.invokeExact();
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new UndeclaredThrowableException(e);
+      }
+    }
+  }
+
+  private static final class BoundInstanceAction implements IntConsumer {
+    private final MethodHandle action;
+
+    BoundInstanceAction(MethodHandle action) {
+      this.action = action;
+    }
+
+    public void accept(int instanceId) {
+      try {
+        action.invokeExact(instanceId);
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new UndeclaredThrowableException(e);
+      }
+    }
+  }
+
+  private static final class BoundDecision implements IntSupplier {
+    private final MethodHandle decision;
+
+    BoundDecision(MethodHandle decision) {
+      this.decision = decision;
+    }
+
+    public int getAsInt() {
+      try {
+        return (int) decision.invokeExact();
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new UndeclaredThrowableException(e);
+      }
+    }
+  }
+
+  private static final class BoundInstanceDecision implements IntUnaryOperator {
+    private final MethodHandle decision;
+
+    BoundInstanceDecision(MethodHandle decision) {
+      this.decision = decision;
+    }
+
+    public int applyAsInt(int instanceId) {
+      try {
+        return (int) decision.invokeExact(instanceId);
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new UndeclaredThrowableException(e);
+      }
+    }
+  }
+}
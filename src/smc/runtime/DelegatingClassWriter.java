@@ -0,0 +1,121 @@
+package smc.runtime;
+
+import smc.classFile.Bytecode;
+import smc.classFile.ClassFileWriter;
+
+import java.util.List;
+
+import static smc.classFile.ClassFileWriter.*;
+
+// Writes the concrete subclass of a state machine generated by the ClassFile
+// backend.  Its actions, decisions and unhandledTransition delegate to the
+// objects passed to its constructor, and handleEvent(int) calls the event
+// method with that index.
+
+class DelegatingClassWriter {
+  private static final String UNHANDLED = "java/util/function/BiConsumer";
+  private static final String UNHANDLED_METHOD = "(Ljava/lang/String;Ljava/lang/String;)V";
+
+  private final String className;
+  private final String superName;
+  private final String actionsName;
+  private final ClassFileWriter classFile;
+
+  DelegatingClassWriter(String className, String superName, Class<?> actionsInterface) {
+    this.className = className;
+    this.superName = superName;
+    actionsName = actionsInterface.getName().replace('.', '/');
+    classFile = new ClassFileWriter(ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, superName);
+    classFile.addInterface(StateMachine.class.getName().replace('.', '/'));
+    classFile.addField(ACC_PRIVATE | ACC_FINAL, "actions", "L" + actionsName + ";");
+    classFile.addField(ACC_PRIVATE | ACC_FINAL, "unhandled", "L" + UNHANDLED + ";");
+  }
+
+  byte[] write(List<String> actions, List<String> decisions, List<String> events) {
+    addConstructor();
+    for (String action : actions)
+      addAction(action);
+    for (String decision : decisions)
+      addDecision(decision);
+    addUnhandledTransition();
+    addHandleEvent(events);
+    return classFile.toByteArray();
+  }
+
+  private void addConstructor() {
+    Bytecode code = new Bytecode(classFile, 3);
+    code.aload(0);
+    code.invokeSpecial(superName, "<init>", "()V");
+    code.aload(0);
+    code.aload(1);
+    code.putField(className, "actions", "L" + actionsName + ";");
+    code.aload(0);
+    code.aload(2);
+    code.putField(className, "unhandled", "L" + UNHANDLED + ";");
+    code.returnVoid();
+    classFile.addMethod(ACC_PUBLIC, "<init>", String.format("(L%s;L%s;)V", actionsName, UNHANDLED), code);
+  }
+
+  private void addAction(String action) {
+    Bytecode code = new Bytecode(classFile, 1);
+    code.aload(0);
+    code.getField(className, "actions", "L" + actionsName + ";");
+    code.invokeInterface(actionsName, action, "()V");
+    code.returnVoid();
+    classFile.addMethod(ACC_PROTECTED, action, "()V", code);
+  }
+
+  private void addDecision(String decision) {
+    Bytecode code = new Bytecode(classFile, 1);
+    code.aload(0);
+    code.getField(className, "actions", "L" + actionsName + ";");
+    code.invokeInterface(actionsName, decision, "()I");
+    code.returnInt();
+    classFile.addMethod(ACC_PROTECTED, decision, "()I", code);
+  }
+
+  private void addUnhandledTransition() {
+    Bytecode code = new Bytecode(classFile, 3);
+    code.aload(0);
+    code.getField(className, "unhandled", "L" + UNHANDLED + ";");
+    code.aload(1);
+    code.aload(2);
+    code.invokeInterface(UNHANDLED, "accept", "(Ljava/lang/Object;Ljava/lang/Object;)V");
+    code.returnVoid();
+    classFile.addMethod(ACC_PUBLIC, "unhandledTransition", UNHANDLED_METHOD, code);
+  }
+
+  // A code outside the event range throws IllegalArgumentException, as the
+  // interpreted state machines do.
+  private void addHandleEvent(List<String> events) {
+    Bytecode code = new Bytecode(classFile, 2);
+    if (!events.isEmpty()) {
+      code.iload(1);
+      Bytecode.TableSwitch eventSwitch = code.tableSwitch(0, events.size() - 1);
+      for (int i = 0; i < events.size(); i++) {
+        eventSwitch.bindCase(i);
+        code.emptyStack();
+        code.aload(0);
+        code.invokeVirtual(superName, events.get(i), "()V");
+        code.returnVoid();
+      }
+      eventSwitch.bindDefault();
+      code.emptyStack();
+    }
+    addThrowNoSuchEvent(code);
+    classFile.addMethod(ACC_PUBLIC, "handleEvent", "(I)V", code);
+  }
+
+  // throw new IllegalArgumentException("<name> has no event code " + event)
+  private void addThrowNoSuchEvent(Bytecode code) {
+    String exception = "java/lang/IllegalArgumentException";
+    code.newObject(exception);
+    code.dup();
+    code.pushString(superName.substring(superName.lastIndexOf('/') + 1) + " has no event code ");
+    code.iload(1);
+    code.invokeStatic("java/lang/Integer", "toString", "(I)Ljava/lang/String;");
+    code.invokeVirtual("java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;");
+    code.invokeSpecial(exception, "<init>", "(Ljava/lang/String;)V");
+    code.throwException();
+  }
+}
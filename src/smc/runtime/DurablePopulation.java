@@ -0,0 +1,273 @@
+package smc.runtime;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+
+// A population of instances whose transitions survive crashes.  Handling an
+// event appends the transition to an EventLog, and sets the next state and
+// runs the actions only once the log has made the transition durable.  The
+// transition is chosen and logged under one lock, so the log holds the
+// transitions of each instance in the order they were taken; the force to
+// disk happens outside it, shared by every thread that logged meanwhile.  The
+// decisions of a choice are made under the lock too.
+//
+// Until its record is durable, a transition waits in a queue of pending
+// transitions, in log order, and the next event for its instance starts from
+// the pending state, which is kept by instance so that finding it does not
+// depend on how long the queue is.  Each sync moves the transitions it made
+// durable into the store.  If the log fails, the transitions that are not
+// durable are dropped, so the store only ever holds durable states.
+//
+// Actions run after the sync, outside the lock, on the thread that handled
+// the event.  So when two threads send events to the same instance, their
+// transitions are logged and stored in order, but their actions may run in
+// either order, or at the same time.  Callers that need the actions of an
+// instance in log order must send its events from one thread, such as the
+// shard of a ShardedExecutor.  The population does not wait for the earlier
+// actions itself, since an action that sends an event to its own instance
+// would then wait for itself.
+//
+// checkpoint writes a Snapshot of the states, named after the last sequence
+// number it holds, and deletes the older snapshots and the log segments it
+// covers.  Opening the population restores the latest snapshot and replays
+// the log after it.
+
+public class DurablePopulation<A> implements Closeable {
+  public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+  private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+  private final TransitionTable table;
+  private final StateStore store;
+  private final IntConsumer[] actions;
+  private final IntUnaryOperator[] decisions;
+  private final InterpretedPopulation.UnhandledTransition unhandledTransition;
+  private final Path directory;
+  private final EventLog log;
+  private long[] pending = new long[16];
+  private int pendingHead;
+  private int pendingCount;
+  private long firstPendingSequence;
+  private final Map<Integer, PendingState> pendingStates = new HashMap<>();
+
+  private DurablePopulation(TransitionTable table, StateStore store, Class<A> actionsType, A actions,
+                            InterpretedPopulation.UnhandledTransition unhandledTransition, Path directory, EventLog log) {
+    this.table = table;
+    this.store = store;
+    this.actions = ActionBinder.bindWithInstanceId(actionsType, actions, table.actions);
+    decisions = ActionBinder.bindDecisionsWithInstanceId(actionsType, actions, table.decisions);
+    this.unhandledTransition = unhandledTransition;
+    this.directory = directory;
+    this.log = log;
+    firstPendingSequence = log.lastSequence() + 1;
+  }
+
+  // Unhandled transitions throw IllegalStateException.
+  public static <A> DurablePopulation<A> open(Path directory, TransitionTable table, int instances,
+                                              Class<A> actionsType, A actions) throws IOException {
+    return open(directory, table, instances, actionsType, actions, (instanceId, state, event) -> {
+      throw new IllegalStateException(String.format("Unhandled transition: %s in state %s of instance %d", event, state, instanceId));
+    }, DEFAULT_SEGMENT_BYTES);
+  }
+
+  public static <A> DurablePopulation<A> open(Path directory, TransitionTable table, int instances,
+                                              Class<A> actionsType, A actions,
+                                              InterpretedPopulation.UnhandledTransition unhandledTransition,
+                                              long segmentBytes) throws IOException {
+    if (unhandledTransition == null)
+      throw new NullPointerException();
+    Files.createDirectories(directory);
+    Path snapshot = latestSnapshot(directory);
+    StateStore store;
+    long snapshotSequence;
+    if (snapshot == null) {
+      store = StateStore.allocate(instances, table.states.length);
+      store.fill(table.initialState);
+      snapshotSequence = 0;
+    } else {
+      store = Snapshot.restore(snapshot, table);
+      if (store.size() != instances)
+        throw new IOException(String.format("%s holds %d instances, not %d", snapshot, store.size(), instances));
+      snapshotSequence = snapshotSequence(snapshot);
+    }
+    EventLog log = EventLog.open(directory, table.getFingerprint(), segmentBytes, snapshotSequence,
+      (sequence, instanceId, event, state) -> store.set(instanceId, state));
+    return new DurablePopulation<>(table, store, actionsType, actions, unhandledTransition, directory, log);
+  }
+
+  private static Path latestSnapshot(Path directory) throws IOException {
+    Path latest = null;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SNAPSHOT_SUFFIX)) {
+      for (Path file : files)
+        if (latest == null || snapshotSequence(file) > snapshotSequence(latest))
+          latest = file;
+    }
+    return latest;
+  }
+
+  private static long snapshotSequence(Path snapshot) {
+    String name = snapshot.getFileName().toString();
+    return Long.parseLong(name.substring(0, name.length() - SNAPSHOT_SUFFIX.length()));
+  }
+
+  // Returns once the transition is durable and its actions have run.  A code
+  // outside the event range throws IllegalArgumentException and nothing is
+  // logged.  If the log fails, the transition is dropped, its actions do not
+  // run, and the failure is thrown.
+  public void handleEvent(int instanceId, int event) throws IOException {
+    table.checkEvent(event);
+    int state;
+    int nextState;
+    int actionSequence;
+    long sequence = 0;
+    synchronized (this) {
+      state = currentState(instanceId);
+      int cell = table.cell(state, event);
+      nextState = table.transitions[cell];
+      actionSequence = table.transitions[cell + 1];
+      if (nextState == TransitionTable.CHOICE) {
+        int branch = choose(instanceId, actionSequence);
+        nextState = branch < 0 ? TransitionTable.UNHANDLED : table.choicePool[branch];
+        actionSequence = branch < 0 ? 0 : table.choicePool[branch + 1];
+      }
+      if (nextState >= 0) {
+        sequence = log.append(instanceId, event, nextState);
+        addPending(instanceId, nextState);
+      }
+    }
+    if (nextState >= 0) {
+      sync(sequence);
+      runActions(instanceId, actionSequence);
+    } else if (nextState == TransitionTable.UNHANDLED)
+      unhandledTransition.unhandledTransition(instanceId, table.states[state], table.events[event]);
+  }
+
+  // The state of the instance's latest pending transition, if it has one.
+  private int currentState(int instanceId) {
+    PendingState pendingState = pendingStates.get(instanceId);
+    return pendingState == null ? store.get(instanceId) : pendingState.state;
+  }
+
+  private void addPending(int instanceId, int state) {
+    if (pendingCount == pending.length) {
+      long[] grown = new long[2 * pending.length];
+      for (int i = 0; i < pendingCount; i++)
+        grown[i] = pending[(pendingHead + i) & (pending.length - 1)];
+      pending = grown;
+      pendingHead = 0;
+    }
+    pending[(pendingHead + pendingCount++) & (pending.length - 1)] = (long) instanceId << 32 | state;
+    PendingState pendingState = pendingStates.computeIfAbsent(instanceId, id -> new PendingState());
+    pendingState.state = state;
+    pendingState.count++;
+  }
+
+  private void sync(long sequence) throws IOException {
+    try {
+      log.sync(sequence);
+    } catch (IOException e) {
+      synchronized (this) {
+        dropPending();
+      }
+      throw e;
+    }
+    synchronized (this) {
+      storeDurable(sequence);
+    }
+  }
+
+  // Moves the pending transitions up to the given sequence number into the
+  // store, in the order they were logged.
+  private void storeDurable(long sequence) {
+    while (pendingCount > 0 && firstPendingSequence <= sequence) {
+      long transition = pending[pendingHead];
+      int instanceId = (int) (transition >>> 32);
+      store.set(instanceId, (int) transition);
+      if (--pendingStates.get(instanceId).count == 0)
+        pendingStates.remove(instanceId);
+      pendingHead = (pendingHead + 1) & (pending.length - 1);
+      pendingCount--;
+      firstPendingSequence++;
+    }
+  }
+
+  // Another thread's sync may have made some of the transitions durable
+  // before the log failed; those are kept.
+  private void dropPending() {
+    storeDurable(log.durableSequence());
+    pendingHead = 0;
+    pendingCount = 0;
+    pendingStates.clear();
+    firstPendingSequence = log.lastSequence() + 1;
+  }
+
+  // The latest pending state of an instance, and how many of its transitions
+  // are pending.
+  private static class PendingState {
+    int state;
+    int count;
+  }
+
+  private int choose(int instanceId, int choice) {
+    while (true) {
+      int branch = table.branch(choice, decisions[table.decision(choice)].applyAsInt(instanceId));
+      if (branch < 0 || table.choicePool[branch] != TransitionTable.CHOICE)
+        return branch;
+      choice = table.choicePool[branch + 1];
+    }
+  }
+
+  private void runActions(int instanceId, int sequence) {
+    int[] pool = table.actionPool;
+    int end = sequence + pool[sequence];
+    for (int i = sequence + 1; i <= end; i++)
+      actions[pool[i]].accept(instanceId);
+  }
+
+  public void handleEvent(int instanceId, String event) throws IOException {
+    handleEvent(instanceId, table.eventCode(event));
+  }
+
+  // The snapshot is taken under the lock, once every transition logged so far
+  // is durable and in the store, so it holds exactly the transitions up to
+  // its sequence number.  Events wait for the checkpoint's force and write.
+  public void checkpoint() throws IOException {
+    long sequence;
+    Path snapshot;
+    synchronized (this) {
+      sequence = log.lastSequence();
+      if (sequence > 0)
+        sync(sequence);
+      snapshot = directory.resolve(String.format("%020d%s", sequence, SNAPSHOT_SUFFIX));
+      Snapshot.write(snapshot, table, store);
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SNAPSHOT_SUFFIX)) {
+      for (Path file : files)
+        if (snapshotSequence(file) < sequence)
+          Files.delete(file);
+    }
+    log.deleteThrough(sequence);
+  }
+
+  public String getState(int instanceId) {
+    return table.states[store.get(instanceId)];
+  }
+
+  public long lastSequence() {
+    return log.lastSequence();
+  }
+
+  public TransitionTable getTable() {
+    return table;
+  }
+
+  public void close() throws IOException {
+    log.close();
+  }
+}
@@ -0,0 +1,261 @@
+package smc.runtime;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// A write-ahead log of transitions: which instance took which event into
+// which state.  Every record gets the next sequence number.  The log is a
+// directory of segment files, each named after the sequence number of its
+// first record and headed by the fingerprint of the table that wrote it.
+//
+// Appending only copies the record into a buffer.  sync makes the records up
+// to a sequence number durable: the first thread to ask writes and forces
+// everything appended so far, while the threads that ask after it wait for
+// that write, or for the next one.  One force thus commits the records of
+// every thread that appended while the previous force was running.
+
+public final class EventLog implements Closeable {
+  public interface Replay {
+    void transition(long sequence, int instanceId, int event, int state);
+  }
+
+  static final int RECORD_BYTES = 24;
+  private static final int HEADER_BYTES = 16;
+  private static final int MAGIC = 0x534D434C;
+  private static final int FORMAT = 1;
+  private static final String SUFFIX = ".log";
+
+  private final Path directory;
+  private final long fingerprint;
+  private final long segmentBytes;
+  private final CRC32 crc = new CRC32();
+  private ByteBuffer pending = ByteBuffer.allocate(64 * RECORD_BYTES);
+  private ByteBuffer spare = ByteBuffer.allocate(64 * RECORD_BYTES);
+  private long nextSequence;
+  private long durableSequence;
+  private boolean flushing;
+  private IOException failure;
+  private FileChannel segment;
+
+  private EventLog(Path directory, long fingerprint, long segmentBytes, long lastSequence) {
+    this.directory = directory;
+    this.fingerprint = fingerprint;
+    this.segmentBytes = segmentBytes;
+    nextSequence = lastSequence + 1;
+    durableSequence = lastSequence;
+  }
+
+  // Replays the records after the given sequence number, and opens the log
+  // for appending after the last of them.  A record torn by a crash ends the
+  // log; it is cut off.
+  public static EventLog open(Path directory, long fingerprint, long segmentBytes,
+                              long afterSequence, Replay replay) throws IOException {
+    Files.createDirectories(directory);
+    List<Path> segments = segments(directory);
+    long lastSequence = afterSequence;
+    for (int i = 0; i < segments.size(); i++)
+      lastSequence = Math.max(lastSequence,
+        replaySegment(segments.get(i), fingerprint, afterSequence, replay, i == segments.size() - 1));
+    return new EventLog(directory, fingerprint, segmentBytes, lastSequence);
+  }
+
+  private static long replaySegment(Path file, long fingerprint, long afterSequence, Replay replay,
+                                    boolean last) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      if (last && channel.size() < HEADER_BYTES) {
+        channel.truncate(0);
+        return firstSequence(file) - 1;
+      }
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      readFully(channel, header, 0);
+      if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT)
+        throw new IOException(file + " is not a log segment");
+      if (header.getLong(8) != fingerprint)
+        throw new IOException(file + " was written by another definition of the state machine");
+
+      long sequence = firstSequence(file) - 1;
+      ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+      CRC32 crc = new CRC32();
+      long position = HEADER_BYTES;
+      for (; position + RECORD_BYTES <= channel.size(); position += RECORD_BYTES) {
+        readFully(channel, record, position);
+        crc.reset();
+        crc.update(record.array(), 0, RECORD_BYTES - 4);
+        if (record.getInt(RECORD_BYTES - 4) != (int) crc.getValue() || record.getLong(0) != sequence + 1)
+          break;
+        sequence++;
+        if (sequence > afterSequence)
+          replay.transition(sequence, record.getInt(8), record.getInt(12), record.getInt(16));
+      }
+      if (position < channel.size()) {
+        if (!last)
+          throw new IOException(file + " is corrupt at byte " + position);
+        channel.truncate(position);
+      }
+      return sequence;
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    buffer.clear();
+    while (buffer.hasRemaining())
+      if (channel.read(buffer, position + buffer.position()) < 0)
+        throw new IOException("unexpected end of file");
+  }
+
+  private static List<Path> segments(Path directory) throws IOException {
+    List<Path> segments = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+      for (Path file : files)
+        segments.add(file);
+    }
+    segments.sort((a, b) -> Long.compare(firstSequence(a), firstSequence(b)));
+    return segments;
+  }
+
+  private static long firstSequence(Path segment) {
+    String name = segment.getFileName().toString();
+    return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+  }
+
+  public synchronized long append(int instanceId, int event, int state) {
+    if (pending.remaining() < RECORD_BYTES) {
+      ByteBuffer grown = ByteBuffer.allocate(2 * pending.capacity());
+      pending.flip();
+      pending = grown.put(pending);
+    }
+    long sequence = nextSequence++;
+    int start = pending.position();
+    pending.putLong(sequence).putInt(instanceId).putInt(event).putInt(state);
+    crc.reset();
+    crc.update(pending.array(), start, RECORD_BYTES - 4);
+    pending.putInt((int) crc.getValue());
+    return sequence;
+  }
+
+  public synchronized long lastSequence() {
+    return nextSequence - 1;
+  }
+
+  public synchronized long durableSequence() {
+    return durableSequence;
+  }
+
+  public void sync(long sequence) throws IOException {
+    synchronized (this) {
+      if (sequence >= nextSequence)
+        throw new IllegalArgumentException(String.format("%d has not been appended", sequence));
+    }
+    while (true) {
+      ByteBuffer batch;
+      long batchEnd;
+      synchronized (this) {
+        while (true) {
+          if (failure != null)
+            throw new IOException("the log failed", failure);
+          if (durableSequence >= sequence)
+            return;
+          if (!flushing)
+            break;
+          waitForFlush();
+        }
+        flushing = true;
+        batch = pending;
+        batchEnd = nextSequence - 1;
+        pending = spare;
+        spare = null;
+      }
+
+      IOException error = null;
+      try {
+        write(batch, batchEnd);
+      } catch (IOException e) {
+        error = e;
+      }
+
+      synchronized (this) {
+        flushing = false;
+        if (error != null)
+          failure = error;
+        else
+          durableSequence = batchEnd;
+        batch.clear();
+        spare = batch;
+        notifyAll();
+      }
+    }
+  }
+
+  private void waitForFlush() throws IOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while waiting for the log", e);
+    }
+  }
+
+  // Only the flushing thread gets here, so it owns the segment.  Segments are
+  // rolled between batches, so a segment may pass its size by one batch.
+  private void write(ByteBuffer batch, long batchEnd) throws IOException {
+    batch.flip();
+    if (!batch.hasRemaining())
+      return;
+    if (segment == null || segment.size() >= segmentBytes)
+      roll(batchEnd - batch.remaining() / RECORD_BYTES + 1);
+    while (batch.hasRemaining())
+      segment.write(batch);
+    segment.force(false);
+  }
+
+  private void roll(long firstSequence) throws IOException {
+    if (segment != null)
+      segment.close();
+    Path file = directory.resolve(String.format("%020d%s", firstSequence, SUFFIX));
+    segment = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+      StandardOpenOption.WRITE);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(MAGIC).putInt(FORMAT).putLong(fingerprint).flip();
+    while (header.hasRemaining())
+      segment.write(header);
+    forceDirectory();
+  }
+
+  // Makes the new segment's directory entry durable.  Not every platform
+  // can open a directory; those make it durable some other way, or not at all.
+  private void forceDirectory() {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // nothing more can be done.
+    }
+  }
+
+  // Deletes the segments whose records all have sequence numbers up to the
+  // given one.  The segment being written is kept.
+  public void deleteThrough(long sequence) throws IOException {
+    List<Path> segments = segments(directory);
+    for (int i = 0; i + 1 < segments.size(); i++)
+      if (firstSequence(segments.get(i + 1)) <= sequence + 1)
+        Files.delete(segments.get(i));
+  }
+
+  public void close() throws IOException {
+    sync(lastSequence());
+    synchronized (this) {
+      while (flushing)
+        waitForFlush();
+      if (segment != null)
+        segment.close();
+    }
+  }
+}
@@ -0,0 +1,229 @@
+package smc.runtime;
+
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Connects a state machine to a reactive stream: it takes event names from
+// upstream, sends them to the machine, and publishes one Transition per event
+// downstream.  Since every event yields exactly one transition, nothing is
+// ever buffered: events are only requested from upstream once downstream has
+// asked for their transitions.  Requests are passed upstream in batches, and
+// topped up once half of a batch has arrived, rather than one per event.
+//
+// An exception from the machine, such as an unhandled transition, cancels
+// the upstream subscription and is passed downstream through onError.  The
+// processor has one upstream and one downstream subscriber.
+
+public class FlowProcessor implements Flow.Processor<String, FlowProcessor.Transition> {
+  public static final int DEFAULT_BATCH_SIZE = 64;
+
+  public static final class Transition {
+    public final String state;
+    public final String event;
+    public final String nextState;
+
+    public Transition(String state, String event, String nextState) {
+      this.state = state;
+      this.event = event;
+      this.nextState = nextState;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Transition))
+        return false;
+      Transition t = (Transition) o;
+      return state.equals(t.state) && event.equals(t.event) && nextState.equals(t.nextState);
+    }
+
+    public int hashCode() {
+      return Objects.hash(state, event, nextState);
+    }
+
+    public String toString() {
+      return String.format("%s %s %s", state, event, nextState);
+    }
+  }
+
+  private final Consumer<String> machine;
+  private final Supplier<String> state;
+  private final int batchSize;
+  private Flow.Subscription upstream;
+  private Flow.Subscriber<? super Transition> downstream;
+  private long demand;
+  private long outstanding;
+  private boolean subscribed;
+  private boolean done;
+  private boolean endedEarly;
+  private Throwable failure;
+
+  public static FlowProcessor of(InterpretedStateMachine<?> machine) {
+    return new FlowProcessor(machine::handleEvent, machine::getState, DEFAULT_BATCH_SIZE);
+  }
+
+  // Any machine whose state can be read: a generated Java machine is driven
+  // by an event consumer that calls its public event methods.
+  public FlowProcessor(Consumer<String> machine, Supplier<String> state, int batchSize) {
+    if (batchSize < 1)
+      throw new IllegalArgumentException("batches must hold at least one event");
+    this.machine = machine;
+    this.state = state;
+    this.batchSize = batchSize;
+  }
+
+  // The subscriber is only published once it has its subscription, so it
+  // gets no other signal before onSubscribe.  If upstream has already ended,
+  // the end is passed on at once.
+  public void subscribe(Flow.Subscriber<? super Transition> subscriber) {
+    Objects.requireNonNull(subscriber);
+    boolean first;
+    synchronized (this) {
+      first = !subscribed;
+      subscribed = true;
+    }
+    if (!first) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        public void request(long n) {
+        }
+
+        public void cancel() {
+        }
+      });
+      subscriber.onError(new IllegalStateException("the processor already has a subscriber"));
+      return;
+    }
+
+    subscriber.onSubscribe(new Downstream());
+    boolean ended;
+    synchronized (this) {
+      downstream = subscriber;
+      ended = endedEarly;
+    }
+    if (!ended)
+      replenish();
+    else if (failure == null)
+      subscriber.onComplete();
+    else
+      subscriber.onError(failure);
+  }
+
+  public void onSubscribe(Flow.Subscription subscription) {
+    synchronized (this) {
+      if (upstream == null) {
+        upstream = subscription;
+        subscription = null;
+      }
+    }
+    if (subscription != null)
+      subscription.cancel();
+    else
+      replenish();
+  }
+
+  public void onNext(String event) {
+    Flow.Subscriber<? super Transition> subscriber;
+    boolean overflow;
+    synchronized (this) {
+      if (done)
+        return;
+      overflow = outstanding == 0;
+      if (!overflow) {
+        outstanding--;
+        if (demand != Long.MAX_VALUE)
+          demand--;
+      }
+      subscriber = downstream;
+    }
+    if (overflow) {
+      fail(new IllegalStateException("more events than were requested"));
+      return;
+    }
+    Transition transition;
+    try {
+      String from = state.get();
+      machine.accept(event);
+      transition = new Transition(from, event, state.get());
+    } catch (RuntimeException e) {
+      fail(e);
+      return;
+    }
+    subscriber.onNext(transition);
+    replenish();
+  }
+
+  public void onError(Throwable throwable) {
+    Objects.requireNonNull(throwable);
+    Flow.Subscriber<? super Transition> subscriber = finish(throwable);
+    if (subscriber != null)
+      subscriber.onError(throwable);
+  }
+
+  public void onComplete() {
+    Flow.Subscriber<? super Transition> subscriber = finish(null);
+    if (subscriber != null)
+      subscriber.onComplete();
+  }
+
+  // Returns the subscriber to pass the end on to, if there is one yet.
+  private synchronized Flow.Subscriber<? super Transition> finish(Throwable throwable) {
+    if (done)
+      return null;
+    done = true;
+    if (downstream == null) {
+      endedEarly = true;
+      failure = throwable;
+    }
+    return downstream;
+  }
+
+  private void fail(Throwable failure) {
+    Flow.Subscription subscription;
+    synchronized (this) {
+      subscription = upstream;
+    }
+    if (subscription != null)
+      subscription.cancel();
+    onError(failure);
+  }
+
+  // Keeps outstanding upstream requests within the downstream demand, so
+  // every event that arrives can be published at once.
+  private void replenish() {
+    Flow.Subscription subscription;
+    long request;
+    synchronized (this) {
+      if (done || upstream == null || downstream == null || outstanding > batchSize / 2)
+        return;
+      request = Math.min(demand, batchSize) - outstanding;
+      if (request <= 0)
+        return;
+      outstanding += request;
+      subscription = upstream;
+    }
+    subscription.request(request);
+  }
+
+  private class Downstream implements Flow.Subscription {
+    public void request(long n) {
+      if (n <= 0) {
+        fail(new IllegalArgumentException("non-positive request: " + n));
+        return;
+      }
+      synchronized (FlowProcessor.this) {
+        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+      }
+      replenish();
+    }
+
+    public void cancel() {
+      Flow.Subscription subscription;
+      synchronized (FlowProcessor.this) {
+        done = true;
+        subscription = upstream;
+      }
+      if (subscription != null)
+        subscription.cancel();
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package smc.runtime;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+
+// Runs a TransitionTable for every instance of a StateStore.  The instances
+// share one table and one actions object; the actions take the id of the
+// instance they run for.  Handling an event reads the state from the store,
+// looks up the transition, and compare-and-sets the next state in, so it
+// neither allocates nor touches a heap object of its own instance.
+//
+// Different threads may send events to the same instance.  The transition
+// whose compare-and-set succeeds runs its actions; the others retry against
+// the state it left.  A transition into a choice calls its decisions before
+// the compare-and-set, so a retry calls them again.
+
+public class InterpretedPopulation<A> {
+  public interface UnhandledTransition {
+    void unhandledTransition(int instanceId, String state, String event);
+  }
+
+  private final TransitionTable table;
+  private final StateStore store;
+  private final IntConsumer[] actions;
+  private final IntUnaryOperator[] decisions;
+  private final UnhandledTransition unhandledTransition;
+  private final ThreadLocal<BroadcastScratch> broadcastScratch;
+
+  // Unhandled transitions throw IllegalStateException.
+  public InterpretedPopulation(TransitionTable table, StateStore store, Class<A> actionsType, A actions) {
+    this(table, store, actionsType, actions, (instanceId, state, event) -> {
+      throw new IllegalStateException(String.format("Unhandled transition: %s in state %s of instance %d", event, state, instanceId));
+    });
+  }
+
+  public InterpretedPopulation(TransitionTable table, StateStore store, Class<A> actionsType, A actions,
+                               UnhandledTransition unhandledTransition) {
+    if (unhandledTransition == null)
+      throw new NullPointerException();
+    if (StateStore.widthFor(table.states.length) > store.width())
+      throw new IllegalArgumentException(String.format("%d states do not fit in %d byte states",
+        table.states.length, store.width()));
+    this.table = table;
+    this.store = store;
+    this.actions = ActionBinder.bindWithInstanceId(actionsType, actions, table.actions);
+    decisions = ActionBinder.bindDecisionsWithInstanceId(actionsType, actions, table.decisions);
+    this.unhandledTransition = unhandledTransition;
+    broadcastScratch = ThreadLocal.withInitial(() -> new BroadcastScratch(table.states.length));
+  }
+
+  // Puts every instance into the initial state.
+  public void reset() {
+    store.fill(table.initialState);
+  }
+
+  // A code outside the event range throws IllegalArgumentException.
+  public void handleEvent(int instanceId, int event) {
+    table.checkEvent(event);
+    int[] transitions = table.transitions;
+    while (true) {
+      int state = store.get(instanceId);
+      int cell = table.cell(state, event);
+      int nextState = transitions[cell];
+      int sequence = transitions[cell + 1];
+      if (nextState == TransitionTable.CHOICE) {
+        int branch = choose(instanceId, sequence);
+        nextState = branch < 0 ? TransitionTable.UNHANDLED : table.choicePool[branch];
+        sequence = branch < 0 ? 0 : table.choicePool[branch + 1];
+      }
+      if (nextState >= 0) {
+        if (!store.compareAndSet(instanceId, state, nextState))
+          continue;
+        runActions(instanceId, sequence);
+      } else if (nextState == TransitionTable.UNHANDLED)
+        unhandledTransition.unhandledTransition(instanceId, table.states[state], table.events[event]);
+      return;
+    }
+  }
+
+  // Sends the event to each of the instances.  The instances are grouped by
+  // their current state, so the transition is looked up once per state
+  // rather than once per instance; the groups run in the order of the
+  // states, and the instances of a group in the order given.  An instance
+  // whose state changes underneath the broadcast gets the event through
+  // handleEvent instead, as does every instance whose transition leads to a
+  // choice, since its decisions are made per instance.
+  //
+  // The grouping works in scratch arrays that each thread keeps and reuses, so
+  // a broadcast only allocates when it is larger than any before it on that
+  // thread.  A broadcast sent from an action of another broadcast gets arrays
+  // of its own.
+  public void broadcast(int event, int[] instanceIds) {
+    table.checkEvent(event);
+    BroadcastScratch scratch = broadcastScratch.get();
+    if (scratch.inUse)
+      scratch = new BroadcastScratch(table.states.length);
+    scratch.inUse = true;
+    try {
+      broadcast(event, instanceIds, scratch);
+    } finally {
+      scratch.inUse = false;
+    }
+  }
+
+  private void broadcast(int event, int[] instanceIds, BroadcastScratch scratch) {
+    int count = instanceIds.length;
+    scratch.reserve(count);
+    int[] states = scratch.states;
+    int[] grouped = scratch.grouped;
+    int[] groupStart = scratch.groupStart;
+    Arrays.fill(groupStart, 0);
+    for (int i = 0; i < count; i++) {
+      states[i] = store.get(instanceIds[i]);
+      groupStart[states[i]]++;
+    }
+    for (int state = 1; state < table.states.length; state++)
+      groupStart[state] += groupStart[state - 1];
+    groupStart[table.states.length] = count;
+    for (int i = count - 1; i >= 0; i--)
+      grouped[--groupStart[states[i]]] = instanceIds[i];
+
+    int[] transitions = table.transitions;
+    for (int state = 0; state < table.states.length; state++) {
+      int start = groupStart[state];
+      int end = groupStart[state + 1];
+      if (start == end)
+        continue;
+      int cell = table.cell(state, event);
+      int nextState = transitions[cell];
+      if (nextState >= 0) {
+        int sequence = transitions[cell + 1];
+        for (int i = start; i < end; i++)
+          if (store.compareAndSet(grouped[i], state, nextState))
+            runActions(grouped[i], sequence);
+          else
+            handleEvent(grouped[i], event);
+      } else if (nextState == TransitionTable.CHOICE)
+        for (int i = start; i < end; i++)
+          handleEvent(grouped[i], event);
+      else if (nextState == TransitionTable.UNHANDLED)
+        for (int i = start; i < end; i++)
+          unhandledTransition.unhandledTransition(grouped[i], table.states[state], table.events[event]);
+    }
+  }
+
+  public void broadcast(String event, int[] instanceIds) {
+    broadcast(table.eventCode(event), instanceIds);
+  }
+
+  // The states of the instances of a broadcast, the instances grouped by
+  // state, and where each group starts; groupStart[states] is the end of the
+  // last group.
+  private static class BroadcastScratch {
+    final int[] groupStart;
+    int[] states = new int[0];
+    int[] grouped = new int[0];
+    boolean inUse;
+
+    BroadcastScratch(int stateCount) {
+      groupStart = new int[stateCount + 1];
+    }
+
+    void reserve(int count) {
+      if (states.length < count) {
+        int capacity = Math.max(count, 2 * states.length);
+        states = new int[capacity];
+        grouped = new int[capacity];
+      }
+    }
+  }
+
+  // Follows nested choices down to the branch that ends in a state, and
+  // returns its offset in the choice pool, or -1 if a decision picked no
+  // branch.
+  private int choose(int instanceId, int choice) {
+    while (true) {
+      int branch = table.branch(choice, decisions[table.decision(choice)].applyAsInt(instanceId));
+      if (branch < 0 || table.choicePool[branch] != TransitionTable.CHOICE)
+        return branch;
+      choice = table.choicePool[branch + 1];
+    }
+  }
+
+  private void runActions(int instanceId, int sequence) {
+    int[] pool = table.actionPool;
+    int end = sequence + pool[sequence];
+    for (int i = sequence + 1; i <= end; i++)
+      actions[pool[i]].accept(instanceId);
+  }
+
+  public void handleEvent(int instanceId, String event) {
+    handleEvent(instanceId, table.eventCode(event));
+  }
+
+  public String getState(int instanceId) {
+    return table.states[store.get(instanceId)];
+  }
+
+  public TransitionTable getTable() {
+    return table;
+  }
+
+  public StateStore getStore() {
+    return store;
+  }
+}
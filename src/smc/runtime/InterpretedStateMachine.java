@@ -0,0 +1,137 @@
+package smc.runtime;
+
+import java.util.function.BiConsumer;
+import java.util.function.IntSupplier;
+
+// Runs a TransitionTable against an actions object, without generating code.
+// It behaves like the generated Java: the next state is set before the
+// actions run, and unhandled events go to unhandledTransition.  A transition
+// into a choice calls the decisions first, to find the branch it takes, and
+// a decision whose result has no branch makes the event unhandled.
+// Dispatching an event does not allocate.  Instances are not synchronized.
+//
+// An instance built on a ReloadableDefinition picks up reloads at the start
+// of its next event.
+
+public class InterpretedStateMachine<A> implements StateMachine {
+  private final ReloadableDefinition definition;
+  private final Class<A> actionsType;
+  private final A actionsObject;
+  private final BiConsumer<String, String> unhandledTransition;
+  private ReloadableDefinition.Version version;
+  private TransitionTable table;
+  private Runnable[] actions;
+  private IntSupplier[] decisions;
+  private int state;
+
+  // Unhandled transitions throw IllegalStateException.
+  public InterpretedStateMachine(TransitionTable table, Class<A> actionsType, A actions) {
+    this(new ReloadableDefinition(table), actionsType, actions);
+  }
+
+  public InterpretedStateMachine(TransitionTable table, Class<A> actionsType, A actions,
+                                 BiConsumer<String, String> unhandledTransition) {
+    this(new ReloadableDefinition(table), actionsType, actions, unhandledTransition);
+  }
+
+  public InterpretedStateMachine(ReloadableDefinition definition, Class<A> actionsType, A actions) {
+    this(definition, actionsType, actions, (state, event) -> {
+      throw new IllegalStateException(String.format("Unhandled transition: %s in state %s", event, state));
+    });
+  }
+
+  public InterpretedStateMachine(ReloadableDefinition definition, Class<A> actionsType, A actions,
+                                 BiConsumer<String, String> unhandledTransition) {
+    if (unhandledTransition == null)
+      throw new NullPointerException();
+    this.definition = definition;
+    this.actionsType = actionsType;
+    this.actionsObject = actions;
+    this.unhandledTransition = unhandledTransition;
+    version = definition.current();
+    table = version.table;
+    this.actions = ActionBinder.bind(actionsType, actions, table.actions);
+    decisions = ActionBinder.bindDecisions(actionsType, actions, table.decisions);
+    state = table.initialState;
+  }
+
+  // A code outside the event range throws IllegalArgumentException.
+  public void handleEvent(int event) {
+    ReloadableDefinition.Version current = definition.current();
+    if (current != version)
+      migrate(current);
+    table.checkEvent(event);
+    int[] transitions = table.transitions;
+    int cell = table.cell(state, event);
+    int nextState = transitions[cell];
+    int sequence = transitions[cell + 1];
+    if (nextState == TransitionTable.CHOICE) {
+      int branch = choose(sequence);
+      nextState = branch < 0 ? TransitionTable.UNHANDLED : table.choicePool[branch];
+      sequence = branch < 0 ? 0 : table.choicePool[branch + 1];
+    }
+    if (nextState >= 0) {
+      state = nextState;
+      runActions(table.actionPool, actions, sequence);
+    } else if (nextState == TransitionTable.UNHANDLED)
+      unhandledTransition.accept(table.states[state], table.events[event]);
+  }
+
+  // Follows nested choices down to the branch that ends in a state, and
+  // returns its offset in the choice pool, or -1 if a decision picked no
+  // branch.
+  private int choose(int choice) {
+    while (true) {
+      int branch = table.branch(choice, decisions[table.decision(choice)].getAsInt());
+      if (branch < 0 || table.choicePool[branch] != TransitionTable.CHOICE)
+        return branch;
+      choice = table.choicePool[branch + 1];
+    }
+  }
+
+  // The pool and the actions are passed in, so that a reload picked up by an
+  // event sent from one of the actions does not change them underneath.
+  private void runActions(int[] pool, Runnable[] actions, int sequence) {
+    int end = sequence + pool[sequence];
+    for (int i = sequence + 1; i <= end; i++)
+      actions[pool[i]].run();
+  }
+
+  private void migrate(ReloadableDefinition.Version current) {
+    TransitionTable newTable = current.table;
+    Runnable[] newActions = ActionBinder.bind(actionsType, actionsObject, newTable.actions);
+    IntSupplier[] newDecisions = ActionBinder.bindDecisions(actionsType, actionsObject, newTable.decisions);
+    String stateName = table.states[state];
+    int newState = indexOf(newTable.states, stateName);
+    if (newState < 0)
+      newState = newTable.stateCode(current.fallback.stateFor(stateName, newTable));
+    version = current;
+    table = newTable;
+    actions = newActions;
+    decisions = newDecisions;
+    state = newState;
+  }
+
+  private static int indexOf(String[] names, String name) {
+    for (int i = 0; i < names.length; i++)
+      if (names[i].equals(name))
+        return i;
+    return -1;
+  }
+
+  public void handleEvent(String event) {
+    handleEvent(definition.getTable().eventCode(event));
+  }
+
+  public String getState() {
+    return table.states[state];
+  }
+
+  public TransitionTable getTable() {
+    return table;
+  }
+
+  public long getVersion() {
+    return version.number;
+  }
+}
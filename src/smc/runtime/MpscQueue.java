@@ -0,0 +1,77 @@
+package smc.runtime;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A bounded queue of longs for many producers and one consumer.  Each slot
+// carries a sequence number that tells whose turn it is: a producer claims the
+// slot whose sequence equals the tail, and publishes its element by advancing
+// the sequence; the consumer takes the slot whose sequence is one past the
+// head, and frees it for the next lap.  Neither side locks or allocates.
+
+final class MpscQueue {
+  interface Consumer {
+    void accept(long element);
+  }
+
+  private final long[] elements;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  private long head;
+  private volatile long consumed;
+
+  MpscQueue(int capacity) {
+    if (capacity < 2 || Integer.bitCount(capacity) != 1)
+      throw new IllegalArgumentException("capacity must be a power of two, not " + capacity);
+    elements = new long[capacity];
+    sequences = new AtomicLongArray(capacity);
+    mask = capacity - 1;
+    for (int i = 0; i < capacity; i++)
+      sequences.set(i, i);
+  }
+
+  boolean offer(long element) {
+    while (true) {
+      long position = tail.get();
+      int slot = (int) position & mask;
+      long sequence = sequences.get(slot);
+      if (sequence == position) {
+        if (tail.compareAndSet(position, position + 1)) {
+          elements[slot] = element;
+          sequences.set(slot, position + 1);
+          return true;
+        }
+      } else if (sequence < position)
+        return false;
+    }
+  }
+
+  // Only the consumer may drain.
+  int drain(Consumer consumer, int limit) {
+    int count = 0;
+    while (count < limit) {
+      int slot = (int) head & mask;
+      if (sequences.get(slot) != head + 1)
+        break;
+      long element = elements[slot];
+      sequences.set(slot, head + mask + 1);
+      head++;
+      count++;
+      consumer.accept(element);
+    }
+    if (count > 0)
+      consumed = head;
+    return count;
+  }
+
+  // Only the consumer may ask.
+  boolean isEmpty() {
+    return sequences.get((int) head & mask) != head + 1;
+  }
+
+  // May be called from any thread; it lags the consumer by at most a batch.
+  long size() {
+    return Math.max(0, tail.get() - consumed);
+  }
+}
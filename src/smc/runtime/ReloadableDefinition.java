@@ -0,0 +1,56 @@
+package smc.runtime;
+
+// A versioned reference to the TransitionTable that a group of interpreted
+// state machines runs.  reload swaps in a new table atomically; it does not
+// wait for the instances.  Each instance notices the new version at the start
+// of its next event, carries its current state over by name, and only then
+// handles the event, so an instance never changes definitions in the middle
+// of a transition.  Instances whose state no longer exists are moved to the
+// state chosen by the reload's StateFallback.
+//
+// Event codes survive reloads: the new table is renumbered so that every event
+// keeps its code, and new events get new codes.  Every action of the new table
+// must be a method of the instances' actions type; an instance that cannot
+// bind an action throws from handleEvent and keeps running the old table.
+
+public final class ReloadableDefinition {
+  private volatile Version current;
+
+  public ReloadableDefinition(TransitionTable table) {
+    current = new Version(table, 1, StateFallback.initialState());
+  }
+
+  public long reload(TransitionTable table) {
+    return reload(table, StateFallback.initialState());
+  }
+
+  public synchronized long reload(TransitionTable table, StateFallback fallback) {
+    Version previous = current;
+    current = new Version(table.withEventsFirst(previous.table.events), previous.number + 1, fallback);
+    return current.number;
+  }
+
+  Version current() {
+    return current;
+  }
+
+  public TransitionTable getTable() {
+    return current.table;
+  }
+
+  public long getVersion() {
+    return current.number;
+  }
+
+  static final class Version {
+    final TransitionTable table;
+    final long number;
+    final StateFallback fallback;
+
+    Version(TransitionTable table, long number, StateFallback fallback) {
+      this.table = table;
+      this.number = number;
+      this.fallback = fallback;
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package smc.runtime;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Delivers events to a population of instances from any number of threads,
+// without locking the instances.  The instances are split by a hash of their
+// id among a number of shards, each with a thread of its own and a queue that
+// any thread may post to.  A shard's thread drains its queue in batches into
+// the dispatcher, so every instance is only ever touched by its shard's
+// thread, and sees its events in the order they were posted from each
+// thread.
+//
+// The dispatcher may be an InterpretedPopulation, a flyweight generated with
+// style:flyweight (both have handleEvent(int instanceId, int event)), or an
+// array of generated machines, each with a shard of its own by construction.
+//
+// Closing rejects new events, waits for the offers already past that check
+// to reach their queues, and then lets the shards drain them and stop, so
+// every event that was accepted is handled.
+
+public class ShardedExecutor implements AutoCloseable {
+  public interface Dispatcher {
+    void handleEvent(int instanceId, int event);
+  }
+
+  public interface Failure {
+    void failed(int instanceId, int event, RuntimeException e);
+  }
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 1 << 16;
+  public static final int DEFAULT_BATCH_SIZE = 256;
+  private static final int SPINS_BEFORE_PARKING = 200;
+
+  private final Shard[] shards;
+  private volatile boolean closed;
+  private volatile boolean stopping;
+
+  // An event that throws is passed to failure, and the shard goes on with the
+  // next event.
+  public ShardedExecutor(int shardCount, Dispatcher dispatcher, Failure failure) {
+    this(shardCount, dispatcher, DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE, failure);
+  }
+
+  public ShardedExecutor(int shardCount, Dispatcher dispatcher, int queueCapacity, int batchSize, Failure failure) {
+    if (failure == null)
+      throw new NullPointerException();
+    if (shardCount < 1)
+      throw new IllegalArgumentException("there must be at least one shard");
+    if (batchSize < 1)
+      throw new IllegalArgumentException("batches must hold at least one event");
+    shards = new Shard[shardCount];
+    for (int i = 0; i < shardCount; i++)
+      shards[i] = new Shard(i, dispatcher, new MpscQueue(queueCapacity), batchSize, failure);
+    for (Shard shard : shards)
+      shard.start();
+  }
+
+  public int shardOf(int instanceId) {
+    int hash = instanceId * 0x9E3779B9;
+    return (hash >>> 1) % shards.length;
+  }
+
+  // Returns false if the shard's queue is full.  The offer is counted before
+  // closed is read, so close either sees it in flight or makes it fail.
+  public boolean offer(int instanceId, int event) {
+    Shard shard = shards[shardOf(instanceId)];
+    shard.offers.incrementAndGet();
+    try {
+      if (closed)
+        throw new RejectedExecutionException("the executor is closed");
+      if (!shard.queue.offer((long) instanceId << 32 | event & 0xFFFFFFFFL))
+        return false;
+    } finally {
+      shard.offers.decrementAndGet();
+    }
+    if (shard.parked)
+      LockSupport.unpark(shard);
+    return true;
+  }
+
+  // Waits while the shard's queue is full.
+  public void submit(int instanceId, int event) {
+    while (!offer(instanceId, event))
+      Thread.yield();
+  }
+
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  public ShardMetrics getMetrics(int shard) {
+    return shards[shard].metrics();
+  }
+
+  // Handles every event already accepted, then stops the shards.  An
+  // interrupt does not cut the wait short; it is passed on once the shards
+  // have stopped.
+  public void close() {
+    closed = true;
+    for (Shard shard : shards)
+      while (shard.offers.get() > 0)
+        Thread.onSpinWait();
+    stopping = true;
+    for (Shard shard : shards)
+      LockSupport.unpark(shard);
+    boolean interrupted = false;
+    for (Shard shard : shards) {
+      while (shard.isAlive()) {
+        try {
+          shard.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  public static final class ShardMetrics {
+    public final long queueDepth;
+    public final long events;
+    public final long batches;
+    public final int largestBatch;
+    public final double eventsPerSecond;
+
+    ShardMetrics(long queueDepth, long events, long batches, int largestBatch, double eventsPerSecond) {
+      this.queueDepth = queueDepth;
+      this.events = events;
+      this.batches = batches;
+      this.largestBatch = largestBatch;
+      this.eventsPerSecond = eventsPerSecond;
+    }
+
+    public double averageBatch() {
+      return batches == 0 ? 0 : (double) events / batches;
+    }
+
+    public String toString() {
+      return String.format("depth %d, %d events in %d batches (largest %d), %.0f events/s",
+        queueDepth, events, batches, largestBatch, eventsPerSecond);
+    }
+  }
+
+  private final class Shard extends Thread implements MpscQueue.Consumer {
+    private final Dispatcher dispatcher;
+    private final MpscQueue queue;
+    private final int batchSize;
+    private final Failure failure;
+    private final AtomicInteger offers = new AtomicInteger();
+    private volatile boolean parked;
+    private volatile long events;
+    private volatile long batches;
+    private volatile int largestBatch;
+    private long sampledAt = System.nanoTime();
+    private long sampledEvents;
+
+    Shard(int index, Dispatcher dispatcher, MpscQueue queue, int batchSize, Failure failure) {
+      super("smc-shard-" + index);
+      setDaemon(true);
+      this.dispatcher = dispatcher;
+      this.queue = queue;
+      this.batchSize = batchSize;
+      this.failure = failure;
+    }
+
+    public void run() {
+      int idle = 0;
+      while (true) {
+        int count = queue.drain(this, batchSize);
+        if (count > 0) {
+          events += count;
+          batches++;
+          if (count > largestBatch)
+            largestBatch = count;
+          idle = 0;
+        } else if (stopping && queue.isEmpty()) {
+          return;
+        } else if (++idle < SPINS_BEFORE_PARKING) {
+          Thread.onSpinWait();
+        } else {
+          parked = true;
+          if (queue.isEmpty() && !stopping)
+            LockSupport.park(this);
+          parked = false;
+        }
+      }
+    }
+
+    public void accept(long element) {
+      int instanceId = (int) (element >>> 32);
+      int event = (int) element;
+      try {
+        dispatcher.handleEvent(instanceId, event);
+      } catch (RuntimeException e) {
+        failure.failed(instanceId, event, e);
+      }
+    }
+
+    // Events per second are measured since the previous call.
+    synchronized ShardMetrics metrics() {
+      long now = System.nanoTime();
+      long handled = events;
+      double rate = now == sampledAt ? 0 : (handled - sampledEvents) * 1e9 / (now - sampledAt);
+      sampledAt = now;
+      sampledEvents = handled;
+      return new ShardMetrics(queue.size(), handled, batches, largestBatch, rate);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package smc.runtime;
+
+import smc.OptimizedStateMachine;
+import smc.generators.nestedSwitchCaseGenerator.NSCGenerator;
+import smc.implementers.ClassFileNestedSwitchCaseImplementer;
+import smc.lexer.Lexer;
+import smc.optimizer.Optimizer;
+import smc.parser.FsmSyntax;
+import smc.parser.Parser;
+import smc.parser.SyntaxBuilder;
+import smc.semanticAnalyzer.SemanticAnalyzer;
+import smc.semanticAnalyzer.SemanticStateMachine;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+import static smc.parser.ParserEvent.EOF;
+
+// Compiles state machine definitions at run time, without javac.  The source
+// goes through the same Lexer, Parser, SemanticAnalyzer and Optimizer as the
+// command line compiler, the ClassFile backend writes the state machine class,
+// and both it and a small subclass that delegates the actions to an instance
+// of the actions interface are defined in a class loader of their own.
+//
+// Compiled definitions are cached by the SHA-256 of their source, per actions
+// interface, so a definition that is compiled again costs one hash.
+
+public class SmcRuntime {
+  private static final String GENERATED_PACKAGE = "smc.runtime.generated";
+
+  private static final ClassValue<Map<String, StateMachineFactory<?>>> cache =
+    new ClassValue<Map<String, StateMachineFactory<?>>>() {
+      protected Map<String, StateMachineFactory<?>> computeValue(Class<?> actionsInterface) {
+        return new ConcurrentHashMap<>();
+      }
+    };
+
+  @SuppressWarnings("unchecked")
+  public static <A> StateMachineFactory<A> compile(String smSource, Class<A> actionsInterface) {
+    if (!actionsInterface.isInterface() || !Modifier.isPublic(actionsInterface.getModifiers()))
+      throw new IllegalArgumentException(actionsInterface.getName() + " is not a public interface");
+    String hash = sha256(smSource);
+    return (StateMachineFactory<A>) cache.get(actionsInterface)
+      .computeIfAbsent(hash, h -> define(optimize(smSource), h, actionsInterface));
+  }
+
+  // Runs the front end of the compiler.  Syntax and semantic errors are
+  // reported with an IllegalArgumentException.
+  public static OptimizedStateMachine optimize(String smSource) {
+    SyntaxBuilder builder = new SyntaxBuilder();
+    Parser parser = new Parser(builder);
+    Lexer lexer = new Lexer(parser);
+    lexer.lex(smSource);
+    parser.handleEvent(EOF, -1, -1);
+    FsmSyntax fsm = builder.getFsm();
+    if (!fsm.errors.isEmpty())
+      throw new IllegalArgumentException(errorMessage("syntax", fsm.errors));
+
+    SemanticStateMachine ast = new SemanticAnalyzer().analyze(fsm);
+    if (!ast.errors.isEmpty())
+      throw new IllegalArgumentException(errorMessage("semantic", ast.errors));
+    return new Optimizer().optimize(ast);
+  }
+
+  private static String errorMessage(String kind, List<?> errors) {
+    return String.format("%d %s error%s:\n%s", errors.size(), kind, errors.size() == 1 ? "" : "s",
+      errors.stream().map(Object::toString).collect(Collectors.joining("\n")));
+  }
+
+  private static <A> StateMachineFactory<A> define(OptimizedStateMachine sm, String hash, Class<A> actionsInterface) {
+    checkMethods(sm.actions, void.class, actionsInterface);
+    checkMethods(sm.decisions, int.class, actionsInterface);
+    sm.header.actions = null;
+
+    Map<String, String> flags = new HashMap<>();
+    flags.put("package", GENERATED_PACKAGE);
+    ClassFileNestedSwitchCaseImplementer implementer = new ClassFileNestedSwitchCaseImplementer(flags);
+    new NSCGenerator().generate(sm).accept(implementer);
+    String superName = implementer.getClassName();
+    String className = superName + "$Runtime";
+    byte[] delegatingClass = new DelegatingClassWriter(className, superName, actionsInterface)
+      .write(sm.actions, sm.decisions, sm.events);
+
+    DefinitionClassLoader loader = new DefinitionClassLoader(actionsInterface.getClassLoader());
+    loader.add(superName, implementer.getOutput());
+    loader.add(className, delegatingClass);
+    try {
+      Class<?> stateMachineClass = Class.forName(className.replace('/', '.'), true, loader);
+      MethodHandle constructor = MethodHandles.publicLookup()
+        .findConstructor(stateMachineClass, MethodType.methodType(void.class, actionsInterface, BiConsumer.class))
+        .asType(MethodType.methodType(Object.class, Object.class, BiConsumer.class));
+      return new StateMachineFactory<>(sm.header.fsm, hash, sm.states, sm.events, stateMachineClass, constructor);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Actions must return void, and decisions int.
+  private static void checkMethods(List<String> names, Class<?> returnType, Class<?> actionsInterface) {
+    for (String name : names) {
+      try {
+        Method method = actionsInterface.getMethod(name);
+        if (method.getReturnType() != returnType)
+          throw new IllegalArgumentException(String.format("%s.%s() must return %s", actionsInterface.getName(), name, returnType));
+      } catch (NoSuchMethodException e) {
+        throw new IllegalArgumentException(String.format("%s has no method %s()", actionsInterface.getName(), name));
+      }
+    }
+  }
+
+  private static String sha256(String smSource) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(smSource.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest)
+        hex.append(String.format("%02x", b));
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Each definition gets a loader of its own, so definitions with the same
+  // FSM name do not collide.  The generated classes must see both the actions
+  // interface and smc.runtime.
+  private static class DefinitionClassLoader extends ClassLoader {
+    private final ClassLoader actionsLoader;
+    private final Map<String, byte[]> classes = new HashMap<>();
+
+    DefinitionClassLoader(ClassLoader actionsLoader) {
+      super(SmcRuntime.class.getClassLoader());
+      this.actionsLoader = actionsLoader;
+    }
+
+    void add(String internalName, byte[] bytes) {
+      classes.put(internalName.replace('/', '.'), bytes);
+    }
+
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      byte[] bytes = classes.get(name);
+      if (bytes != null)
+        return defineClass(name, bytes, 0, bytes.length);
+      if (actionsLoader != null)
+        return actionsLoader.loadClass(name);
+      throw new ClassNotFoundException(name);
+    }
+  }
+}
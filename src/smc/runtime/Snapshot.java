@@ -0,0 +1,136 @@
+package smc.runtime;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+// Writes the states of a population of instances to a file, and maps them
+// back.  The file starts with a header: the fingerprint of the table, the
+// width of a state, the number of instances, and the names of the states.
+// The states follow, laid out as in a StateStore, so restoring a snapshot of
+// the same definition maps the file instead of reading it.
+//
+// When the definition has changed, each state is looked up by name in the
+// new table, and the states that are gone are replaced through a
+// StateFallback.  The states are then copied into a direct store.
+
+public final class Snapshot {
+  private static final int MAGIC = 0x534D4353;
+  private static final int FORMAT = 1;
+
+  private Snapshot() {
+  }
+
+  public static void write(Path file, TransitionTable table, StateStore store) throws IOException {
+    write(file, table, store.size(), store::get);
+  }
+
+  // For state machines that keep their own states, such as the Java
+  // flyweight style, whose stateCode(instanceId) reads the state of an
+  // instance.  The state codes must be those of the table, which they are
+  // when the table is compiled from the same source.
+  public static void write(Path file, TransitionTable table, int instances, IntUnaryOperator stateCode) throws IOException {
+    int width = StateStore.widthFor(table.states.length);
+    byte[] header = header(table, width, instances);
+    Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temporary, header);
+      StateStore store = StateStore.map(temporary, header.length, instances, table.states.length);
+      for (int i = 0; i < instances; i++)
+        store.set(i, stateCode.applyAsInt(i));
+      store.force();
+      Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  // The header is padded to a multiple of four bytes, so the states that
+  // follow it can be updated through aligned ints.
+  private static byte[] header(TransitionTable table, int width, int instances) throws IOException {
+    ByteArrayOutputStream names = new ByteArrayOutputStream();
+    DataOutputStream namesOut = new DataOutputStream(names);
+    for (String state : table.states)
+      namesOut.writeUTF(state);
+    int length = 36 + names.size();
+    length += -length & 3;
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream(length);
+    DataOutputStream out = new DataOutputStream(header);
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT);
+    out.writeInt(length);
+    out.writeInt(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0);
+    out.writeInt(width);
+    out.writeInt(instances);
+    out.writeInt(table.states.length);
+    out.writeLong(table.getFingerprint());
+    names.writeTo(out);
+    while (header.size() < length)
+      out.writeByte(0);
+    return header.toByteArray();
+  }
+
+  // Restored instances whose state is gone go to the initial state.
+  public static StateStore restore(Path file, TransitionTable table) throws IOException {
+    return restore(file, table, StateFallback.initialState());
+  }
+
+  // The store of an unchanged definition is a private mapping of the file:
+  // it costs no copying, and its updates do not change the snapshot.
+  public static StateStore restore(Path file, TransitionTable table, StateFallback fallback) throws IOException {
+    Header header = readHeader(file);
+    StateStore snapshot = StateStore.map(file, header.length, header.instances, header.states.length,
+      FileChannel.MapMode.PRIVATE);
+    if (header.fingerprint == table.getFingerprint() || Arrays.equals(header.states, table.states))
+      return snapshot;
+
+    int[] newStates = new int[header.states.length];
+    for (int state = 0; state < newStates.length; state++) {
+      String name = header.states[state];
+      newStates[state] = table.getStates().contains(name) ? table.stateCode(name) : table.stateCode(fallback.stateFor(name, table));
+    }
+    StateStore store = StateStore.allocate(header.instances, table.states.length);
+    for (int i = 0; i < header.instances; i++)
+      store.set(i, newStates[snapshot.get(i)]);
+    return store;
+  }
+
+  private static Header readHeader(Path file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC)
+        throw new IOException(file + " is not a state machine snapshot");
+      int format = in.readInt();
+      if (format != FORMAT)
+        throw new IOException(String.format("%s has format %d, not %d", file, format, FORMAT));
+      Header header = new Header();
+      header.length = in.readInt();
+      boolean littleEndian = in.readInt() == 1;
+      if (littleEndian != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN))
+        throw new IOException(file + " was written with another byte order");
+      int width = in.readInt();
+      header.instances = in.readInt();
+      header.states = new String[in.readInt()];
+      if (width != StateStore.widthFor(header.states.length))
+        throw new IOException(String.format("%s has %d byte states for %d states", file, width, header.states.length));
+      header.fingerprint = in.readLong();
+      for (int i = 0; i < header.states.length; i++)
+        header.states[i] = in.readUTF();
+      if (Files.size(file) < header.length + StateStore.bytesFor(header.instances, width))
+        throw new IOException(file + " is truncated");
+      return header;
+    }
+  }
+
+  private static class Header {
+    int length;
+    int instances;
+    String[] states;
+    long fingerprint;
+  }
+}
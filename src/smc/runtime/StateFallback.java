@@ -0,0 +1,16 @@
+package smc.runtime;
+
+// Chooses the state of an instance whose state was removed by a reload.  It
+// returns the name of a state of the new table.
+
+public interface StateFallback {
+  String stateFor(String removedState, TransitionTable newTable);
+
+  static StateFallback initialState() {
+    return (removedState, newTable) -> newTable.states[newTable.initialState];
+  }
+
+  static StateFallback to(String state) {
+    return (removedState, newTable) -> state;
+  }
+}
@@ -0,0 +1,8 @@
+package smc.runtime;
+
+// An instance of a state machine compiled at run time.  Events are sent by
+// code; StateMachineFactory.eventCode translates an event name to its code.
+
+public interface StateMachine {
+  void handleEvent(int event);
+}
@@ -0,0 +1,76 @@
+package smc.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+// Creates instances of one state machine definition compiled by SmcRuntime.
+// Factories are immutable and may be shared between threads; the instances
+// they create are not synchronized.
+
+public final class StateMachineFactory<A> {
+  private final String name;
+  private final String hash;
+  private final List<String> states;
+  private final List<String> events;
+  private final Class<?> stateMachineClass;
+  private final MethodHandle constructor;
+
+  StateMachineFactory(String name, String hash, List<String> states, List<String> events,
+                      Class<?> stateMachineClass, MethodHandle constructor) {
+    this.name = name;
+    this.hash = hash;
+    this.states = Collections.unmodifiableList(states);
+    this.events = Collections.unmodifiableList(events);
+    this.stateMachineClass = stateMachineClass;
+    this.constructor = constructor;
+  }
+
+  // Unhandled transitions throw IllegalStateException.
+  public StateMachine newInstance(A actions) {
+    return newInstance(actions, (state, event) -> {
+      throw new IllegalStateException(String.format("Unhandled transition: %s in state %s", event, state));
+    });
+  }
+
+  public StateMachine newInstance(A actions, BiConsumer<String, String> unhandledTransition) {
+    if (actions == null || unhandledTransition == null)
+      throw new NullPointerException();
+    try {
+      return (StateMachine) constructor.invoke(actions, unhandledTransition);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public int eventCode(String event) {
+    int code = events.indexOf(event);
+    if (code < 0)
+      throw new IllegalArgumentException(String.format("%s has no event %s", name, event));
+    return code;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  // The SHA-256 of the definition's source, in hex.
+  public String getHash() {
+    return hash;
+  }
+
+  public List<String> getStates() {
+    return states;
+  }
+
+  public List<String> getEvents() {
+    return events;
+  }
+
+  public Class<?> getStateMachineClass() {
+    return stateMachineClass;
+  }
+}
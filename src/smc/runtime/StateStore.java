@@ -0,0 +1,169 @@
+package smc.runtime;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// The states of a population of state machine instances, kept off the Java
+// heap in direct or memory-mapped buffers.  Each state takes one, two or four
+// bytes, whichever is the narrowest that holds every state of the definition.
+// The buffers are split into chunks of 1GB, so a store is not limited by the
+// 2GB size of a ByteBuffer.
+//
+// Updates are atomic per instance.  VarHandles only compare-and-set whole
+// ints, so states narrower than an int are updated by a compare-and-set of the
+// aligned int that holds them.
+
+public final class StateStore {
+  private static final int CHUNK_SHIFT = 30;
+  private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+  private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+  private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+  private final ByteBuffer[] chunks;
+  private final int instances;
+  private final int width;
+  private final int mask;
+
+  private StateStore(ByteBuffer[] chunks, int instances, int width) {
+    this.chunks = chunks;
+    this.instances = instances;
+    this.width = width;
+    mask = width == 4 ? -1 : (1 << 8 * width) - 1;
+  }
+
+  // Every instance starts in state 0.
+  public static StateStore allocate(int instances, int stateCount) {
+    int width = widthFor(stateCount);
+    ByteBuffer[] chunks = new ByteBuffer[chunkCount(instances, width)];
+    for (int i = 0; i < chunks.length; i++)
+      chunks[i] = ByteBuffer.allocateDirect(chunkSize(i, instances, width)).order(ByteOrder.nativeOrder());
+    return new StateStore(chunks, instances, width);
+  }
+
+  // Maps the states into the file, starting at offset; the file is extended
+  // if it is too short.  The states already in the file are kept.
+  public static StateStore map(Path file, long offset, int instances, int stateCount) throws IOException {
+    return map(file, offset, instances, stateCount, FileChannel.MapMode.READ_WRITE);
+  }
+
+  // A PRIVATE mapping reads the states from the file, but keeps its updates
+  // to itself.
+  static StateStore map(Path file, long offset, int instances, int stateCount,
+                        FileChannel.MapMode mode) throws IOException {
+    if (offset % 4 != 0)
+      throw new IllegalArgumentException("offset must be a multiple of 4");
+    int width = widthFor(stateCount);
+    ByteBuffer[] chunks = new ByteBuffer[chunkCount(instances, width)];
+    try (FileChannel channel = FileChannel.open(file,
+      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      for (int i = 0; i < chunks.length; i++)
+        chunks[i] = channel.map(mode,
+          offset + ((long) i << CHUNK_SHIFT), chunkSize(i, instances, width)).order(ByteOrder.nativeOrder());
+    }
+    return new StateStore(chunks, instances, width);
+  }
+
+  static int widthFor(int stateCount) {
+    if (stateCount <= 1 << 8)
+      return 1;
+    if (stateCount <= 1 << 16)
+      return 2;
+    return 4;
+  }
+
+  // Chunks are padded to a whole number of ints, so that the last state of
+  // the last chunk can be updated through its aligned int.
+  private static int chunkCount(int instances, int width) {
+    return (int) ((bytesFor(instances, width) + CHUNK_MASK) >>> CHUNK_SHIFT);
+  }
+
+  private static int chunkSize(int chunk, int instances, int width) {
+    long remaining = bytesFor(instances, width) - ((long) chunk << CHUNK_SHIFT);
+    return (int) Math.min(remaining, 1L << CHUNK_SHIFT);
+  }
+
+  static long bytesFor(int instances, int width) {
+    return ((long) instances * width + 3) & ~3L;
+  }
+
+  public int size() {
+    return instances;
+  }
+
+  public int width() {
+    return width;
+  }
+
+  public int get(int instanceId) {
+    long position = position(instanceId);
+    ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+    int offset = (int) (position & CHUNK_MASK);
+    int word = (int) INT.getAcquire(chunk, offset & ~3);
+    return width == 4 ? word : word >>> shift(offset) & mask;
+  }
+
+  public void set(int instanceId, int state) {
+    if (width == 4) {
+      long position = position(instanceId);
+      INT.setRelease(chunks[(int) (position >>> CHUNK_SHIFT)], (int) (position & CHUNK_MASK), state);
+    } else {
+      int current;
+      do
+        current = get(instanceId);
+      while (!compareAndSet(instanceId, current, state));
+    }
+  }
+
+  public boolean compareAndSet(int instanceId, int expected, int state) {
+    long position = position(instanceId);
+    ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+    int offset = (int) (position & CHUNK_MASK);
+    if (width == 4)
+      return INT.compareAndSet(chunk, offset, expected, state);
+
+    int wordOffset = offset & ~3;
+    int shift = shift(offset);
+    while (true) {
+      int word = (int) INT.getVolatile(chunk, wordOffset);
+      if ((word >>> shift & mask) != expected)
+        return false;
+      int updated = word & ~(mask << shift) | (state & mask) << shift;
+      if (INT.compareAndSet(chunk, wordOffset, word, updated))
+        return true;
+    }
+  }
+
+  // Writes whole ints, so it is not atomic with respect to concurrent updates.
+  public void fill(int state) {
+    int pattern = width == 1 ? (state & mask) * 0x01010101 : width == 2 ? (state & mask) * 0x00010001 : state;
+    for (ByteBuffer chunk : chunks)
+      for (int offset = 0; offset < chunk.capacity(); offset += 4)
+        chunk.putInt(offset, pattern);
+    VarHandle.fullFence();
+  }
+
+  // Writes the states of a mapped store to its file.
+  public void force() {
+    for (ByteBuffer chunk : chunks)
+      if (chunk instanceof MappedByteBuffer)
+        ((MappedByteBuffer) chunk).force();
+  }
+
+  private long position(int instanceId) {
+    if (instanceId < 0 || instanceId >= instances)
+      throw new IndexOutOfBoundsException("instance " + instanceId);
+    return (long) instanceId * width;
+  }
+
+  private int shift(int offset) {
+    int byteInWord = offset & 3;
+    return 8 * (LITTLE_ENDIAN ? byteInWord : 4 - width - byteInWord);
+  }
+}
@@ -0,0 +1,244 @@
+package smc.runtime;
+
+import smc.OptimizedStateMachine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static smc.OptimizedStateMachine.SubTransition;
+import static smc.OptimizedStateMachine.Transition;
+
+// An optimized state machine flattened into int arrays for the interpreter.
+// Each (state, event) pair owns two ints in the transitions array: the index
+// of the next state, and the offset of its action sequence in the action pool.
+// An action sequence is its length followed by the indices of its actions;
+// transitions that run the same actions share one sequence.
+//
+// A state that has no transitions at all ignores every event, as the generated
+// code does; any other state reports the events it does not handle.  A table
+// is immutable, and may be shared by any number of instances.
+//
+// A transition into a choice has CHOICE for its next state, and the offset of
+// a record in the choice pool instead of an action sequence.  The record is
+// the index of its decision, the number of branches, and then for each branch
+// a next state and an action sequence, or CHOICE and the offset of another
+// record.
+
+public final class TransitionTable {
+  static final int UNHANDLED = -1;
+  static final int IGNORED = -2;
+  static final int CHOICE = -3;
+
+  final String name;
+  final String[] states;
+  final String[] events;
+  final String[] actions;
+  final String[] decisions;
+  final int initialState;
+  final int[] transitions;
+  final int[] actionPool;
+  final int[] choicePool;
+
+  private TransitionTable(String name, String[] states, String[] events, String[] actions, String[] decisions,
+                          int initialState, int[] transitions, int[] actionPool, int[] choicePool) {
+    this.name = name;
+    this.states = states;
+    this.events = events;
+    this.actions = actions;
+    this.decisions = decisions;
+    this.initialState = initialState;
+    this.transitions = transitions;
+    this.actionPool = actionPool;
+    this.choicePool = choicePool;
+  }
+
+  private static TransitionTable build(OptimizedStateMachine sm) {
+    return new Builder(sm).build();
+  }
+
+  private static class Builder {
+    private final OptimizedStateMachine sm;
+    private final List<Integer> pool = new ArrayList<>();
+    private final Map<List<String>, Integer> sequences = new HashMap<>();
+    private final List<Integer> choices = new ArrayList<>();
+
+    Builder(OptimizedStateMachine sm) {
+      this.sm = sm;
+    }
+
+    TransitionTable build() {
+      int eventCount = sm.events.size();
+      int[] transitions = new int[2 * sm.states.size() * eventCount];
+      Arrays.fill(transitions, IGNORED);
+      for (Transition t : sm.transitions) {
+        int state = sm.states.indexOf(t.currentState);
+        Arrays.fill(transitions, 2 * state * eventCount, 2 * (state + 1) * eventCount, UNHANDLED);
+        for (SubTransition st : sm.subTransitionsOf(t)) {
+          int cell = 2 * (state * eventCount + sm.events.indexOf(st.event));
+          transitions[cell] = nextState(st);
+          transitions[cell + 1] = sequence(st);
+        }
+      }
+      return new TransitionTable(sm.header.fsm, sm.states.toArray(new String[0]), sm.events.toArray(new String[0]),
+        sm.actions.toArray(new String[0]), sm.decisions.toArray(new String[0]), sm.states.indexOf(sm.header.initial),
+        transitions, toArray(pool), toArray(choices));
+    }
+
+    private int nextState(SubTransition st) {
+      return st.decision == null ? sm.states.indexOf(st.nextState) : CHOICE;
+    }
+
+    private int sequence(SubTransition st) {
+      if (st.decision != null)
+        return addChoice(st);
+      return sequences.computeIfAbsent(sm.expandedActions(st.actions), this::addSequence);
+    }
+
+    private int addSequence(List<String> actionNames) {
+      int offset = pool.size();
+      pool.add(actionNames.size());
+      for (String action : actionNames)
+        pool.add(sm.actions.indexOf(action));
+      return offset;
+    }
+
+    // The branches of a record are reserved before the records of any
+    // nested choices are added after it.
+    private int addChoice(SubTransition st) {
+      int offset = choices.size();
+      choices.add(sm.decisions.indexOf(st.decision));
+      choices.add(st.branches.size());
+      for (int i = 0; i < 2 * st.branches.size(); i++)
+        choices.add(0);
+      for (int i = 0; i < st.branches.size(); i++) {
+        SubTransition branch = st.branches.get(i);
+        choices.set(offset + 2 + 2 * i, nextState(branch));
+        choices.set(offset + 3 + 2 * i, sequence(branch));
+      }
+      return offset;
+    }
+
+    private static int[] toArray(List<Integer> ints) {
+      return ints.stream().mapToInt(Integer::intValue).toArray();
+    }
+  }
+
+  public static TransitionTable compile(String smSource) {
+    return build(SmcRuntime.optimize(smSource));
+  }
+
+  public static TransitionTable of(OptimizedStateMachine sm) {
+    return build(sm);
+  }
+
+  // Renumbers the events so that the given events keep their codes.  Events
+  // that this table does not have keep their columns, and are unhandled;
+  // events that are new to this table are numbered after them.
+  TransitionTable withEventsFirst(String[] leadingEvents) {
+    List<String> renumbered = new ArrayList<>(Arrays.asList(leadingEvents));
+    for (String event : events)
+      if (!renumbered.contains(event))
+        renumbered.add(event);
+    if (renumbered.equals(Arrays.asList(events)))
+      return this;
+
+    int[] renumberedTransitions = new int[2 * states.length * renumbered.size()];
+    for (int state = 0; state < states.length; state++) {
+      boolean ignoresEvents = events.length == 0 || transitions[cell(state, 0)] == IGNORED;
+      for (int event = 0; event < renumbered.size(); event++) {
+        int cell = 2 * (state * renumbered.size() + event);
+        int oldEvent = Arrays.asList(events).indexOf(renumbered.get(event));
+        if (oldEvent < 0) {
+          renumberedTransitions[cell] = ignoresEvents ? IGNORED : UNHANDLED;
+        } else {
+          renumberedTransitions[cell] = transitions[cell(state, oldEvent)];
+          renumberedTransitions[cell + 1] = transitions[cell(state, oldEvent) + 1];
+        }
+      }
+    }
+    return new TransitionTable(name, states, renumbered.toArray(new String[0]), actions, decisions,
+      initialState, renumberedTransitions, actionPool, choicePool);
+  }
+
+  // Event codes come from callers, so one outside the table is an error
+  // rather than an event to ignore.
+  void checkEvent(int event) {
+    if (event < 0 || event >= events.length)
+      throw new IllegalArgumentException(String.format("%s has no event code %d", name, event));
+  }
+
+  int cell(int state, int event) {
+    return 2 * (state * events.length + event);
+  }
+
+  int decision(int choice) {
+    return choicePool[choice];
+  }
+
+  // The offset of the branch that a decision's result picks, or -1 if the
+  // choice has no such branch.
+  int branch(int choice, int result) {
+    if (result < 0 || result >= choicePool[choice + 1])
+      return -1;
+    return choice + 2 + 2 * result;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public List<String> getStates() {
+    return Collections.unmodifiableList(Arrays.asList(states));
+  }
+
+  public List<String> getEvents() {
+    return Collections.unmodifiableList(Arrays.asList(events));
+  }
+
+  public List<String> getActions() {
+    return Collections.unmodifiableList(Arrays.asList(actions));
+  }
+
+  public List<String> getDecisions() {
+    return Collections.unmodifiableList(Arrays.asList(decisions));
+  }
+
+  // The first eight bytes of a SHA-256 of the states, events, actions and
+  // transitions.  Tables of the same definition have the same fingerprint.
+  // The choices only count when there are any, so tables without them keep
+  // the fingerprints they had before there were choices.
+  public long getFingerprint() {
+    try {
+      MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+      for (String[] names : new String[][]{states, events, actions})
+        sha256.update((String.join(" ", names) + "\n").getBytes(StandardCharsets.UTF_8));
+      for (int[] ints : new int[][]{transitions, actionPool})
+        sha256.update((Arrays.toString(ints) + "\n").getBytes(StandardCharsets.UTF_8));
+      if (decisions.length > 0) {
+        sha256.update((String.join(" ", decisions) + "\n").getBytes(StandardCharsets.UTF_8));
+        sha256.update((Arrays.toString(choicePool) + "\n").getBytes(StandardCharsets.UTF_8));
+      }
+      return ByteBuffer.wrap(sha256.digest()).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public int eventCode(String event) {
+    return code(events, event, "event");
+  }
+
+  public int stateCode(String state) {
+    return code(states, state, "state");
+  }
+
+  private int code(String[] names, String name, String kind) {
+    for (int i = 0; i < names.length; i++)
+      if (names[i].equals(name))
+        return i;
+    throw new IllegalArgumentException(String.format("%s has no %s %s", this.name, kind, name));
+  }
+}
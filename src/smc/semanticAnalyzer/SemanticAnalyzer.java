@@ -71,6 +71,7 @@ public class SemanticAnalyzer {
     checkThatAbstractStatesAreNotTargets(fsm);
     checkForInconsistentAbstraction(fsm);
     checkForMultiplyDefinedStateActions(fsm);
+    checkChoiceStates(fsm);
   }
 
   private void createStateEventAndActionLists(FsmSyntax fsm) {
@@ -78,6 +79,13 @@ public class SemanticAnalyzer {
     addEntryAndExitActionsToActionList(fsm);
     addEventsToEventList(fsm);
     addTransitionActionsToActionList(fsm);
+    addDecisionsToDecisionList(fsm);
+  }
+
+  private void addDecisionsToDecisionList(FsmSyntax fsm) {
+    for (Transition t : fsm.logic)
+      if (t.state.decision != null)
+        semanticStateMachine.decisions.add(t.state.decision);
   }
 
   private void addTransitionActionsToActionList(FsmSyntax fsm) {
@@ -87,11 +95,14 @@ public class SemanticAnalyzer {
           semanticStateMachine.actions.add(action);
   }
 
+  // The branches of a choice state are labelled, but the labels are not events.
   private void addEventsToEventList(FsmSyntax fsm) {
+    Set<String> choiceStates = findChoiceStates(fsm).keySet();
     for (Transition t : fsm.logic)
-      for (SubTransition st : t.subTransitions)
-        if (st.event != null)
-          semanticStateMachine.events.add(st.event);
+      if (!choiceStates.contains(t.state.name))
+        for (SubTransition st : t.subTransitions)
+          if (st.event != null)
+            semanticStateMachine.events.add(st.event);
   }
 
   private void addEntryAndExitActionsToActionList(FsmSyntax fsm) {
@@ -234,6 +245,62 @@ public class SemanticAnalyzer {
 
   }
 
+  // A choice state is folded into the transitions that lead to it, so it can
+  // have no place in a hierarchy, and no transitions besides its branches.
+  private void checkChoiceStates(FsmSyntax fsm) {
+    Map<String, String> choiceStates = findChoiceStates(fsm);
+    Map<String, List<String>> branchTargets = new HashMap<>();
+    for (Transition t : fsm.logic) {
+      if (choiceStates.containsKey(t.state.name)) {
+        String decision = choiceStates.get(t.state.name);
+        if (t.state.decision != null && !t.state.decision.equals(decision))
+          addChoiceError(t.state.name + " has decisions " + decision + " and " + t.state.decision);
+        if (t.state.abstractState)
+          addChoiceError(t.state.name + " is abstract");
+        if (!t.state.superStates.isEmpty())
+          addChoiceError(t.state.name + " has super states");
+        List<String> targets = branchTargets.computeIfAbsent(t.state.name, name -> new ArrayList<>());
+        for (SubTransition st : t.subTransitions)
+          targets.add(st.nextState == null ? t.state.name : st.nextState);
+      }
+      for (String superState : t.state.superStates)
+        if (choiceStates.containsKey(superState))
+          addChoiceError(superState + " is a super state of " + t.state.name);
+    }
+    for (String choiceState : choiceStates.keySet()) {
+      if (branchTargets.get(choiceState).isEmpty())
+        addChoiceError(choiceState + " has no branches");
+      if (semanticStateMachine.actions.contains(choiceStates.get(choiceState)))
+        addChoiceError(choiceStates.get(choiceState) + " is both a decision and an action");
+      if (reachesItself(choiceState, choiceState, branchTargets, new HashSet<>()))
+        semanticStateMachine.errors.add(new AnalysisError(CHOICE_CYCLE, choiceState));
+    }
+    if (choiceStates.containsKey(initialHeader.value))
+      addChoiceError(initialHeader.value + " is the initial state");
+  }
+
+  private boolean reachesItself(String choiceState, String from, Map<String, List<String>> branchTargets, Set<String> visited) {
+    if (!visited.add(from))
+      return false;
+    for (String target : branchTargets.getOrDefault(from, Collections.emptyList()))
+      if (target.equals(choiceState) || reachesItself(choiceState, target, branchTargets, visited))
+        return true;
+    return false;
+  }
+
+  private void addChoiceError(String reason) {
+    semanticStateMachine.errors.add(new AnalysisError(INVALID_CHOICE_STATE, reason));
+  }
+
+  // Choice states by name, with their decisions.
+  private Map<String, String> findChoiceStates(FsmSyntax fsm) {
+    Map<String, String> choiceStates = new HashMap<>();
+    for (Transition t : fsm.logic)
+      if (t.state.decision != null)
+        choiceStates.putIfAbsent(t.state.name, t.state.decision);
+    return choiceStates;
+  }
+
   private void checkUndefinedState(String referencedState, AnalysisError.ID errorCode) {
     if (referencedState != null && !semanticStateMachine.states.containsKey(referencedState)) {
       semanticStateMachine.errors.add(new AnalysisError(errorCode, referencedState));
@@ -263,6 +330,8 @@ public class SemanticAnalyzer {
     state.entryActions.addAll(t.state.entryActions);
     state.exitActions.addAll(t.state.exitActions);
     state.abstractState |= t.state.abstractState;
+    if (t.state.decision != null)
+      state.decision = t.state.decision;
     for (String superStateName : t.state.superStates)
       state.superStates.add(semanticStateMachine.states.get(superStateName));
     return state;
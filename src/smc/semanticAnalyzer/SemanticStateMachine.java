@@ -8,6 +8,7 @@ public class SemanticStateMachine {
   public SortedMap<String, SemanticState> states = new TreeMap<>();
   public Set<String> events = new HashSet<>();
   public Set<String> actions = new HashSet<>();
+  public Set<String> decisions = new HashSet<>();
   public SemanticState initialState;
   public String actionClass;
   public String fsmName;
@@ -40,6 +41,7 @@ public class SemanticStateMachine {
     public List<String> entryActions = new ArrayList<>();
     public List<String> exitActions = new ArrayList<>();
     public boolean abstractState = false;
+    public String decision;
     public SortedSet<SemanticState> superStates = new TreeSet<>();
     public List<SemanticTransition> transitions = new ArrayList<>();
 
@@ -56,6 +58,7 @@ public class SemanticStateMachine {
             Objects.equals(other.exitActions, exitActions) &&
             Objects.equals(other.superStates, superStates) &&
             Objects.equals(other.transitions, transitions) &&
+            Objects.equals(other.decision, decision) &&
             other.abstractState == abstractState;
       } else
         return false;
@@ -103,6 +106,8 @@ public class SemanticStateMachine {
         stateName += " <" + entryAction;
       for (String exitAction : exitActions)
         stateName += " >" + exitAction;
+      if (decision != null)
+        stateName += " ?" + decision;
       return stateName;
     }
 
@@ -125,6 +130,8 @@ public class SemanticStateMachine {
       INCONSISTENT_ABSTRACTION,
       STATE_ACTIONS_MULTIPLY_DEFINED,
       CONFLICTING_SUPERSTATES,
+      INVALID_CHOICE_STATE,
+      CHOICE_CYCLE,
     }
 
     private ID id;
@@ -4,6 +4,9 @@ import de.bechte.junit.runners.context.HierarchicalContextRunner;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static smc.Utilities.compressWhiteSpace;
@@ -63,4 +66,25 @@ public class UtilitiesTest {
         is("this is\na string\nwith\nmany\nwhitespaces"));
     }
   }
+
+  public class ReentrantQueueCapacity {
+    @Test
+    public void noFlagMeansNoQueue() throws Exception {
+      assertThat(Utilities.reentrantQueueCapacity(new HashMap<>()), is(0));
+    }
+
+    @Test
+    public void queueHasTheDefaultCapacity() throws Exception {
+      Map<String, String> flags = new HashMap<>();
+      flags.put("reentrant", "queue");
+      assertThat(Utilities.reentrantQueueCapacity(flags), is(16));
+    }
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() throws Exception {
+      Map<String, String> flags = new HashMap<>();
+      flags.put("reentrant", "100");
+      assertThat(Utilities.reentrantQueueCapacity(flags), is(128));
+    }
+  }
 }
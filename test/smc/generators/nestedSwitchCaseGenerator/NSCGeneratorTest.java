@@ -6,6 +6,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import smc.OptimizedStateMachine;
 import smc.lexer.Lexer;
+import smc.optimizer.DelegationOptimizer;
 import smc.optimizer.Optimizer;
 import smc.parser.Parser;
 import smc.parser.SyntaxBuilder;
@@ -94,12 +95,26 @@ public class NSCGeneratorTest {
       output += String.format(" default(%s);", defaultCaseNode.state);
     }
 
+    public void visit(ChoiceNode choiceNode) {
+
+    }
+
+    public void visit(HandlerNode handlerNode) {
+
+    }
+
+    public void visit(DelegateNode delegateNode) {
+
+    }
+
     public void visit(FSMClassNode fsmClassNode) {
       fsmClassNode.delegators.accept(this);
       fsmClassNode.stateEnum.accept(this);
       fsmClassNode.eventEnum.accept(this);
       fsmClassNode.stateProperty.accept(this);
       fsmClassNode.handleEvent.accept(this);
+      for (HandlerNode handler : fsmClassNode.handlers)
+        handler.accept(this);
     }
   }
 
@@ -143,6 +158,38 @@ public class NSCGeneratorTest {
           "case S {s event {case e1 {setState(State.I) a3() }" +
           "case e2 {setState(State.S) a4() } default(S);}}}");
     }
+
+    @Test
+    public void choiceBecomesASwitchOnTheDecision() throws Exception {
+      assertGenerated(
+        "" +
+          "{" +
+          "  I e C a" +
+          "  C ?d {y S b n C2 -}" +
+          "  C2 ?d2 {y I - n S -}" +
+          "  S e I -" +
+          "}",
+        "" +
+          "s state {" +
+          "case I {s event {case e {choose d {" +
+          "0 {setState(State.S) a() b() }" +
+          "1 {choose d2 {0 {setState(State.I) a() }1 {setState(State.S) a() } default(I);}}" +
+          " default(I);}} default(I);}}" +
+          "case S {s event {case e {setState(State.I) } default(S);}}}");
+    }
+
+    @Test
+    public void delegatingStatesDefaultToTheirSuperstatesHandler() throws Exception {
+      OptimizedStateMachine sm = headerAndSttToSm(stdHead, "{(B) {x I a y I b} I:B e J - J:B e K - K:B e I -}");
+      new DelegationOptimizer().optimize(sm);
+      generator.generate(sm).accept(implementer);
+      assertThat(output, equalTo("" +
+        "s state {" +
+        "case I {s event {case e {setState(State.J) } delegate(B, I);}}" +
+        "case J {s event {case e {setState(State.K) } delegate(B, J);}}" +
+        "case K {s event {case e {setState(State.I) } delegate(B, K);}}}" +
+        " handler B {s event {case x {setState(State.I) a() }case y {setState(State.I) b() }}}"));
+    }
   } // SwitchCase Tests.
 
   private class TestVisitor extends EmptyVisitor {
@@ -165,6 +212,27 @@ public class NSCGeneratorTest {
         functionCallNode.argument.accept(this);
       output += ") ";
     }
+
+    public void visit(ChoiceNode choiceNode) {
+      output += String.format("choose %s {", choiceNode.decision);
+      for (int i = 0; i < choiceNode.branches.size(); i++) {
+        output += i + " {";
+        choiceNode.branches.get(i).accept(this);
+        output += "}";
+      }
+      choiceNode.defaultCase.accept(this);
+      output += "}";
+    }
+
+    public void visit(HandlerNode handlerNode) {
+      output += String.format(" handler %s {", handlerNode.superState);
+      handlerNode.eventSwitch.accept(this);
+      output += "}";
+    }
+
+    public void visit(DelegateNode delegateNode) {
+      output += String.format(" delegate(%s, %s);", delegateNode.handler.superState, delegateNode.defaultCase.state);
+    }
   }
 
   public class EnumTests {
@@ -6,6 +6,7 @@ import smc.OptimizedStateMachine;
 import smc.generators.nestedSwitchCaseGenerator.NSCGenerator;
 import smc.generators.nestedSwitchCaseGenerator.NSCNode;
 import smc.lexer.Lexer;
+import smc.optimizer.DelegationOptimizer;
 import smc.optimizer.Optimizer;
 import smc.parser.Parser;
 import smc.parser.SyntaxBuilder;
@@ -13,8 +14,10 @@ import smc.semanticAnalyzer.SemanticStateMachine;
 import smc.semanticAnalyzer.SemanticAnalyzer;
 
 import java.util.HashMap;
+import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
 import static smc.Utilities.compressWhiteSpace;
@@ -134,4 +137,190 @@ public class CNestedSwitchCaseImplementerTest {
       "  processEvent(fsm->state, E, fsm, \"E\");\n" +
       "}\n");
   }
+
+  @Test
+  public void batchHandlerKeepsTheStateInALocal() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("batch", "true");
+    implementer = new CNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+      "Initial: I\n" +
+      "Fsm: fsm\n" +
+      "Actions: acts\n" +
+      "{" +
+      "  I E I A" +
+      "}");
+    generator.generate(sm).accept(implementer);
+    assertThat(compressWhiteSpace(implementer.getFsmHeader()), containsString(compressWhiteSpace("" +
+      "enum fsm_Event {fsm_Event_E};\n" +
+      "void fsm_handleEvents(struct fsm*, const int *events, int offset, int count);\n")));
+    assertThat(implementer.getFsmImplementation(), containsString("static char *event_names[] = {\"E\"};\n"));
+    assertThat(compressWhiteSpace(implementer.getFsmImplementation()), containsString(compressWhiteSpace("" +
+      "void fsm_handleEvents(struct fsm *fsm, const int *events, int offset, int count) {\n" +
+      "  enum State state = fsm->state;\n" +
+      "  for (int i = offset; i < offset + count; i++) {\n" +
+      "    enum Event event = events[i];\n" +
+      "    switch (state) {\n" +
+      "      case I:\n" +
+      "        switch (event) {\n" +
+      "          case E:\n" +
+      "            state = I;\n" +
+      "            A(fsm);\n" +
+      "            break;\n" +
+      "          default:\n" +
+      "            (fsm->actions->unexpected_transition)(\"I\", event_names[event]);\n" +
+      "            break;\n" +
+      "        }\n" +
+      "        break;\n" +
+      "    }\n" +
+      "  }\n" +
+      "  fsm->state = state;\n" +
+      "}\n")));
+  }
+
+  @Test
+  public void histogramsTimeStatesAndTransitions() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("metrics", "histograms");
+    implementer = new CNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+      "Initial: I\n" +
+      "Fsm: fsm\n" +
+      "Actions: acts\n" +
+      "{" +
+      "  I E I A" +
+      "}");
+    generator.generate(sm).accept(implementer);
+    assertThat(compressWhiteSpace(implementer.getFsmHeader()), containsString(
+      "unsigned long long fsm_stateDwellPercentile(const char *state, double percentile);"));
+    assertThat(compressWhiteSpace(implementer.getFsmImplementation()), containsString(compressWhiteSpace("" +
+      "case E:\n" +
+      "  setState(fsm, I);\n" +
+      "  enter_state(fsm, I);\n" +
+      "  A(fsm);\n" +
+      "  transition_done(fsm, 0);\n" +
+      "  break;\n")));
+  }
+
+  @Test
+  public void reentrantQueueRunsEventsRaisedByActionsToCompletion() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("reentrant", "10");
+    implementer = new CNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+      "Initial: I\n" +
+      "Fsm: fsm\n" +
+      "Actions: acts\n" +
+      "{" +
+      "  I E I A" +
+      "}");
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getFsmImplementation());
+    assertThat(output, containsString("#define PENDING_SIZE 16\n"));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "static void run_to_completion(struct fsm *fsm, enum Event event, char *event_name) {\n" +
+      "  if (fsm->dispatching) {\n" +
+      "    if (fsm->pending_count == PENDING_SIZE)\n" +
+      "      (fsm->actions->unexpected_transition)(\"queue full\", event_name);\n" +
+      "    else\n" +
+      "      fsm->pending[(fsm->pending_head + fsm->pending_count++) & (PENDING_SIZE - 1)] = event;\n" +
+      "    return;\n" +
+      "  }\n")));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "void fsm_E(struct fsm* fsm) {\n" +
+      "  run_to_completion(fsm, E, \"E\");\n" +
+      "}\n")));
+  }
+
+  @Test
+  public void choiceSwitchesOnTheDecision() throws Exception {
+    OptimizedStateMachine sm = produceStateMachine("" +
+      "Initial: I\n" +
+      "Fsm: fsm\n" +
+      "Actions: acts\n" +
+      "{" +
+      "  I E C A" +
+      "  C ?d {y I B n J -}" +
+      "  J E I -" +
+      "}");
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getFsmImplementation());
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "static int d(struct fsm *fsm) {\n" +
+      "  return fsm->actions->d();\n" +
+      "}\n")));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "case E:\n" +
+      "switch (d(fsm)) {\n" +
+      "case 0:\n" +
+      "  setState(fsm, I);\n" +
+      "  A(fsm);\n" +
+      "  B(fsm);\n" +
+      "  break;\n" +
+      "case 1:\n" +
+      "  setState(fsm, J);\n" +
+      "  A(fsm);\n" +
+      "  break;\n" +
+      "default:\n" +
+      "  (fsm->actions->unexpected_transition)(\"I\", event_name);\n" +
+      "  break;\n" +
+      "}\n" +
+      "break;\n")));
+  }
+
+  @Test
+  public void substatesDelegateToTheirSuperstatesHandler() throws Exception {
+    OptimizedStateMachine sm = produceStateMachine("" +
+      "Initial: I Fsm: fsm Actions: acts {(B) {X I A Y I B} I:B E J - J:B E K - K:B E I -}");
+    new DelegationOptimizer().optimize(sm);
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getFsmImplementation());
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "static int super_B(struct fsm *fsm, enum Event event) {\n" +
+      "  switch (event) {\n" +
+      "    case X:\n" +
+      "      setState(fsm, I);\n" +
+      "      A(fsm);\n" +
+      "      break;\n" +
+      "    case Y:\n" +
+      "      setState(fsm, I);\n" +
+      "      B(fsm);\n" +
+      "      break;\n" +
+      "    default:\n" +
+      "      return 0;\n" +
+      "  }\n" +
+      "  return 1;\n" +
+      "}\n")));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "case J:\n" +
+      "  switch (event) {\n" +
+      "    case E:\n" +
+      "      setState(fsm, K);\n" +
+      "      break;\n" +
+      "    default:\n" +
+      "      if (super_B(fsm, event))\n" +
+      "        break;\n" +
+      "      (fsm->actions->unexpected_transition)(\"J\", event_name);\n" +
+      "      break;\n" +
+      "  }\n")));
+  }
+
+  @Test
+  public void entryAndExitChainsAreSharedFunctions() throws Exception {
+    lexer.lex("Initial: I Fsm: fsm Actions: acts {(B) >BX {} I:B >IX E J - J:B >JX E I -}");
+    parser.handleEvent(EOF, -1, -1);
+    OptimizedStateMachine sm = optimizer.optimize(analyzer.analyze(builder.getFsm()), true);
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getFsmImplementation());
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "static void exit_I(struct fsm *fsm) {\n" +
+      "  IX(fsm);\n" +
+      "  BX(fsm);\n" +
+      "}\n")));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "case E:\n" +
+      "  setState(fsm, J);\n" +
+      "  exit_I(fsm);\n" +
+      "  break;\n")));
+  }
 }
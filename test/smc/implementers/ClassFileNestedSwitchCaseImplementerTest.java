@@ -0,0 +1,104 @@
+package smc.implementers;
+
+import org.junit.Before;
+import org.junit.Test;
+import smc.OptimizedStateMachine;
+import smc.generators.nestedSwitchCaseGenerator.NSCGenerator;
+import smc.generators.nestedSwitchCaseGenerator.NSCNode;
+import smc.lexer.Lexer;
+import smc.optimizer.Optimizer;
+import smc.parser.Parser;
+import smc.parser.SyntaxBuilder;
+import smc.semanticAnalyzer.SemanticAnalyzer;
+import smc.semanticAnalyzer.SemanticStateMachine;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static smc.parser.ParserEvent.EOF;
+
+public class ClassFileNestedSwitchCaseImplementerTest {
+  private Lexer lexer;
+  private Parser parser;
+  private SyntaxBuilder builder;
+  private SemanticAnalyzer analyzer;
+  private Optimizer optimizer;
+  private NSCGenerator generator;
+  private Map<String, String> flags = new HashMap<>();
+
+  @Before
+  public void setUp() throws Exception {
+    builder = new SyntaxBuilder();
+    parser = new Parser(builder);
+    lexer = new Lexer(parser);
+    analyzer = new SemanticAnalyzer();
+    optimizer = new Optimizer();
+    generator = new NSCGenerator();
+  }
+
+  private OptimizedStateMachine produceStateMachine(String fsmSyntax) {
+    lexer.lex(fsmSyntax);
+    parser.handleEvent(EOF, -1, -1);
+    SemanticStateMachine ast = analyzer.analyze(builder.getFsm());
+    return optimizer.optimize(ast);
+  }
+
+  private Class<?> loadTurnstile() throws Exception {
+    ClassFileNestedSwitchCaseImplementer implementer = new ClassFileNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+      "Initial: Locked\n" +
+      "Fsm: Turnstile\n" +
+      "{" +
+      "  Locked Coin Unlocked unlock" +
+      "  Locked Pass Locked alarm" +
+      "  Unlocked Coin Unlocked thankyou" +
+      "  Unlocked Pass Locked lock" +
+      "}");
+    NSCNode generatedFsm = generator.generate(sm);
+    generatedFsm.accept(implementer);
+    byte[] bytes = implementer.getOutput();
+    String name = implementer.getClassName().replace('/', '.');
+    ClassLoader loader = new ClassLoader(getClass().getClassLoader()) {
+      protected Class<?> findClass(String className) throws ClassNotFoundException {
+        if (!className.equals(name))
+          throw new ClassNotFoundException(className);
+        return defineClass(className, bytes, 0, bytes.length);
+      }
+    };
+    return Class.forName(name, true, loader);
+  }
+
+  @Test
+  public void generatedClassVerifiesAndHasTheJavaBackendsShape() throws Exception {
+    Class<?> turnstile = loadTurnstile();
+    assertThat(Modifier.isAbstract(turnstile.getModifiers()), is(true));
+    assertThat(Modifier.isPublic(turnstile.getModifiers()), is(true));
+    assertThat(Modifier.isPublic(turnstile.getMethod("Coin").getModifiers()), is(true));
+    assertThat(Modifier.isPublic(turnstile.getMethod("Pass").getModifiers()), is(true));
+    Method unhandled = turnstile.getMethod("unhandledTransition", String.class, String.class);
+    assertThat(Modifier.isAbstract(unhandled.getModifiers()), is(true));
+    Method unlock = turnstile.getDeclaredMethod("unlock");
+    assertThat(Modifier.isProtected(unlock.getModifiers()), is(true));
+    assertThat(Modifier.isAbstract(unlock.getModifiers()), is(true));
+    assertThat(turnstile.getDeclaredField("state").getType(), equalTo(int.class));
+  }
+
+  @Test
+  public void packageFlagPlacesTheClassInThePackage() throws Exception {
+    flags.put("package", "thePackage.sub");
+    Class<?> turnstile = loadTurnstile();
+    assertThat(turnstile.getName(), equalTo("thePackage.sub.Turnstile"));
+  }
+
+  @Test
+  public void splitStatesMovesEachStateIntoItsOwnMethod() throws Exception {
+    flags.put("split", "states");
+    Class<?> turnstile = loadTurnstile();
+    assertThat(turnstile.getDeclaredMethod("handle_Locked", int.class), notNullValue());
+    assertThat(turnstile.getDeclaredMethod("handle_Unlocked", int.class), notNullValue());
+  }
+}
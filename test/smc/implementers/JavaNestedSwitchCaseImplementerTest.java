@@ -6,6 +6,7 @@ import smc.OptimizedStateMachine;
 import smc.generators.nestedSwitchCaseGenerator.NSCGenerator;
 import smc.generators.nestedSwitchCaseGenerator.NSCNode;
 import smc.lexer.Lexer;
+import smc.optimizer.DelegationOptimizer;
 import smc.optimizer.Optimizer;
 import smc.parser.Parser;
 import smc.parser.SyntaxBuilder;
@@ -123,4 +124,610 @@ public class JavaNestedSwitchCaseImplementerTest {
     assertThat(output, containsString("protected abstract void A();\n"));
   }
 
+  @Test
+  public void splitStatesFlagEmitsOneMethodPerState() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("split", "states");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+        "Initial: I\n" +
+        "Fsm: fsm\n" +
+        "Actions: acts\n" +
+        "{" +
+        "  I E S A" +
+        "  S E I -" +
+        "}");
+    generator.generate(sm).accept(implementer);
+    assertThat(compressWhiteSpace(implementer.getOutput()), containsString(compressWhiteSpace("" +
+      "private void handleEvent(Event event) {\n" +
+      "  switch(state.ordinal()) {\n" +
+      "    case 0: handle_I(event); break;\n" +
+      "    case 1: handle_S(event); break;\n" +
+      "  }\n" +
+      "}\n" +
+      "private void handle_I(Event event) {\n" +
+      "  switch(event) {\n" +
+      "    case E:\n" +
+      "      setState(State.S);\n" +
+      "      A();\n" +
+      "      break;\n" +
+      "    default: unhandledTransition(state.name(), event.name()); break;\n" +
+      "  }\n" +
+      "}\n" +
+      "private void handle_S(Event event) {\n" +
+      "  switch(event) {\n" +
+      "    case E:\n" +
+      "      setState(State.I);\n" +
+      "      break;\n" +
+      "    default: unhandledTransition(state.name(), event.name()); break;\n" +
+      "  }\n" +
+      "}\n")));
+  }
+
+  @Test
+  public void splitClassesFlagMovesStateHandlersIntoNestedClasses() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("split", "classes");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+        "Initial: I\n" +
+        "Fsm: fsm\n" +
+        "Actions: acts\n" +
+        "{" +
+        "  I E I A" +
+        "}");
+    generator.generate(sm).accept(implementer);
+    assertThat(compressWhiteSpace(implementer.getOutput()), containsString(compressWhiteSpace("" +
+      "private void handleEvent(Event event) {\n" +
+      "  int s = state.ordinal();\n" +
+      "  switch(s / 1) {\n" +
+      "    case 0: StateHandlers0.handleEvent(this, s, event); break;\n" +
+      "  }\n" +
+      "}\n" +
+      "private static final class StateHandlers0 {\n" +
+      "  static void handleEvent(fsm fsm, int s, Event event) {\n" +
+      "    switch(s) {\n" +
+      "      case 0: handle_I(fsm, event); break;\n" +
+      "    }\n" +
+      "  }\n" +
+      "  private static void handle_I(fsm fsm, Event event) {\n" +
+      "    switch(event) {\n" +
+      "      case E:\n" +
+      "        fsm.setState(State.I);\n" +
+      "        fsm.A();\n" +
+      "        break;\n" +
+      "      default: fsm.unhandledTransition(fsm.state.name(), event.name()); break;\n" +
+      "    }\n" +
+      "  }\n" +
+      "}\n")));
+  }
+
+  @Test
+  public void hugeStateMachinesAreSplitIntoStateMethods() throws Exception {
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(emptyFlags);
+    String stt = "";
+    for (int state = 0; state < 60; state++)
+      for (int event = 0; event < 10; event++)
+        stt += String.format("  S%d E%d S%d {A%d B%d}\n", state, event, (state + event) % 60, event, state);
+    OptimizedStateMachine sm = produceStateMachine("Initial: S0 Fsm: fsm Actions: acts {" + stt + "}");
+    generator.generate(sm).accept(implementer);
+    String output = implementer.getOutput();
+    assertThat(output, containsString("switch(state.ordinal()) {\n"));
+    assertThat(output, containsString("private void handle_S59(Event event) {\n"));
+  }
+
+  @Test
+  public void batchOfAHugeStateMachineCallsTheStateMethods() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("batch", "true");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    String stt = "";
+    for (int state = 0; state < 60; state++)
+      for (int event = 0; event < 10; event++)
+        stt += String.format("  S%d E%d S%d {A%d B%d}\n", state, event, (state + event) % 60, event, state);
+    OptimizedStateMachine sm = produceStateMachine("Initial: S0 Fsm: fsm Actions: acts {" + stt + "}");
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "public void handleEvents(int[] events, int offset, int count) {\n" +
+      "Event[] eventValues = Event.values();\n" +
+      "for (int i = offset; i < offset + count; i++) {\n" +
+      "Event event = eventValues[events[i]];\n" +
+      "switch(state.ordinal()) {\n" +
+      "case 0: handle_S0(event); break;\n")));
+    assertThat(output, not(containsString("state = State.S1;")));
+  }
+
+  @Test
+  public void batchOfSplitClassesCallsTheStateHandlerClasses() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("batch", "true");
+    flags.put("split", "classes");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("Initial: I Fsm: fsm Actions: acts {I E I A}");
+    generator.generate(sm).accept(implementer);
+    assertThat(compressWhiteSpace(implementer.getOutput()), containsString(compressWhiteSpace("" +
+      "for (int i = offset; i < offset + count; i++) {\n" +
+      "Event event = eventValues[events[i]];\n" +
+      "int s = state.ordinal();\n" +
+      "switch(s / 1) {\n" +
+      "case 0: StateHandlers0.handleEvent(this, s, event); break;\n" +
+      "}\n" +
+      "}\n")));
+  }
+
+  @Test
+  public void intStyleUsesIntConstantsAndLazyNameTables() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("style", "int");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+        "Initial: I\n" +
+        "Fsm: fsm\n" +
+        "Actions: acts\n" +
+        "{" +
+        "  I E I A" +
+        "}");
+    generator.generate(sm).accept(implementer);
+    assertWhitespaceEquivalent(implementer.getOutput(), "" +
+      "public abstract class fsm implements acts {\n" +
+      "public abstract void unhandledTransition(String state, String event);\n" +
+      "  private static final int State_I = 0;\n" +
+      "  private static final int Event_E = 0;\n" +
+      "  private static final class Names {\n" +
+      "    static final String[] STATES = {\"I\"};\n" +
+      "    static final String[] EVENTS = {\"E\"};\n" +
+      "  }\n" +
+      "  private int state = State_I;\n" +
+      "  private void setState(int s) {state = s;}\n" +
+      "  public void E() {handleEvent(Event_E);}\n" +
+      "  private void handleEvent(int event) {\n" +
+      "    switch(state) {\n" +
+      "      case State_I:\n" +
+      "        switch(event) {\n" +
+      "          case Event_E:\n" +
+      "            setState(State_I);\n" +
+      "            A();\n" +
+      "            break;\n" +
+      "          default: unhandledTransition(Names.STATES[state], Names.EVENTS[event]); break;\n" +
+      "        }\n" +
+      "        break;\n" +
+      "    }\n" +
+      "  }\n" +
+      "}\n");
+  }
+  @Test
+  public void compareAndSetConcurrencyCommitsTheStateBeforeTheActions() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("concurrency", "cas");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+        "Initial: I\n" +
+        "Fsm: fsm\n" +
+        "Actions: acts\n" +
+        "{" +
+        "  I E I A" +
+        "}");
+    generator.generate(sm).accept(implementer);
+    assertThat(compressWhiteSpace(implementer.getOutput()), containsString(compressWhiteSpace("" +
+      "private static final java.lang.invoke.VarHandle STATE;\n" +
+      "  static {\n" +
+      "    try {\n" +
+      "      STATE = java.lang.invoke.MethodHandles.lookup().findVarHandle(fsm.class, \"state\", int.class);\n" +
+      "    } catch (ReflectiveOperationException e) {\n" +
+      "      throw new ExceptionInInitializerError(e);\n" +
+      "    }\n" +
+      "  }\n" +
+      "  private volatile int state = State_I;\n" +
+      "  public void E() {handleEvent(Event_E);}\n" +
+      "  private void handleEvent(int event) {\n" +
+      "    while (!processEvent((int) STATE.getVolatile(this), event))\n" +
+      "      Thread.onSpinWait();\n" +
+      "  }\n" +
+      "  private boolean processEvent(int state, int event) {\n" +
+      "    switch(state) {\n" +
+      "      case State_I:\n" +
+      "        switch(event) {\n" +
+      "          case Event_E:\n" +
+      "            if (!STATE.compareAndSet(this, state, State_I)) return false;\n" +
+      "            A();\n" +
+      "            break;\n" +
+      "          default: unhandledTransition(Names.STATES[state], Names.EVENTS[event]); break;\n" +
+      "        }\n" +
+      "        break;\n" +
+      "    }\n" +
+      "    return true;\n" +
+      "  }\n")));
+  }
+
+  @Test
+  public void mailboxAddsPostMethodsAndABoundedRing() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("mailbox", "100");
+    flags.put("backpressure", "drop");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+        "Initial: I\n" +
+        "Fsm: fsm\n" +
+        "Actions: acts\n" +
+        "{" +
+        "  I E I A" +
+        "}");
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "public void E() {handleEvent(Event.E);}\n" +
+      "public boolean postE() {return post(Event.E);}\n")));
+    assertThat(output, containsString("private static final int MAILBOX_CAPACITY = 128;"));
+    assertThat(output, containsString("protected fsm(java.util.concurrent.Executor executor) {"));
+    assertThat(output, not(containsString("protected fsm() {")));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "private boolean post(Event event) {\n" +
+      "  while (!offer(event)) {\n" +
+      "    mailboxDropped.incrementAndGet();\n" +
+      "    return false;\n" +
+      "  }\n" +
+      "  if (mailboxScheduled.compareAndSet(false, true))\n" +
+      "    mailboxExecutor.execute(this::drainMailbox);\n" +
+      "  return true;\n" +
+      "}\n")));
+  }
+
+  @Test
+  public void batchHandlerKeepsTheStateInALocal() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("batch", "true");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+        "Initial: I\n" +
+        "Fsm: fsm\n" +
+        "Actions: acts\n" +
+        "{" +
+        "  I E I A" +
+        "}");
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, containsString("public static final int Event_E = 0;"));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "public void handleEvents(int[] events, int offset, int count) {\n" +
+      "  State state = this.state;\n" +
+      "  try {\n" +
+      "    for (int i = offset; i < offset + count; i++) {\n" +
+      "      int event = events[i];\n" +
+      "      switch(state) {\n" +
+      "        case I:\n" +
+      "          switch(event) {\n" +
+      "            case Event_E:\n" +
+      "              state = State.I;\n" +
+      "              A();\n" +
+      "              break;\n" +
+      "            default: unhandledTransition(state.name(), Event.values()[event].name()); break;\n" +
+      "          }\n" +
+      "          break;\n" +
+      "      }\n" +
+      "    }\n" +
+      "  } finally {\n" +
+      "    this.state = state;\n" +
+      "  }\n" +
+      "}\n")));
+  }
+
+  @Test
+  public void countersAreGuardedByAStaticFinalFlag() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("metrics", "counters");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+        "Initial: I\n" +
+        "Fsm: fsm\n" +
+        "Actions: acts\n" +
+        "{" +
+        "  I E I A" +
+        "}");
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, containsString(
+      "private static final boolean COUNTERS_ENABLED = !\"false\".equals(System.getProperty(\"smc.counters\"));"));
+    assertThat(output, containsString("public static java.util.Map<String, Long> snapshotCounters() {"));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "case E:\n" +
+      "  setState(State.I);\n" +
+      "  if (COUNTERS_ENABLED) TRANSITION_COUNTS[0].increment();\n" +
+      "  A();\n" +
+      "  break;\n" +
+      "default: if (COUNTERS_ENABLED) UNHANDLED_COUNTS[state.ordinal() * COUNTER_EVENTS + event.ordinal()].increment();\n" +
+      "  unhandledTransition(state.name(), event.name()); break;\n")));
+  }
+
+  @Test
+  public void histogramsTimeStatesAndTransitions() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("metrics", "counters+histograms");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+        "Initial: I\n" +
+        "Fsm: fsm\n" +
+        "Actions: acts\n" +
+        "{" +
+        "  I E I A" +
+        "}");
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, containsString("public static long stateDwellPercentile(String state, double percentile) {"));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "case E:\n" +
+      "  setState(State.I);\n" +
+      "  if (COUNTERS_ENABLED) TRANSITION_COUNTS[0].increment();\n" +
+      "  if (HISTOGRAMS_ENABLED) enterState(0);\n" +
+      "  A();\n" +
+      "  if (HISTOGRAMS_ENABLED) transitionDone(0);\n" +
+      "  break;\n")));
+  }
+
+  @Test
+  public void flightRecorderPacksTransitionsIntoARing() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("recorder", "3");
+    flags.put("dump", "unhandled");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+        "Initial: I\n" +
+        "Fsm: fsm\n" +
+        "Actions: acts\n" +
+        "{" +
+        "  I E J A" +
+        "  J E I A" +
+        "}");
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, containsString("private static final int RECORDER_SIZE = 4;"));
+    assertThat(output, containsString("public String dumpFlightRecorder() {"));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "case E:\n" +
+      "  setState(State.I);\n" +
+      "  recordTransition(1099511627776L);\n" +
+      "  A();\n" +
+      "  break;\n" +
+      "default: recordTransition((long) 1 << 40 | (long) event.ordinal() << 20 | UNHANDLED);\n" +
+      "  System.err.print(dumpFlightRecorder());\n" +
+      "  unhandledTransition(state.name(), event.name()); break;\n")));
+  }
+
+  @Test
+  public void jfrEventsAreGuardedByIsEnabled() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("jfr", "20ms");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+        "Initial: I\n" +
+        "Fsm: fsm\n" +
+        "Actions: acts\n" +
+        "{" +
+        "  I E I A" +
+        "}");
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, containsString("@jdk.jfr.Threshold(\"20 ms\")"));
+    assertThat(output, containsString("static final class TransitionEvent extends jdk.jfr.Event {"));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "case E:\n" +
+      "  TransitionEvent transition_0 = beginTransition();\n" +
+      "  setState(State.I);\n" +
+      "  A();\n" +
+      "  if (transition_0 != null) commitTransition(transition_0, \"I\", \"E\", \"I\");\n" +
+      "  break;\n" +
+      "default: if (UNHANDLED_EVENT.isEnabled()) commitUnhandled(\"I\", event.name());\n")));
+  }
+
+  @Test
+  public void flyweightKeepsEveryInstanceStateInOneArray() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("style", "flyweight");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+        "Initial: J\n" +
+        "Fsm: fsm\n" +
+        "{" +
+        "  I E J A" +
+        "  J E I -" +
+        "}");
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, containsString("public abstract void unhandledTransition(int instanceId, String state, String event);"));
+    assertThat(output, containsString("public static final int Event_E = 0;"));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "private final byte[] states;\n" +
+      "protected fsm(int instances) {\n" +
+      "states = new byte[instances];\n" +
+      "java.util.Arrays.fill(states, (byte) State_J);\n" +
+      "}\n")));
+    assertThat(output, containsString("public void E(int instanceId) {handleEvent(instanceId, Event_E);}"));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "public void handleEvent(int instanceId, int event) {\n" +
+      "switch(states[instanceId]) {\n" +
+      "case State_I:\n" +
+      "switch(event) {\n" +
+      "case Event_E:\n" +
+      "setState(instanceId, State_J);\n" +
+      "A(instanceId);\n" +
+      "break;\n" +
+      "default: unhandledTransition(instanceId, Names.STATES[states[instanceId]], Names.EVENTS[event]); break;\n")));
+    assertThat(output, containsString("protected abstract void A(int instanceId);"));
+    assertThat(output, containsString("public int stateCode(int instanceId) {return states[instanceId];}"));
+    assertThat(output, containsString("public void restoreState(int instanceId, int s) {setState(instanceId, s);}"));
+  }
+
+  @Test
+  public void publicStateAddsAStateGetter() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("state", "public");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("Initial: I Fsm: fsm {I E I A}");
+    generator.generate(sm).accept(implementer);
+    assertThat(compressWhiteSpace(implementer.getOutput()), containsString("public String getState() {return state.name();}"));
+
+    flags.put("style", "int");
+    implementer = new JavaNestedSwitchCaseImplementer(flags);
+    generator.generate(sm).accept(implementer);
+    assertThat(compressWhiteSpace(implementer.getOutput()), containsString("public String getState() {return Names.STATES[state];}"));
+  }
+
+  @Test
+  public void reentrantQueueRunsEventsRaisedByActionsToCompletion() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("reentrant", "queue");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("Initial: I Fsm: fsm {I E I A}");
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, containsString("public void E() {runToCompletion(Event.E);}"));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "private void runToCompletion(Event event) {\n" +
+      "if (dispatching) {\n" +
+      "if (pendingCount == pendingEvents.length)\n" +
+      "growPendingEvents();\n" +
+      "pendingEvents[(pendingHead + pendingCount++) & (pendingEvents.length - 1)] = event.ordinal();\n" +
+      "return;\n" +
+      "}\n" +
+      "dispatching = true;\n" +
+      "try {\n" +
+      "handleEvent(event);\n" +
+      "while (pendingCount > 0) {\n" +
+      "int next = pendingEvents[pendingHead];\n" +
+      "pendingHead = (pendingHead + 1) & (pendingEvents.length - 1);\n" +
+      "pendingCount--;\n" +
+      "handleEvent(EVENTS[next]);\n" +
+      "}\n" +
+      "} finally {\n" +
+      "dispatching = false;\n" +
+      "pendingCount = 0;\n" +
+      "}\n" +
+      "}\n")));
+  }
+
+  @Test
+  public void mailboxDrainsThroughTheRunToCompletionQueue() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("mailbox", "16");
+    flags.put("reentrant", "queue");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("Initial: I Fsm: fsm {I {E J RaiseF} J F I -}");
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, containsString("public void F() {runToCompletion(Event.F);}"));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "mailboxSequences.set(slot, head + MAILBOX_CAPACITY);\n" +
+      "runToCompletion(event);\n")));
+    assertThat(output, not(containsString(compressWhiteSpace("" +
+      "mailboxSequences.set(slot, head + MAILBOX_CAPACITY);\n" +
+      "handleEvent(event);\n"))));
+  }
+
+  @Test
+  public void choiceSwitchesOnTheDecisionAndFinishesEachBranch() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("metrics", "histograms");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("Initial: I Fsm: fsm {I E C A C ?d {y I B n J -} J E I -}");
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "case E:\n" +
+      "switch(d()) {\n" +
+      "case 0:\n" +
+      "  setState(State.I);\n" +
+      "  if (HISTOGRAMS_ENABLED) enterState(0);\n" +
+      "  A();\n" +
+      "  B();\n" +
+      "  if (HISTOGRAMS_ENABLED) transitionDone(0);\n" +
+      "  break;\n" +
+      "case 1:\n" +
+      "  setState(State.J);\n" +
+      "  if (HISTOGRAMS_ENABLED) enterState(0);\n" +
+      "  A();\n" +
+      "  if (HISTOGRAMS_ENABLED) transitionDone(0);\n" +
+      "  break;\n" +
+      "default: unhandledTransition(state.name(), event.name()); break;\n" +
+      "}\n" +
+      "break;\n")));
+    assertThat(output, containsString("protected abstract int d();"));
+  }
+
+  @Test
+  public void substatesDelegateToTheirSuperstatesHandler() throws Exception {
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(emptyFlags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+      "Initial: I Fsm: fsm {(B) {X I A Y I B} I:B E J - J:B E K - K:B E I -}");
+    new DelegationOptimizer().optimize(sm);
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "case I:\n" +
+      "  switch(event) {\n" +
+      "    case E:\n" +
+      "      setState(State.J);\n" +
+      "      break;\n" +
+      "    default: if (super_B(event)) break;\n" +
+      "    unhandledTransition(state.name(), event.name()); break;\n" +
+      "  }\n" +
+      "  break;\n")));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "private boolean super_B(Event event) {\n" +
+      "  switch(event) {\n" +
+      "    case X:\n" +
+      "      setState(State.I);\n" +
+      "      A();\n" +
+      "      break;\n" +
+      "    case Y:\n" +
+      "      setState(State.I);\n" +
+      "      B();\n" +
+      "      break;\n" +
+      "    default: return false;\n" +
+      "  }\n" +
+      "  return true;\n" +
+      "}\n")));
+  }
+
+  @Test
+  public void instrumentedSubstatesRenderTheHandlerInPlace() throws Exception {
+    Map<String, String> flags = new HashMap<>();
+    flags.put("metrics", "counters");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(flags);
+    OptimizedStateMachine sm = produceStateMachine("" +
+      "Initial: I Fsm: fsm {(B) {X I A Y I B} I:B E J - J:B E K - K:B E I -}");
+    new DelegationOptimizer().optimize(sm);
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, not(containsString("super_B")));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "default:\n" +
+      "switch(event) {\n" +
+      "case X:\n" +
+      "  setState(State.I);\n" +
+      "  if (COUNTERS_ENABLED) TRANSITION_COUNTS[1].increment();\n" +
+      "  A();\n" +
+      "  break;\n")));
+  }
+
+  @Test
+  public void entryAndExitChainsAreSharedFunctions() throws Exception {
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(emptyFlags);
+    lexer.lex("Initial: I Fsm: fsm {(B) >BX {} I:B >IX E J - J:B >JX E I -}");
+    parser.handleEvent(EOF, -1, -1);
+    OptimizedStateMachine sm = optimizer.optimize(analyzer.analyze(builder.getFsm()), true);
+    generator.generate(sm).accept(implementer);
+    String output = compressWhiteSpace(implementer.getOutput());
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "case E:\n" +
+      "  setState(State.J);\n" +
+      "  exit_I();\n" +
+      "  break;\n")));
+    assertThat(output, containsString(compressWhiteSpace("" +
+      "private void exit_I() {\n" +
+      "IX();\n" +
+      "BX();\n" +
+      "}\n")));
+    assertThat(output, containsString("protected abstract void IX();"));
+    assertThat(output, not(containsString("abstract void exit_I")));
+  }
 }
@@ -62,6 +62,10 @@ public class LexerTest implements TokenCollector {
     addToken("C");
   }
 
+  public void question(int line, int pos) {
+    addToken("Q");
+  }
+
   public void name(String name, int line, int pos) {
     addToken("#" + name + "#");
   }
@@ -116,6 +120,11 @@ public class LexerTest implements TokenCollector {
       assertLexResult(":", "C");
     }
 
+    @Test
+    public void findsQuestionMark() throws Exception {
+      assertLexResult("?", "Q");
+    }
+
     @Test
     public void findsSimpleName() throws Exception {
       assertLexResult("name", "#name#");
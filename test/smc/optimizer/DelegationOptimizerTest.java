@@ -0,0 +1,138 @@
+package smc.optimizer;
+
+import org.junit.Before;
+import org.junit.Test;
+import smc.OptimizedStateMachine;
+import smc.lexer.Lexer;
+import smc.parser.Parser;
+import smc.parser.SyntaxBuilder;
+import smc.runtime.TransitionTable;
+import smc.semanticAnalyzer.SemanticAnalyzer;
+import smc.semanticAnalyzer.SemanticStateMachine;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static smc.Utilities.compressWhiteSpace;
+import static smc.parser.ParserEvent.EOF;
+
+public class DelegationOptimizerTest {
+  private Optimizer optimizer;
+  private DelegationOptimizer delegationOptimizer;
+
+  @Before
+  public void setUp() throws Exception {
+    optimizer = new Optimizer();
+    delegationOptimizer = new DelegationOptimizer();
+  }
+
+  private OptimizedStateMachine produceStateMachine(String stt) {
+    SyntaxBuilder builder = new SyntaxBuilder();
+    Parser parser = new Parser(builder);
+    Lexer lexer = new Lexer(parser);
+    lexer.lex("fsm:f initial:i actions:a " + stt);
+    parser.handleEvent(EOF, -1, -1);
+    SemanticStateMachine ast = new SemanticAnalyzer().analyze(builder.getFsm());
+    return optimizer.optimize(ast);
+  }
+
+  private void assertDelegated(String stt, String transitions) {
+    OptimizedStateMachine sm = delegationOptimizer.optimize(produceStateMachine(stt));
+    assertThat(compressWhiteSpace(sm.transitionsToString()), equalTo(compressWhiteSpace(transitions)));
+  }
+
+  @Test
+  public void substatesRecordTheirSuperStates() throws Exception {
+    OptimizedStateMachine sm = produceStateMachine("{(b1) - - - (b2):b1 - - - i:b2 e i -}");
+    assertThat(sm.transitions.get(0).superStates, containsInAnyOrder("b1", "b2"));
+  }
+
+  @Test
+  public void sharedInheritedTransitionsMoveIntoTheHandler() throws Exception {
+    assertDelegated(
+      "{(b) {x i a y i b} i:b e j - j:b e k - k:b e i -}",
+      "" +
+        "i {\n" +
+        "  e j {}\n" +
+        "  * super b\n" +
+        "}\n" +
+        "j {\n" +
+        "  e k {}\n" +
+        "  * super b\n" +
+        "}\n" +
+        "k {\n" +
+        "  e i {}\n" +
+        "  * super b\n" +
+        "}\n" +
+        "super b {\n" +
+        "  x i {a}\n" +
+        "  y i {b}\n" +
+        "}\n");
+  }
+
+  @Test
+  public void aSmallHierarchyStaysFlat() throws Exception {
+    OptimizedStateMachine sm = delegationOptimizer.optimize(produceStateMachine("{(b) {x i a y i b} i:b e j - j:b e i -}"));
+    assertThat(sm.handlers, is(empty()));
+    assertThat(sm.transitions.get(0).subTransitions, hasSize(3));
+  }
+
+  @Test
+  public void overridingSubstatesKeepTheirOwnCase() throws Exception {
+    assertDelegated(
+      "{(b) {x i a y i b} i:b e j - j:b e k - k:b e l - l:b {e i - x l c}}",
+      "" +
+        "i {\n" +
+        "  e j {}\n" +
+        "  * super b\n" +
+        "}\n" +
+        "j {\n" +
+        "  e k {}\n" +
+        "  * super b\n" +
+        "}\n" +
+        "k {\n" +
+        "  e l {}\n" +
+        "  * super b\n" +
+        "}\n" +
+        "l {\n" +
+        "  e i {}\n" +
+        "  x l {c}\n" +
+        "  * super b\n" +
+        "}\n" +
+        "super b {\n" +
+        "  x i {a}\n" +
+        "  y i {b}\n" +
+        "}\n");
+  }
+
+  @Test
+  public void transitionsBackToTheSubstateAreNotShared() throws Exception {
+    OptimizedStateMachine sm = delegationOptimizer.optimize(
+      produceStateMachine("{(b) {x - a y - b} i:b e j - j:b e k - k:b e i -}"));
+    assertThat(sm.handlers, is(empty()));
+  }
+
+  @Test
+  public void choicesAreNotShared() throws Exception {
+    OptimizedStateMachine sm = delegationOptimizer.optimize(
+      produceStateMachine("{(b) {x c a y c b} c ?d {p i - q j -} i:b e j - j:b e k - k:b e i -}"));
+    assertThat(sm.handlers, is(empty()));
+  }
+
+  @Test
+  public void theSuperstateThatSavesTheMostIsChosen() throws Exception {
+    OptimizedStateMachine sm = delegationOptimizer.optimize(produceStateMachine("" +
+      "{(b1) {x i a y i b} (b2):b1 {z i c w i d} i:b2 e j - j:b2 e k - k:b2 e m - m:b1 e i -}"));
+    assertThat(sm.handlers, hasSize(1));
+    assertThat(sm.handlers.get(0).currentState, equalTo("b2"));
+    assertThat(sm.handlers.get(0).subTransitions, hasSize(4));
+  }
+
+  @Test
+  public void theTransitionTableIsTheSameAsTheFlatOne() throws Exception {
+    String stt = "{(b) {x i a y i b} i:b e j - j:b e k - k:b e l - l:b {e i - x l c}}";
+    OptimizedStateMachine flat = produceStateMachine(stt);
+    OptimizedStateMachine delegated = delegationOptimizer.optimize(produceStateMachine(stt));
+    assertThat(delegated.handlers, hasSize(1));
+    assertThat(TransitionTable.of(delegated).getFingerprint(), equalTo(TransitionTable.of(flat).getFingerprint()));
+  }
+}
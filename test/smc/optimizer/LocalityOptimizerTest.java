@@ -0,0 +1,151 @@
+package smc.optimizer;
+
+import org.junit.Before;
+import org.junit.Test;
+import smc.OptimizedStateMachine;
+import smc.lexer.Lexer;
+import smc.parser.Parser;
+import smc.parser.SyntaxBuilder;
+import smc.semanticAnalyzer.SemanticAnalyzer;
+import smc.semanticAnalyzer.SemanticStateMachine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static smc.Utilities.compressWhiteSpace;
+import static smc.parser.ParserEvent.EOF;
+
+public class LocalityOptimizerTest {
+  private Lexer lexer;
+  private Parser parser;
+  private SyntaxBuilder builder;
+  private SemanticAnalyzer analyzer;
+  private Optimizer optimizer;
+  private LocalityOptimizer localityOptimizer;
+
+  @Before
+  public void setUp() throws Exception {
+    builder = new SyntaxBuilder();
+    parser = new Parser(builder);
+    lexer = new Lexer(parser);
+    analyzer = new SemanticAnalyzer();
+    optimizer = new Optimizer();
+    localityOptimizer = new LocalityOptimizer();
+  }
+
+  private OptimizedStateMachine produceStateMachine(String stt) {
+    lexer.lex("fsm:f initial:i actions:a " + stt);
+    parser.handleEvent(EOF, -1, -1);
+    SemanticStateMachine ast = analyzer.analyze(builder.getFsm());
+    return optimizer.optimize(ast);
+  }
+
+  @Test
+  public void statesAreOrderedBreadthFirstFromTheInitialState() throws Exception {
+    OptimizedStateMachine sm = produceStateMachine("{a e b - b e c - c e a - i e c -}");
+    localityOptimizer.optimize(sm);
+    assertThat(sm.states, contains("i", "c", "a", "b"));
+  }
+
+  @Test
+  public void unreachableStatesKeepTheirOrderAtTheEnd() throws Exception {
+    OptimizedStateMachine sm = produceStateMachine("{y e x - x e y - i e i -}");
+    localityOptimizer.optimize(sm);
+    assertThat(sm.states, contains("i", "x", "y"));
+  }
+
+  @Test
+  public void eventsUsedByTheMostStatesComeFirst() throws Exception {
+    OptimizedStateMachine sm = produceStateMachine("{i {e1 s - e2 s -} s {e2 i - e3 i -}}");
+    localityOptimizer.optimize(sm);
+    assertThat(sm.events.get(0), equalTo("e2"));
+    assertThat(sm.events, containsInAnyOrder("e1", "e2", "e3"));
+  }
+
+  @Test
+  public void transitionsFollowTheNewStateOrder() throws Exception {
+    OptimizedStateMachine sm = produceStateMachine("{a e i - i e a -}");
+    localityOptimizer.optimize(sm);
+    assertThat(compressWhiteSpace(sm.transitionsToString()), equalTo(compressWhiteSpace("" +
+      "i {\n" +
+      "  e a {}\n" +
+      "}\n" +
+      "a {\n" +
+      "  e i {}\n" +
+      "}\n")));
+  }
+
+  @Test
+  public void profileMovesHotTransitionsForward() throws Exception {
+    OptimizedStateMachine sm = produceStateMachine("{i {e1 a - e2 b -} a e1 i - b e2 i -}");
+    Map<String, Long> profile = new HashMap<>();
+    profile.put("i.e2", 100L);
+    profile.put("b.e2", 100L);
+    localityOptimizer.optimize(sm, profile);
+    assertThat(sm.states, contains("i", "b", "a"));
+    assertThat(sm.events, contains("e2", "e1"));
+    assertThat(sm.transitions.get(0).subTransitions.get(0).event, equalTo("e2"));
+  }
+
+  private static final String TURNSTILE = "{i e Locked - Locked {Coin Unlocked - Pass Locked -} Unlocked {Coin Unlocked - Pass Locked -}}";
+
+  private OptimizedStateMachine turnstile;
+
+  private Map<String, Long> parseProfile(String profileText) {
+    if (turnstile == null)
+      turnstile = produceStateMachine(TURNSTILE);
+    return LocalityOptimizer.parseProfile("turnstile.profile", profileText, turnstile);
+  }
+
+  private void assertProfileError(String profileText, LocalityOptimizer.ProfileError.Type type, int lineNumber, String token) {
+    try {
+      parseProfile(profileText);
+      fail("expected a ProfileError");
+    } catch (LocalityOptimizer.ProfileError e) {
+      assertThat(e.type, equalTo(type));
+      assertThat(e.path, equalTo("turnstile.profile"));
+      assertThat(e.lineNumber, equalTo(lineNumber));
+      assertThat(e.token, equalTo(token));
+    }
+  }
+
+  @Test
+  public void profileIsParsedFromStateEventCountLines() throws Exception {
+    Map<String, Long> profile = parseProfile("" +
+      "# state event count\n" +
+      "Locked Coin 10\n" +
+      "\n" +
+      "Locked Coin 5\n" +
+      "Unlocked Pass 7\n");
+    assertThat(profile.get("Locked.Coin"), equalTo(15L));
+    assertThat(profile.get("Unlocked.Pass"), equalTo(7L));
+    assertThat(profile.size(), equalTo(2));
+  }
+
+  @Test
+  public void malformedCountIsReportedWithFileLineAndToken() throws Exception {
+    assertProfileError("# state event count\nLocked Coin 10\nUnlocked Pass 7x\n",
+      LocalityOptimizer.ProfileError.Type.BAD_COUNT, 3, "7x");
+    try {
+      parseProfile("Unlocked Pass 7x\n");
+      fail("expected a ProfileError");
+    } catch (LocalityOptimizer.ProfileError e) {
+      assertThat(e.getMessage(), equalTo("Profile Error File: turnstile.profile, Line: 1.  (BAD_COUNT) 7x"));
+    }
+  }
+
+  @Test
+  public void linesWithoutThreeFieldsAreReported() throws Exception {
+    assertProfileError("Locked Coin 10\nLocked Coin\n", LocalityOptimizer.ProfileError.Type.MALFORMED_LINE, 2, "Locked Coin");
+    assertProfileError("Locked Coin 10 3\n", LocalityOptimizer.ProfileError.Type.MALFORMED_LINE, 1, "Locked Coin 10 3");
+  }
+
+  @Test
+  public void unknownStatesAndEventsAreReported() throws Exception {
+    assertProfileError("Lcoked Coin 10\n", LocalityOptimizer.ProfileError.Type.UNKNOWN_STATE, 1, "Lcoked");
+    assertProfileError("Locked Coin 1\nLocked Cion 10\n", LocalityOptimizer.ProfileError.Type.UNKNOWN_EVENT, 2, "Cion");
+  }
+}
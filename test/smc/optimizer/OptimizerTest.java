@@ -25,6 +25,7 @@ public class OptimizerTest {
   private SemanticAnalyzer analyzer;
   private Optimizer optimizer;
   private OptimizedStateMachine optimizedStateMachine;
+  private boolean entryExitFunctions;
 
   @Before
   public void setUp() throws Exception {
@@ -44,7 +45,7 @@ public class OptimizerTest {
     lexer.lex(fsmSyntax);
     parser.handleEvent(EOF, -1, -1);
     SemanticStateMachine ast = analyzer.analyze(builder.getFsm());
-    return optimizer.optimize(ast);
+    return optimizer.optimize(ast, entryExitFunctions);
   }
 
   private void assertOptimization(String syntax, String stateMachine) {
@@ -205,6 +206,55 @@ public class OptimizerTest {
     }
   } // Entry and Exit Actions
 
+  public class EntryAndExitFunctions {
+    @Before
+    public void setUp() throws Exception {
+      entryExitFunctions = true;
+    }
+
+    @Test
+    public void chainsAreCalledThroughFunctions() throws Exception {
+      assertOptimization(
+        "" +
+          "{" +
+          "  (ib1) >ib1x - - -" +
+          "  (sb1) <sb1n - - -" +
+          "  i:ib1 >x e s a" +
+          "  s:sb1 <n e i -" +
+          "}",
+        "" +
+          "i {\n" +
+          "  e s {exit_i enter_s a}\n" +
+          "}\n" +
+          "s {\n" +
+          "  e i {}\n" +
+          "}\n");
+      assertThat(optimizedStateMachine.entryExitFunctions.get("exit_i"), contains("x", "ib1x"));
+      assertThat(optimizedStateMachine.entryExitFunctions.get("enter_s"), contains("sb1n", "n"));
+    }
+
+    @Test
+    public void aChainOfOneActionIsCalledDirectly() throws Exception {
+      assertOptimization(
+        "{i >x e s a s <n e i -}",
+        "" +
+          "i {\n" +
+          "  e s {x n a}\n" +
+          "}\n" +
+          "s {\n" +
+          "  e i {}\n" +
+          "}\n");
+      assertThat(optimizedStateMachine.entryExitFunctions.keySet(), is(empty()));
+    }
+
+    @Test
+    public void functionsExpandToTheInlinedActions() throws Exception {
+      OptimizedStateMachine sm = produceStateMachineWithHeader("{(b) >bx - - - i:b >x e i a}");
+      assertThat(sm.expandedActions(sm.transitions.get(0).subTransitions.get(0).actions),
+        contains("x", "bx", "a"));
+    }
+  } // Entry and Exit Functions
+
   public class superStateTransitions {
     @Test
     public void simpleInheritanceOfTransitions() throws Exception {
@@ -340,8 +390,94 @@ public class OptimizerTest {
       );
 
     }
+
+    @Test
+    public void implicitNextStateInAbstractSuperStateIsTheSubState() throws Exception {
+      assertOptimization(
+        "" +
+          "{" +
+          "  (b) >x {be * ba  bf - bfa}" +
+          "  i:b e s a" +
+          "  s:b e i -" +
+          "}",
+        "" +
+          "i {\n" +
+          "  e s {x a}\n" +
+          "  be i {x ba}\n" +
+          "  bf i {x bfa}\n" +
+          "}\n" +
+          "s {\n" +
+          "  e i {x}\n" +
+          "  be s {x ba}\n" +
+          "  bf s {x bfa}\n" +
+          "}\n"
+      );
+    }
+
+    @Test
+    public void implicitNextStateInConcreteSuperStateIsTheSuperState() throws Exception {
+      assertOptimization(
+        "" +
+          "{" +
+          "  b >x {be * ba  bf - bfa}" +
+          "  i:b e b a" +
+          "}",
+        "" +
+          "b {\n" +
+          "  be b {x ba}\n" +
+          "  bf b {x bfa}\n" +
+          "}\n" +
+          "i {\n" +
+          "  e b {x a}\n" +
+          "  be b {x ba}\n" +
+          "  bf b {x bfa}\n" +
+          "}\n"
+      );
+    }
   }// Super State Transitions
 
+  public class ChoiceStates {
+    @Test
+    public void choiceStatesAreRemoved() throws Exception {
+      OptimizedStateMachine sm = produceStateMachineWithHeader("{i e c - c ?d {y i - n s -} s e i -}");
+      assertThat(sm.states, contains("i", "s"));
+      assertThat(sm.decisions, contains("d"));
+    }
+
+    @Test
+    public void choiceIsFoldedIntoItsIncomingTransition() throws Exception {
+      assertOptimization(
+        "" +
+          "{" +
+          "  i >xi e c a" +
+          "  c <nc >xc ?d {y s ya n i na}" +
+          "  s <ns e i -" +
+          "}",
+        "" +
+          "i {\n" +
+          "  e ?d [y s {xi nc a xc ns ya} | n i {xi nc a xc na}]\n" +
+          "}\n" +
+          "s {\n" +
+          "  e i {}\n" +
+          "}\n");
+    }
+
+    @Test
+    public void chainedChoicesAreNested() throws Exception {
+      assertOptimization(
+        "" +
+          "{" +
+          "  i e c a" +
+          "  c ?d {y c2 ya n i -}" +
+          "  c2 ?d2 {y i b n i -}" +
+          "}",
+        "" +
+          "i {\n" +
+          "  e ?d [y ?d2 [y i {a ya b} | n i {a ya}] | n i {a}]\n" +
+          "}\n");
+    }
+  } // Choice States
+
   public class AcceptanceTests {
     @Test
     public void turnstyle3() throws Exception {
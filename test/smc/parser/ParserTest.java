@@ -224,6 +224,19 @@ public class ParserTest {
           "}\n" +
           ".\n");
     }
+
+    @Test
+    public void choiceState() throws Exception {
+      assertParseResult("{c <ea ?decide {yes y a no n -}}",
+        "" +
+          "{\n" +
+          "  c <ea ?decide {\n" +
+          "    yes y a\n" +
+          "    no n {}\n" +
+          "  }\n" +
+          "}\n" +
+          ".\n");
+    }
   }
 
   public class AcceptanceTests {
@@ -395,6 +408,12 @@ public class ParserTest {
         "Syntax error: TRANSITION. SINGLE_NEXT_STATE|CLOSED_BRACE. line 1, position 7.\n");
     }
 
+    @Test
+    public void choiceWithNoDecision() throws Exception {
+      assertParseError("{s ? {}}",
+        "Syntax error: STATE. DECISION|OPEN_BRACE. line 1, position 5.\n");
+    }
+
     @Test
     public void noClosingBrace() throws Exception {
       assertParseError("{",
@@ -0,0 +1,202 @@
+package smc.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class DurablePopulationTest {
+  public interface Actions {
+    void unlock(int instanceId);
+    void lock(int instanceId);
+  }
+
+  private static final String TURNSTILE = "" +
+    "Initial: Locked FSM: t {Locked Coin Unlocked unlock Unlocked Pass Locked lock}";
+
+  private Path directory;
+  private TransitionTable table;
+  private StringBuilder output;
+  private Actions actions;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("durable");
+    table = TransitionTable.compile(TURNSTILE);
+    output = new StringBuilder();
+    actions = new Actions() {
+      public void unlock(int instanceId) {synchronized (output) {output.append("U" + instanceId);}}
+      public void lock(int instanceId) {synchronized (output) {output.append("L" + instanceId);}}
+    };
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (Path file : files())
+      Files.delete(directory.resolve(file));
+    Files.delete(directory);
+  }
+
+  private List<Path> files() throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+      for (Path file : entries)
+        files.add(file.getFileName());
+    }
+    files.sort(null);
+    return files;
+  }
+
+  private DurablePopulation<Actions> open(long segmentBytes) throws IOException {
+    return DurablePopulation.open(directory, table, 4, Actions.class, actions,
+      (instanceId, state, event) -> output.append("X" + instanceId), segmentBytes);
+  }
+
+  @Test
+  public void eventCodesOutsideTheTableAreRejectedAndNotLogged() throws Exception {
+    try (DurablePopulation<Actions> turnstiles = open(DurablePopulation.DEFAULT_SEGMENT_BYTES)) {
+      turnstiles.handleEvent(1, 2);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(), equalTo("t has no event code 2"));
+    }
+    try (DurablePopulation<Actions> turnstiles = open(DurablePopulation.DEFAULT_SEGMENT_BYTES)) {
+      turnstiles.handleEvent(1, "Coin");
+      assertThat(turnstiles.getState(1), equalTo("Unlocked"));
+    }
+    assertThat(output.toString(), equalTo("U1"));
+  }
+
+  @Test
+  public void transitionsSurviveReopening() throws Exception {
+    try (DurablePopulation<Actions> turnstiles = open(DurablePopulation.DEFAULT_SEGMENT_BYTES)) {
+      turnstiles.handleEvent(1, "Coin");
+      turnstiles.handleEvent(2, "Coin");
+      turnstiles.handleEvent(2, "Pass");
+      turnstiles.handleEvent(3, "Pass");
+    }
+    assertThat(output.toString(), equalTo("U1U2L2X3"));
+    try (DurablePopulation<Actions> turnstiles = open(DurablePopulation.DEFAULT_SEGMENT_BYTES)) {
+      assertThat(turnstiles.getState(0), equalTo("Locked"));
+      assertThat(turnstiles.getState(1), equalTo("Unlocked"));
+      assertThat(turnstiles.getState(2), equalTo("Locked"));
+      assertThat(turnstiles.lastSequence(), equalTo(3L));
+    }
+  }
+
+  @Test
+  public void checkpointsDeleteTheSegmentsTheyCover() throws Exception {
+    try (DurablePopulation<Actions> turnstiles = open(EventLog.RECORD_BYTES)) {
+      turnstiles.handleEvent(0, "Coin");
+      turnstiles.handleEvent(1, "Coin");
+      turnstiles.handleEvent(1, "Pass");
+      turnstiles.checkpoint();
+      turnstiles.handleEvent(2, "Coin");
+    }
+    assertThat(files().toString(), equalTo(
+      "[00000000000000000003.log, 00000000000000000003.snapshot, 00000000000000000004.log]"));
+    try (DurablePopulation<Actions> turnstiles = open(EventLog.RECORD_BYTES)) {
+      assertThat(turnstiles.getState(0), equalTo("Unlocked"));
+      assertThat(turnstiles.getState(1), equalTo("Locked"));
+      assertThat(turnstiles.getState(2), equalTo("Unlocked"));
+      turnstiles.handleEvent(2, "Pass");
+      assertThat(turnstiles.lastSequence(), equalTo(5L));
+    }
+  }
+
+  @Test
+  public void aTornRecordIsCutOff() throws Exception {
+    try (DurablePopulation<Actions> turnstiles = open(DurablePopulation.DEFAULT_SEGMENT_BYTES)) {
+      turnstiles.handleEvent(1, "Coin");
+    }
+    Files.write(directory.resolve(files().get(0)), new byte[]{0, 0, 0, 0, 0, 0, 0, 2, 0, 0}, StandardOpenOption.APPEND);
+    try (DurablePopulation<Actions> turnstiles = open(DurablePopulation.DEFAULT_SEGMENT_BYTES)) {
+      assertThat(turnstiles.getState(1), equalTo("Unlocked"));
+      turnstiles.handleEvent(1, "Pass");
+    }
+    try (DurablePopulation<Actions> turnstiles = open(DurablePopulation.DEFAULT_SEGMENT_BYTES)) {
+      assertThat(turnstiles.getState(1), equalTo("Locked"));
+    }
+  }
+
+  // A directory where the next segment belongs makes the log fail when it
+  // rolls to it, so the transition logged in that batch never becomes durable.
+  @Test
+  public void onlyDurableTransitionsReachTheStoreAndTheSnapshot() throws Exception {
+    DurablePopulation<Actions> turnstiles = open(EventLog.RECORD_BYTES);
+    turnstiles.handleEvent(0, "Coin");
+    turnstiles.checkpoint();
+    turnstiles.handleEvent(1, "Coin");
+    Path blocker = Files.createDirectory(directory.resolve("00000000000000000003.log"));
+    try {
+      turnstiles.handleEvent(2, "Coin");
+      fail("the log did not fail");
+    } catch (IOException e) {
+      // expected
+    }
+    assertThat(turnstiles.getState(2), equalTo("Locked"));
+    assertThat(output.toString(), equalTo("U0U1"));
+    try {
+      turnstiles.checkpoint();
+      fail("the checkpoint did not fail");
+    } catch (IOException e) {
+      // expected
+    }
+    assertThat(files().toString(), containsString("00000000000000000001.snapshot"));
+    assertThat(files().toString(), not(containsString("00000000000000000003.snapshot")));
+    Files.delete(blocker);
+
+    try (DurablePopulation<Actions> reopened = open(EventLog.RECORD_BYTES)) {
+      assertThat(reopened.getState(0), equalTo("Unlocked"));
+      assertThat(reopened.getState(1), equalTo("Unlocked"));
+      assertThat(reopened.getState(2), equalTo("Locked"));
+      assertThat(reopened.lastSequence(), equalTo(2L));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void aLogOfAnotherDefinitionIsRejected() throws Exception {
+    try (DurablePopulation<Actions> turnstiles = open(DurablePopulation.DEFAULT_SEGMENT_BYTES)) {
+      turnstiles.handleEvent(1, "Coin");
+    }
+    table = TransitionTable.compile(TURNSTILE.replace("Unlocked Pass Locked lock", "Unlocked Pass Locked unlock"));
+    open(DurablePopulation.DEFAULT_SEGMENT_BYTES);
+  }
+
+  @Test
+  public void concurrentTransitionsAreAllLogged() throws Exception {
+    try (DurablePopulation<Actions> turnstiles = open(DurablePopulation.DEFAULT_SEGMENT_BYTES)) {
+      Thread[] threads = new Thread[4];
+      for (int t = 0; t < threads.length; t++) {
+        int instance = t;
+        threads[t] = new Thread(() -> {
+          try {
+            for (int i = 0; i < 251; i++)
+              turnstiles.handleEvent(instance, i % 2 == 0 ? "Coin" : "Pass");
+          } catch (IOException e) {
+            throw new IllegalStateException(e);
+          }
+        });
+        threads[t].start();
+      }
+      for (Thread thread : threads)
+        thread.join();
+      assertThat(turnstiles.lastSequence(), equalTo(4 * 251L));
+    }
+    try (DurablePopulation<Actions> turnstiles = open(DurablePopulation.DEFAULT_SEGMENT_BYTES)) {
+      for (int instance = 0; instance < 4; instance++)
+        assertThat(turnstiles.getState(instance), equalTo("Unlocked"));
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package smc.runtime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class FlowProcessorTest {
+  public interface Actions {
+    void unlock();
+    void lock();
+  }
+
+  private InterpretedStateMachine<Actions> turnstile;
+
+  @Before
+  public void setUp() throws Exception {
+    Actions actions = new Actions() {
+      public void unlock() {}
+      public void lock() {}
+    };
+    turnstile = new InterpretedStateMachine<>(TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Locked Coin Unlocked unlock Unlocked Pass Locked lock}"), Actions.class, actions);
+  }
+
+  // Emits its events synchronously, as far as they are requested.
+  private static class ListPublisher implements Flow.Publisher<String> {
+    private final List<String> events;
+    private final List<Long> requests = new ArrayList<>();
+    private boolean cancelled;
+    private int next;
+    private boolean emitting;
+
+    ListPublisher(String... events) {
+      this.events = Arrays.asList(events);
+    }
+
+    public void subscribe(Flow.Subscriber<? super String> subscriber) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        long demand;
+
+        public void request(long n) {
+          requests.add(n);
+          demand += n;
+          if (emitting)
+            return;
+          emitting = true;
+          while (demand > 0 && next < events.size() && !cancelled) {
+            demand--;
+            subscriber.onNext(events.get(next++));
+          }
+          emitting = false;
+          if (next == events.size() && !cancelled) {
+            cancelled = true;
+            subscriber.onComplete();
+          }
+        }
+
+        public void cancel() {
+          cancelled = true;
+        }
+      });
+    }
+  }
+
+  private static class RecordingSubscriber implements Flow.Subscriber<FlowProcessor.Transition> {
+    final List<String> received = new ArrayList<>();
+    final long initialRequest;
+    Flow.Subscription subscription;
+    Throwable error;
+    boolean completed;
+
+    RecordingSubscriber(long initialRequest) {
+      this.initialRequest = initialRequest;
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      if (initialRequest > 0)
+        subscription.request(initialRequest);
+    }
+
+    public void onNext(FlowProcessor.Transition transition) {
+      received.add(transition.toString());
+    }
+
+    public void onError(Throwable throwable) {
+      error = throwable;
+    }
+
+    public void onComplete() {
+      completed = true;
+    }
+  }
+
+  @Test
+  public void eachEventIsPublishedAsATransition() throws Exception {
+    FlowProcessor processor = FlowProcessor.of(turnstile);
+    RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+    processor.subscribe(subscriber);
+    new ListPublisher("Coin", "Pass", "Coin").subscribe(processor);
+    assertThat(subscriber.received, contains("Locked Coin Unlocked", "Unlocked Pass Locked", "Locked Coin Unlocked"));
+    assertThat(subscriber.completed, is(true));
+  }
+
+  @Test
+  public void eventsAreOnlyRequestedAsTransitionsAre() throws Exception {
+    FlowProcessor processor = FlowProcessor.of(turnstile);
+    ListPublisher publisher = new ListPublisher("Coin", "Pass", "Coin", "Pass");
+    RecordingSubscriber subscriber = new RecordingSubscriber(0);
+    processor.subscribe(subscriber);
+    publisher.subscribe(processor);
+    assertThat(publisher.requests, is(empty()));
+    subscriber.subscription.request(1);
+    assertThat(subscriber.received, contains("Locked Coin Unlocked"));
+    subscriber.subscription.request(2);
+    assertThat(subscriber.received, hasSize(3));
+    assertThat(publisher.requests, contains(1L, 2L));
+    assertThat(subscriber.completed, is(false));
+  }
+
+  @Test
+  public void unboundedDemandIsRequestedInBatches() throws Exception {
+    FlowProcessor processor = new FlowProcessor(turnstile::handleEvent, turnstile::getState, 8);
+    String[] events = new String[40];
+    for (int i = 0; i < events.length; i++)
+      events[i] = i % 2 == 0 ? "Coin" : "Pass";
+    ListPublisher publisher = new ListPublisher(events);
+    RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+    processor.subscribe(subscriber);
+    publisher.subscribe(processor);
+    assertThat(subscriber.received, hasSize(40));
+    assertThat(publisher.requests, everyItem(greaterThanOrEqualTo(4L)));
+    assertThat(publisher.requests.size(), lessThanOrEqualTo(1 + 40 / 4));
+  }
+
+  @Test
+  public void machineFailuresCancelUpstreamAndGoDownstream() throws Exception {
+    FlowProcessor processor = FlowProcessor.of(turnstile);
+    ListPublisher publisher = new ListPublisher("Pass", "Coin");
+    RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+    processor.subscribe(subscriber);
+    publisher.subscribe(processor);
+    assertThat(subscriber.error, instanceOf(IllegalStateException.class));
+    assertThat(publisher.cancelled, is(true));
+    assertThat(subscriber.received, is(empty()));
+  }
+
+  @Test
+  public void aSecondSubscriberIsRefused() throws Exception {
+    FlowProcessor processor = FlowProcessor.of(turnstile);
+    processor.subscribe(new RecordingSubscriber(0));
+    RecordingSubscriber second = new RecordingSubscriber(0);
+    processor.subscribe(second);
+    assertThat(second.error, instanceOf(IllegalStateException.class));
+  }
+
+  @Test
+  public void anEndBeforeSubscriptionIsPassedOn() throws Exception {
+    FlowProcessor processor = FlowProcessor.of(turnstile);
+    new ListPublisher().subscribe(processor);
+    processor.onComplete();
+    RecordingSubscriber subscriber = new RecordingSubscriber(0);
+    processor.subscribe(subscriber);
+    assertThat(subscriber.completed, is(true));
+  }
+}
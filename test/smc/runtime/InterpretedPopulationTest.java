@@ -0,0 +1,175 @@
+package smc.runtime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class InterpretedPopulationTest {
+  public interface Actions {
+    void unlock(int instanceId);
+    void lock(int instanceId);
+  }
+
+  private StringBuilder output;
+  private Actions actions;
+  private TransitionTable table;
+
+  @Before
+  public void setUp() throws Exception {
+    output = new StringBuilder();
+    actions = new Actions() {
+      public void unlock(int instanceId) {output.append("U" + instanceId);}
+      public void lock(int instanceId) {output.append("L" + instanceId);}
+    };
+    table = TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Locked Coin Unlocked unlock Locked Pass Locked {} Unlocked Pass Locked lock}");
+  }
+
+  private InterpretedPopulation<Actions> population(StateStore store) {
+    return new InterpretedPopulation<>(table, store, Actions.class, actions,
+      (instanceId, state, event) -> output.append("X(" + instanceId + "," + state + "," + event + ")"));
+  }
+
+  @Test
+  public void eachInstanceHasItsOwnState() throws Exception {
+    InterpretedPopulation<Actions> turnstiles = population(StateStore.allocate(3, 2));
+    turnstiles.reset();
+    turnstiles.handleEvent(1, "Coin");
+    turnstiles.handleEvent(2, "Pass");
+    turnstiles.handleEvent(1, "Pass");
+    turnstiles.handleEvent(0, "Coin");
+    turnstiles.handleEvent(1, "Coin");
+    assertThat(output.toString(), equalTo("U1L1U0U1"));
+    assertThat(turnstiles.getState(0), equalTo("Unlocked"));
+    assertThat(turnstiles.getState(1), equalTo("Unlocked"));
+    assertThat(turnstiles.getState(2), equalTo("Locked"));
+  }
+
+  @Test
+  public void unhandledTransitionsGetTheInstanceId() throws Exception {
+    InterpretedPopulation<Actions> turnstiles = population(StateStore.allocate(3, 2));
+    turnstiles.reset();
+    turnstiles.handleEvent(1, "Coin");
+    turnstiles.handleEvent(1, "Coin");
+    assertThat(output.toString(), equalTo("U1X(1,Unlocked,Coin)"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void eventCodesOutsideTheTableAreRejected() throws Exception {
+    population(StateStore.allocate(3, 2)).handleEvent(1, -1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void broadcastOfAnEventCodeOutsideTheTableIsRejected() throws Exception {
+    population(StateStore.allocate(3, 2)).broadcast(2, new int[]{0, 1, 2});
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void storeMustBeWideEnoughForTheStates() throws Exception {
+    StringBuilder source = new StringBuilder("Initial: s0 FSM: wide {");
+    for (int i = 0; i < 300; i++)
+      source.append(String.format("s%d e s%d {} ", i, (i + 1) % 300));
+    table = TransitionTable.compile(source.append("}").toString());
+    population(StateStore.allocate(3, 2));
+  }
+
+  @Test
+  public void concurrentEventsToOneInstanceRunEachTransitionOnce() throws Exception {
+    int[] unlocks = new int[1];
+    Actions counting = new Actions() {
+      public void unlock(int instanceId) {synchronized (unlocks) {unlocks[0]++;}}
+      public void lock(int instanceId) {}
+    };
+    InterpretedPopulation<Actions> turnstiles = new InterpretedPopulation<>(table, StateStore.allocate(1, 2),
+      Actions.class, counting, (instanceId, state, event) -> {});
+    turnstiles.reset();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 10000; i++)
+          turnstiles.handleEvent(0, "Coin");
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    assertThat(unlocks[0], equalTo(1));
+    assertThat(turnstiles.getState(0), equalTo("Unlocked"));
+  }
+
+  @Test
+  public void broadcastRunsTheTransitionOfEachInstancesState() throws Exception {
+    InterpretedPopulation<Actions> turnstiles = population(StateStore.allocate(5, 2));
+    turnstiles.reset();
+    turnstiles.handleEvent(1, "Coin");
+    turnstiles.handleEvent(3, "Coin");
+    output.setLength(0);
+    turnstiles.broadcast("Coin", new int[]{4, 3, 0, 1});
+    assertThat(output.toString(), equalTo("U4U0X(3,Unlocked,Coin)X(1,Unlocked,Coin)"));
+    assertThat(turnstiles.getState(0), equalTo("Unlocked"));
+    assertThat(turnstiles.getState(2), equalTo("Locked"));
+    assertThat(turnstiles.getState(4), equalTo("Unlocked"));
+  }
+
+  @Test
+  public void broadcastEndsInTheSameStatesAsOneEventAtATime() throws Exception {
+    Random random = new Random(42);
+    InterpretedPopulation<Actions> broadcast = population(StateStore.allocate(1000, 2));
+    InterpretedPopulation<Actions> single = population(StateStore.allocate(1000, 2));
+    broadcast.reset();
+    single.reset();
+    for (int round = 0; round < 50; round++) {
+      int[] ids = random.ints(random.nextInt(1000), 0, 1000).distinct().toArray();
+      String event = random.nextBoolean() ? "Coin" : "Pass";
+      broadcast.broadcast(event, ids);
+      for (int id : ids)
+        single.handleEvent(id, event);
+    }
+    for (int id = 0; id < 1000; id++)
+      assertThat(broadcast.getState(id), equalTo(single.getState(id)));
+  }
+
+  @Test
+  public void broadcastFromAnActionOfABroadcastKeepsTheOuterGroups() throws Exception {
+    InterpretedPopulation<?>[] population = new InterpretedPopulation<?>[1];
+    Actions nested = new Actions() {
+      public void unlock(int instanceId) {
+        output.append("U" + instanceId);
+        if (instanceId == 0)
+          population[0].broadcast("Coin", new int[]{2, 3});
+      }
+      public void lock(int instanceId) {output.append("L" + instanceId);}
+    };
+    population[0] = new InterpretedPopulation<>(table, StateStore.allocate(4, 2), Actions.class, nested,
+      (instanceId, state, event) -> output.append("X(" + instanceId + "," + state + "," + event + ")"));
+    population[0].reset();
+    population[0].broadcast("Coin", new int[]{0, 1});
+    population[0].broadcast("Pass", new int[]{3, 2, 1, 0});
+    assertThat(output.toString(), equalTo("U0U2U3U1L3L2L1L0"));
+  }
+
+  public interface GateActions {
+    void unlock(int instanceId);
+    int paid(int instanceId);
+  }
+
+  @Test
+  public void decisionsAreMadePerInstance() throws Exception {
+    TransitionTable gates = TransitionTable.compile("" +
+      "Initial: Locked FSM: g {Locked Coin Check - Check ?paid {yes Unlocked unlock no Locked -} Unlocked Pass Locked -}");
+    InterpretedPopulation<GateActions> population = new InterpretedPopulation<>(gates, StateStore.allocate(3, 2),
+      GateActions.class, new GateActions() {
+        public void unlock(int instanceId) {output.append("U" + instanceId);}
+        public int paid(int instanceId) {return instanceId % 2;}
+      });
+    population.reset();
+    population.broadcast("Coin", new int[]{0, 1, 2});
+    assertThat(output.toString(), equalTo("U0U2"));
+    assertThat(population.getState(0), equalTo("Unlocked"));
+    assertThat(population.getState(1), equalTo("Locked"));
+  }
+}
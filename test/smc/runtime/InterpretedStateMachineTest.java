@@ -0,0 +1,240 @@
+package smc.runtime;
+
+import org.junit.Before;
+import org.junit.Test;
+import smc.OptimizedStateMachine;
+import smc.generators.nestedSwitchCaseGenerator.NSCGenerator;
+import smc.implementers.JavaNestedSwitchCaseImplementer;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class InterpretedStateMachineTest {
+  private static final String TURNSTILE = "" +
+    "Initial: Locked\n" +
+    "FSM: Turnstile\n" +
+    "{\n" +
+    "  Locked    Coin    Unlocked    unlock\n" +
+    "  Locked    Pass    Locked      alarm\n" +
+    "  Unlocked  Coin    Unlocked    thankyou\n" +
+    "  Unlocked  Pass    Locked      lock\n" +
+    "}\n";
+
+  public interface TurnstileActions {
+    void unlock();
+    void alarm();
+    void thankyou();
+    void lock();
+  }
+
+  public interface GateActions {
+    void unlock();
+    int d();
+  }
+
+  private StringBuilder output;
+  private TurnstileActions actions;
+
+  @Before
+  public void setUp() throws Exception {
+    output = new StringBuilder();
+    actions = new TurnstileActions() {
+      public void unlock() {output.append("U");}
+      public void alarm() {output.append("A");}
+      public void thankyou() {output.append("T");}
+      public void lock() {output.append("L");}
+    };
+  }
+
+  @Test
+  public void interpretsTheTransitions() throws Exception {
+    InterpretedStateMachine<TurnstileActions> turnstile =
+      new InterpretedStateMachine<>(TransitionTable.compile(TURNSTILE), TurnstileActions.class, actions);
+    turnstile.handleEvent("Pass");
+    turnstile.handleEvent("Coin");
+    turnstile.handleEvent("Coin");
+    assertThat(turnstile.getState(), equalTo("Unlocked"));
+    turnstile.handleEvent("Pass");
+    assertThat(output.toString(), equalTo("AUTL"));
+    assertThat(turnstile.getState(), equalTo("Locked"));
+  }
+
+  @Test
+  public void theStateIsSetBeforeTheActionsRun() throws Exception {
+    List<String> statesSeen = new ArrayList<>();
+    InterpretedStateMachine<?>[] turnstile = new InterpretedStateMachine<?>[1];
+    TurnstileActions recording = new TurnstileActions() {
+      public void unlock() {statesSeen.add(turnstile[0].getState());}
+      public void alarm() {}
+      public void thankyou() {}
+      public void lock() {}
+    };
+    turnstile[0] = new InterpretedStateMachine<>(TransitionTable.compile(TURNSTILE), TurnstileActions.class, recording);
+    turnstile[0].handleEvent("Coin");
+    assertThat(statesSeen, contains("Unlocked"));
+  }
+
+  @Test
+  public void identicalActionSequencesAreShared() throws Exception {
+    TransitionTable table = TransitionTable.compile("" +
+      "Initial: a FSM: f {a e1 b {x y} a e2 b {x y} b e1 a {x y} b e2 a -}");
+    assertThat(table.actionPool.length, equalTo(3 + 1));
+  }
+
+  @Test
+  public void unhandledEventsGoToTheHandler() throws Exception {
+    TransitionTable table = TransitionTable.compile("Initial: Locked FSM: f {Locked Coin Unlocked unlock Unlocked Pass Locked lock}");
+    InterpretedStateMachine<TurnstileActions> sm = new InterpretedStateMachine<>(table, TurnstileActions.class, actions,
+      (state, event) -> output.append("X(" + state + "," + event + ")"));
+    sm.handleEvent("Pass");
+    assertThat(output.toString(), equalTo("X(Locked,Pass)"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void eventCodesOutsideTheTableAreRejected() throws Exception {
+    new InterpretedStateMachine<>(TransitionTable.compile(TURNSTILE), TurnstileActions.class, actions).handleEvent(2);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void actionsMissingFromTheActionsTypeAreRejected() throws Exception {
+    TransitionTable table = TransitionTable.compile("Initial: Locked FSM: f {Locked Coin Locked explode}");
+    new InterpretedStateMachine<>(table, TurnstileActions.class, actions);
+  }
+
+  @Test
+  public void behavesLikeTheGeneratedJavaForTheTwoCoinTurnstile() throws Exception {
+    assertSameBehaviorAsGeneratedJava(Paths.get("test_cases/java_turnstile/src/twoCoinTurnstile.sm"));
+  }
+
+  @Test
+  public void behavesLikeTheGeneratedJavaForIce() throws Exception {
+    assertSameBehaviorAsGeneratedJava(Paths.get("test_cases/Ice/ice.sm"));
+  }
+
+  @Test
+  public void behavesLikeTheGeneratedJavaForChoices() throws Exception {
+    assertSameBehaviorAsGeneratedJava("" +
+      "Initial: Idle FSM: Vending {\n" +
+      "  Idle Coin Paid collect\n" +
+      "  Paid <display >clear ?enough {\n" +
+      "    yes Vend release\n" +
+      "    no Idle refund\n" +
+      "    maybe Check -\n" +
+      "  }\n" +
+      "  Check ?stocked {in Vend - out Idle refund}\n" +
+      "  Vend {Take Idle thank Coin Vend refund}\n" +
+      "}\n");
+  }
+
+  @Test
+  public void aDecisionWithNoBranchIsAnUnhandledTransition() throws Exception {
+    TransitionTable table = TransitionTable.compile("Initial: Locked FSM: f {Locked Coin c - c ?d {a Locked unlock}}");
+    GateActions gate = new GateActions() {
+      public void unlock() {output.append("U");}
+      public int d() {return 1;}
+    };
+    InterpretedStateMachine<GateActions> sm = new InterpretedStateMachine<>(table, GateActions.class, gate,
+      (state, event) -> output.append("X(" + state + "," + event + ")"));
+    sm.handleEvent("Coin");
+    assertThat(output.toString(), equalTo("X(Locked,Coin)"));
+  }
+
+  private void assertSameBehaviorAsGeneratedJava(Path smFile) throws Exception {
+    assertSameBehaviorAsGeneratedJava(new String(Files.readAllBytes(smFile)));
+  }
+
+  // Compiles the Java backend's output for the given definition, then drives
+  // it and the interpreter with the same random events and compares the
+  // actions and unhandled transitions each one reports.  Each decision
+  // returns 0, 1, 2 and 3 in turn, on both sides.
+  private void assertSameBehaviorAsGeneratedJava(String smSource) throws Exception {
+    OptimizedStateMachine sm = SmcRuntime.optimize(smSource);
+    sm.header.actions = null;
+    String fsm = sm.header.fsm;
+    Path dir = Files.createTempDirectory("smc");
+    JavaNestedSwitchCaseImplementer implementer = new JavaNestedSwitchCaseImplementer(new HashMap<>());
+    new NSCGenerator().generate(sm).accept(implementer);
+    Files.write(dir.resolve(fsm + ".java"), implementer.getOutput().getBytes());
+    Files.write(dir.resolve("Recording.java"), recordingSubclass(sm).getBytes());
+    Files.write(dir.resolve("Actions.java"), actionsInterface(sm).getBytes());
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    int status = javac.run(null, null, null, "-nowarn", "-d", dir.toString(),
+      dir.resolve(fsm + ".java").toString(), dir.resolve("Recording.java").toString(), dir.resolve("Actions.java").toString());
+    assertThat(status, equalTo(0));
+
+    try (URLClassLoader loader = new URLClassLoader(new URL[]{dir.toUri().toURL()}, getClass().getClassLoader())) {
+      Object generated = loader.loadClass("Recording").getConstructor().newInstance();
+      Method fire = generated.getClass().getMethod("fire", int.class);
+      StringBuilder interpreted = new StringBuilder();
+      InterpretedStateMachine<Object> interpreter = interpreter(loader.loadClass("Actions"), sm, interpreted);
+
+      Random random = new Random(1);
+      for (int i = 0; i < 5000; i++) {
+        int event = random.nextInt(sm.events.size());
+        fire.invoke(generated, event);
+        interpreter.handleEvent(sm.events.get(event));
+      }
+      assertThat(interpreted.toString(), equalTo(generated.toString()));
+      assertThat(interpreted.length(), greaterThan(5000));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private InterpretedStateMachine<Object> interpreter(Class<?> actionsInterface, OptimizedStateMachine sm, StringBuilder log) {
+    Map<String, Integer> decisionCalls = new HashMap<>();
+    Object actions = Proxy.newProxyInstance(actionsInterface.getClassLoader(), new Class<?>[]{actionsInterface},
+      (proxy, method, args) -> {
+        log.append(method.getName()).append(' ');
+        if (method.getReturnType() != int.class)
+          return null;
+        return decisionCalls.merge(method.getName(), 1, Integer::sum) % 4;
+      });
+    return new InterpretedStateMachine<>(TransitionTable.of(sm), (Class<Object>) actionsInterface, actions,
+      (state, event) -> log.append("X(").append(state).append(',').append(event).append(") "));
+  }
+
+  private String recordingSubclass(OptimizedStateMachine sm) {
+    StringBuilder source = new StringBuilder();
+    source.append(String.format("public class Recording extends %s {\n", sm.header.fsm));
+    source.append("private final StringBuilder log = new StringBuilder();\n");
+    source.append("public String toString() {return log.toString();}\n");
+    source.append("public void unhandledTransition(String state, String event) {log.append(\"X(\" + state + \",\" + event + \") \");}\n");
+    for (String action : sm.actions)
+      source.append(String.format("protected void %s() {log.append(\"%s \");}\n", action, action));
+    for (String decision : sm.decisions) {
+      source.append(String.format("private int %sCalls;\n", decision));
+      source.append(String.format("protected int %s() {log.append(\"%s \"); return ++%sCalls %% 4;}\n",
+        decision, decision, decision));
+    }
+    source.append("public void fire(int event) {\nswitch (event) {\n");
+    for (int i = 0; i < sm.events.size(); i++)
+      source.append(String.format("case %d: %s(); break;\n", i, sm.events.get(i)));
+    source.append("}\n}\n}\n");
+    return source.toString();
+  }
+
+  private String actionsInterface(OptimizedStateMachine sm) {
+    StringBuilder source = new StringBuilder("public interface Actions {\n");
+    for (String action : sm.actions)
+      source.append(String.format("void %s();\n", action));
+    for (String decision : sm.decisions)
+      source.append(String.format("int %s();\n", decision));
+    source.append("}\n");
+    return source.toString();
+  }
+}
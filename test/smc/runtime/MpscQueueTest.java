@@ -0,0 +1,65 @@
+package smc.runtime;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class MpscQueueTest {
+  @Test(expected = IllegalArgumentException.class)
+  public void capacityMustBeAPowerOfTwo() throws Exception {
+    new MpscQueue(6);
+  }
+
+  @Test
+  public void fullQueuesRefuseElements() throws Exception {
+    MpscQueue queue = new MpscQueue(4);
+    for (int i = 0; i < 4; i++)
+      assertThat(queue.offer(i), is(true));
+    assertThat(queue.offer(4), is(false));
+    assertThat(queue.size(), equalTo(4L));
+  }
+
+  @Test
+  public void drainingTakesElementsInOrderUpToTheLimit() throws Exception {
+    MpscQueue queue = new MpscQueue(4);
+    List<Long> drained = new ArrayList<>();
+    for (int lap = 0; lap < 3; lap++) {
+      for (long i = 0; i < 3; i++)
+        queue.offer(10 * lap + i);
+      assertThat(queue.drain(drained::add, 2), equalTo(2));
+      assertThat(queue.drain(drained::add, 2), equalTo(1));
+      assertThat(queue.isEmpty(), is(true));
+    }
+    assertThat(drained, contains(0L, 1L, 2L, 10L, 11L, 12L, 20L, 21L, 22L));
+    assertThat(queue.size(), equalTo(0L));
+  }
+
+  @Test
+  public void everyProducersElementsArriveInOrder() throws Exception {
+    MpscQueue queue = new MpscQueue(64);
+    Thread[] producers = new Thread[4];
+    for (int p = 0; p < producers.length; p++) {
+      long producer = p;
+      producers[p] = new Thread(() -> {
+        for (long i = 0; i < 20000; i++)
+          while (!queue.offer(producer << 32 | i))
+            Thread.yield();
+      });
+      producers[p].start();
+    }
+    long[] next = new long[producers.length];
+    int received = 0;
+    while (received < producers.length * 20000)
+      received += queue.drain(element -> {
+        int producer = (int) (element >>> 32);
+        assertThat(element & 0xFFFFFFFFL, equalTo(next[producer]++));
+      }, 16);
+    for (Thread producer : producers)
+      producer.join();
+    assertThat(next, equalTo(new long[]{20000, 20000, 20000, 20000}));
+  }
+}
@@ -0,0 +1,146 @@
+package smc.runtime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ReloadableDefinitionTest {
+  public interface Actions {
+    void unlock();
+    void lock();
+    void alarm();
+    void thankyou();
+  }
+
+  private StringBuilder output;
+  private Actions actions;
+
+  @Before
+  public void setUp() throws Exception {
+    output = new StringBuilder();
+    actions = new Actions() {
+      public void unlock() {output.append("U");}
+      public void lock() {output.append("L");}
+      public void alarm() {output.append("A");}
+      public void thankyou() {output.append("T");}
+    };
+  }
+
+  private InterpretedStateMachine<Actions> turnstile(ReloadableDefinition definition) {
+    return new InterpretedStateMachine<>(definition, Actions.class, actions,
+      (state, event) -> output.append("X(" + state + "," + event + ")"));
+  }
+
+  @Test
+  public void instancesKeepTheirStateByNameAcrossAReload() throws Exception {
+    ReloadableDefinition definition = new ReloadableDefinition(TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Locked Coin Unlocked unlock Unlocked Pass Locked lock}"));
+    InterpretedStateMachine<Actions> turnstile = turnstile(definition);
+    turnstile.handleEvent("Coin");
+
+    long version = definition.reload(TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Locked Coin Unlocked unlock Unlocked {Pass Locked lock Coin Unlocked thankyou}}"));
+    assertThat(version, equalTo(2L));
+    assertThat(turnstile.getVersion(), equalTo(1L));
+    turnstile.handleEvent("Coin");
+    assertThat(turnstile.getVersion(), equalTo(2L));
+    assertThat(turnstile.getState(), equalTo("Unlocked"));
+    assertThat(output.toString(), equalTo("UT"));
+  }
+
+  @Test
+  public void removedStatesFallBackToTheInitialStateByDefault() throws Exception {
+    ReloadableDefinition definition = new ReloadableDefinition(TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Locked Coin Unlocked unlock Unlocked Pass Locked lock}"));
+    InterpretedStateMachine<Actions> turnstile = turnstile(definition);
+    turnstile.handleEvent("Coin");
+    definition.reload(TransitionTable.compile("Initial: Locked FSM: t {Locked Coin Open unlock Open Pass Locked lock}"));
+    turnstile.handleEvent("Pass");
+    assertThat(output.toString(), equalTo("UX(Locked,Pass)"));
+  }
+
+  @Test
+  public void removedStatesCanFallBackToANamedState() throws Exception {
+    ReloadableDefinition definition = new ReloadableDefinition(TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Locked Coin Unlocked unlock Unlocked Pass Locked lock}"));
+    InterpretedStateMachine<Actions> turnstile = turnstile(definition);
+    turnstile.handleEvent("Coin");
+    definition.reload(TransitionTable.compile("Initial: Locked FSM: t {Locked Coin Open unlock Open Pass Locked lock}"),
+      StateFallback.to("Open"));
+    turnstile.handleEvent("Pass");
+    assertThat(output.toString(), equalTo("UL"));
+    assertThat(turnstile.getState(), equalTo("Locked"));
+  }
+
+  @Test
+  public void eventCodesSurviveAReload() throws Exception {
+    ReloadableDefinition definition = new ReloadableDefinition(TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Locked Coin Unlocked unlock Unlocked Pass Locked lock}"));
+    int coin = definition.getTable().eventCode("Coin");
+    int pass = definition.getTable().eventCode("Pass");
+    definition.reload(TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Locked {Alarm Locked alarm Pass Locked alarm Coin Unlocked unlock} Unlocked Pass Locked lock}"));
+    assertThat(definition.getTable().eventCode("Coin"), equalTo(coin));
+    assertThat(definition.getTable().eventCode("Pass"), equalTo(pass));
+    assertThat(definition.getTable().eventCode("Alarm"), equalTo(2));
+
+    InterpretedStateMachine<Actions> turnstile = turnstile(definition);
+    turnstile.handleEvent(pass);
+    turnstile.handleEvent(2);
+    assertThat(output.toString(), equalTo("AA"));
+  }
+
+  @Test
+  public void removedEventsAreUnhandled() throws Exception {
+    ReloadableDefinition definition = new ReloadableDefinition(TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Locked {Coin Unlocked unlock Pass Locked alarm} Unlocked Pass Locked lock}"));
+    InterpretedStateMachine<Actions> turnstile = turnstile(definition);
+    int pass = definition.getTable().eventCode("Pass");
+    definition.reload(TransitionTable.compile("Initial: Locked FSM: t {Locked Coin Locked unlock}"));
+    turnstile.handleEvent(pass);
+    assertThat(output.toString(), equalTo("X(Locked,Pass)"));
+  }
+
+  @Test
+  public void anInstanceThatCannotBindTheNewActionsKeepsTheOldTable() throws Exception {
+    ReloadableDefinition definition = new ReloadableDefinition(TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Locked Coin Unlocked unlock Unlocked Pass Locked lock}"));
+    InterpretedStateMachine<Actions> turnstile = turnstile(definition);
+    definition.reload(TransitionTable.compile("Initial: Locked FSM: t {Locked Coin Locked explode}"));
+    try {
+      turnstile.handleEvent("Coin");
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertThat(turnstile.getVersion(), equalTo(1L));
+      assertThat(turnstile.getState(), equalTo("Locked"));
+    }
+  }
+
+  @Test
+  public void reloadsDoNotStopTheInstances() throws Exception {
+    TransitionTable first = TransitionTable.compile("Initial: Locked FSM: t {Locked Coin Unlocked unlock Unlocked Pass Locked lock}");
+    TransitionTable second = TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Locked Coin Unlocked unlock Unlocked {Pass Locked lock Coin Unlocked thankyou}}");
+    ReloadableDefinition definition = new ReloadableDefinition(first);
+    Thread reloader = new Thread(() -> {
+      for (int i = 0; i < 1000; i++)
+        definition.reload(i % 2 == 0 ? second : first);
+    });
+    InterpretedStateMachine<Actions> turnstile = new InterpretedStateMachine<>(definition, Actions.class, actions, (state, event) -> {});
+    int coin = definition.getTable().eventCode("Coin");
+    int pass = definition.getTable().eventCode("Pass");
+    reloader.start();
+    while (reloader.isAlive()) {
+      turnstile.handleEvent(coin);
+      turnstile.handleEvent(pass);
+      output.setLength(0);
+    }
+    reloader.join();
+    turnstile.handleEvent(coin);
+    assertThat(turnstile.getVersion(), equalTo(1001L));
+    assertThat(turnstile.getState(), equalTo("Unlocked"));
+  }
+}
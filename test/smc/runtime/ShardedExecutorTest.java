@@ -0,0 +1,155 @@
+package smc.runtime;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ShardedExecutorTest {
+  public interface Actions {
+    void unlock(int instanceId);
+    void lock(int instanceId);
+  }
+
+  private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+  private void failed(int instanceId, int event, RuntimeException e) {
+    failures.add(instanceId + ":" + event + ":" + e.getMessage());
+  }
+
+  @Test
+  public void eachInstanceIsHandledByOneShardThread() throws Exception {
+    int instances = 1000;
+    String[] threads = new String[instances];
+    boolean[] sharedInstance = new boolean[1];
+    ShardedExecutor executor = new ShardedExecutor(4, (instanceId, event) -> {
+      String thread = Thread.currentThread().getName();
+      if (threads[instanceId] != null && !threads[instanceId].equals(thread))
+        sharedInstance[0] = true;
+      threads[instanceId] = thread;
+    }, this::failed);
+    for (int round = 0; round < 10; round++)
+      for (int i = 0; i < instances; i++)
+        executor.submit(i, 0);
+    executor.close();
+    assertThat(sharedInstance[0], is(false));
+    for (int i = 0; i < instances; i++)
+      assertThat(threads[i], equalTo("smc-shard-" + executor.shardOf(i)));
+  }
+
+  @Test
+  public void drivesAPopulationFromManyThreads() throws Exception {
+    TransitionTable table = TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Locked Coin Unlocked unlock Unlocked Pass Locked lock}");
+    int[] unlocks = new int[64];
+    Actions actions = new Actions() {
+      public void unlock(int instanceId) {unlocks[instanceId]++;}
+      public void lock(int instanceId) {}
+    };
+    InterpretedPopulation<Actions> turnstiles = new InterpretedPopulation<>(table,
+      StateStore.allocate(64, 2), Actions.class, actions);
+    turnstiles.reset();
+    ShardedExecutor executor = new ShardedExecutor(3, turnstiles::handleEvent, this::failed);
+    int coin = table.eventCode("Coin");
+    int pass = table.eventCode("Pass");
+    Thread[] producers = new Thread[4];
+    for (int p = 0; p < producers.length; p++) {
+      int first = 16 * p;
+      producers[p] = new Thread(() -> {
+        for (int round = 0; round < 500; round++)
+          for (int i = first; i < first + 16; i++) {
+            executor.submit(i, coin);
+            executor.submit(i, pass);
+          }
+      });
+      producers[p].start();
+    }
+    for (Thread producer : producers)
+      producer.join();
+    executor.close();
+    for (int i = 0; i < 64; i++) {
+      assertThat(unlocks[i], equalTo(500));
+      assertThat(turnstiles.getState(i), equalTo("Locked"));
+    }
+  }
+
+  @Test
+  public void metricsCountTheEventsAndBatchesOfEachShard() throws Exception {
+    ShardedExecutor executor = new ShardedExecutor(2, (instanceId, event) -> {}, this::failed);
+    for (int i = 0; i < 1000; i++)
+      executor.submit(i, 0);
+    executor.close();
+    long events = 0;
+    for (int shard = 0; shard < executor.getShardCount(); shard++) {
+      ShardedExecutor.ShardMetrics metrics = executor.getMetrics(shard);
+      assertThat(metrics.queueDepth, equalTo(0L));
+      assertThat(metrics.batches, greaterThan(0L));
+      assertThat(metrics.largestBatch, lessThanOrEqualTo(ShardedExecutor.DEFAULT_BATCH_SIZE));
+      events += metrics.events;
+    }
+    assertThat(events, equalTo(1000L));
+  }
+
+  @Test
+  public void failuresAreReportedAndTheShardGoesOn() throws Exception {
+    int[] handled = new int[1];
+    ShardedExecutor executor = new ShardedExecutor(1, (instanceId, event) -> {
+      if (event == 13)
+        throw new IllegalStateException("bad luck");
+      handled[0]++;
+    }, 16, 4, this::failed);
+    executor.submit(1, 12);
+    executor.submit(2, 13);
+    executor.submit(3, 14);
+    executor.close();
+    assertThat(failures, contains("2:13:bad luck"));
+    assertThat(handled[0], equalTo(2));
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void aFailureHandlerIsRequired() throws Exception {
+    new ShardedExecutor(1, (instanceId, event) -> {}, null);
+  }
+
+  @Test
+  public void everyAcceptedEventIsHandledWhenClosingDuringOffers() throws Exception {
+    for (int attempt = 0; attempt < 20; attempt++) {
+      AtomicLong handled = new AtomicLong();
+      AtomicLong accepted = new AtomicLong();
+      ShardedExecutor executor = new ShardedExecutor(2, (instanceId, event) -> handled.incrementAndGet(), this::failed);
+      Thread[] producers = new Thread[4];
+      for (int p = 0; p < producers.length; p++) {
+        int instance = p;
+        producers[p] = new Thread(() -> {
+          try {
+            while (true)
+              if (executor.offer(instance, 0))
+                accepted.incrementAndGet();
+          } catch (RejectedExecutionException e) {
+            // closed
+          }
+        });
+        producers[p].start();
+      }
+      Thread.sleep(1);
+      executor.close();
+      for (Thread producer : producers)
+        producer.join();
+      assertThat(handled.get(), equalTo(accepted.get()));
+    }
+    assertThat(failures, is(empty()));
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void closedExecutorsRejectEvents() throws Exception {
+    ShardedExecutor executor = new ShardedExecutor(1, (instanceId, event) -> {}, this::failed);
+    executor.close();
+    executor.offer(0, 0);
+  }
+}
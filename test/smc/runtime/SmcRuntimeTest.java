@@ -0,0 +1,156 @@
+package smc.runtime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SmcRuntimeTest {
+  private static final String TURNSTILE = "" +
+    "Initial: Locked\n" +
+    "FSM: Turnstile\n" +
+    "{\n" +
+    "  Locked    Coin    Unlocked    unlock\n" +
+    "  Locked    Pass    Locked      alarm\n" +
+    "  Unlocked  Coin    Unlocked    thankyou\n" +
+    "  Unlocked  Pass    Locked      lock\n" +
+    "}\n";
+
+  public interface TurnstileActions {
+    void unlock();
+    void alarm();
+    void thankyou();
+    void lock();
+  }
+
+  private StringBuilder output;
+  private TurnstileActions actions;
+
+  @Before
+  public void setUp() throws Exception {
+    output = new StringBuilder();
+    actions = new TurnstileActions() {
+      public void unlock() {output.append("U");}
+      public void alarm() {output.append("A");}
+      public void thankyou() {output.append("T");}
+      public void lock() {output.append("L");}
+    };
+  }
+
+  @Test
+  public void compiledMachineRunsTheTransitions() throws Exception {
+    StateMachineFactory<TurnstileActions> factory = SmcRuntime.compile(TURNSTILE, TurnstileActions.class);
+    StateMachine turnstile = factory.newInstance(actions);
+    int coin = factory.eventCode("Coin");
+    int pass = factory.eventCode("Pass");
+    turnstile.handleEvent(pass);
+    turnstile.handleEvent(coin);
+    turnstile.handleEvent(coin);
+    turnstile.handleEvent(pass);
+    assertThat(output.toString(), equalTo("AUTL"));
+    assertThat(factory.getName(), equalTo("Turnstile"));
+  }
+
+  @Test
+  public void eventCodesOutsideTheMachineAreRejected() throws Exception {
+    StateMachineFactory<TurnstileActions> factory = SmcRuntime.compile(TURNSTILE, TurnstileActions.class);
+    StateMachine turnstile = factory.newInstance(actions);
+    for (int event : new int[]{-1, 2}) {
+      try {
+        turnstile.handleEvent(event);
+        fail("expected IllegalArgumentException");
+      } catch (IllegalArgumentException e) {
+        assertThat(e.getMessage(), equalTo("Turnstile has no event code " + event));
+      }
+    }
+    assertThat(output.toString(), equalTo(""));
+  }
+
+  @Test
+  public void instancesKeepTheirOwnState() throws Exception {
+    StateMachineFactory<TurnstileActions> factory = SmcRuntime.compile(TURNSTILE, TurnstileActions.class);
+    StateMachine first = factory.newInstance(actions);
+    StateMachine second = factory.newInstance(actions);
+    first.handleEvent(factory.eventCode("Coin"));
+    second.handleEvent(factory.eventCode("Coin"));
+    assertThat(output.toString(), equalTo("UU"));
+  }
+
+  @Test
+  public void identicalDefinitionsAreCompiledOnce() throws Exception {
+    StateMachineFactory<TurnstileActions> first = SmcRuntime.compile(TURNSTILE, TurnstileActions.class);
+    StateMachineFactory<TurnstileActions> second = SmcRuntime.compile(new String(TURNSTILE), TurnstileActions.class);
+    assertThat(second, sameInstance(first));
+    StateMachineFactory<TurnstileActions> changed = SmcRuntime.compile(TURNSTILE + "\n", TurnstileActions.class);
+    assertThat(changed, not(sameInstance(first)));
+    assertThat(changed.getStateMachineClass(), not(sameInstance(first.getStateMachineClass())));
+  }
+
+  @Test
+  public void unhandledTransitionsGoToTheHandler() throws Exception {
+    StateMachineFactory<TurnstileActions> factory = SmcRuntime.compile("" +
+      "Initial: Locked FSM: OneWay {Locked Coin Unlocked unlock Unlocked Pass Locked lock}",
+      TurnstileActions.class);
+    StateMachine oneWay = factory.newInstance(actions, (state, event) -> output.append("X(" + state + "," + event + ")"));
+    oneWay.handleEvent(factory.eventCode("Pass"));
+    assertThat(output.toString(), equalTo("X(Locked,Pass)"));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void unhandledTransitionsThrowByDefault() throws Exception {
+    StateMachineFactory<TurnstileActions> factory = SmcRuntime.compile("" +
+      "Initial: Locked FSM: OneWay {Locked Coin Unlocked unlock Unlocked Pass Locked lock}",
+      TurnstileActions.class);
+    factory.newInstance(actions).handleEvent(factory.eventCode("Pass"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void actionsMissingFromTheInterfaceAreRejected() throws Exception {
+    SmcRuntime.compile("Initial: Locked FSM: f {Locked Coin Locked explode}", TurnstileActions.class);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void syntaxErrorsAreRejected() throws Exception {
+    SmcRuntime.compile("Initial: Locked FSM: f {Locked Coin", TurnstileActions.class);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void semanticErrorsAreRejected() throws Exception {
+    SmcRuntime.compile("Initial: Nowhere FSM: f {Locked Coin Locked lock}", TurnstileActions.class);
+  }
+
+  public interface GateActions {
+    void open();
+    void refuse();
+    int paid();
+  }
+
+  @Test
+  public void choicesTakeTheBranchTheDecisionPicks() throws Exception {
+    StringBuilder output = new StringBuilder();
+    int[] paid = {0, 1, 5};
+    int[] calls = {0};
+    StateMachineFactory<GateActions> factory = SmcRuntime.compile("" +
+      "Initial: Closed FSM: Gate {Closed Coin Check - Check ?paid {yes Open open no Closed refuse} Open Pass Closed -}",
+      GateActions.class);
+    StateMachine gate = factory.newInstance(new GateActions() {
+      public void open() {output.append("O");}
+      public void refuse() {output.append("R");}
+      public int paid() {return paid[calls[0]++];}
+    }, (state, event) -> output.append("X(" + state + "," + event + ")"));
+    int coin = factory.eventCode("Coin");
+    gate.handleEvent(coin);
+    gate.handleEvent(coin);
+    gate.handleEvent(factory.eventCode("Pass"));
+    gate.handleEvent(coin);
+    gate.handleEvent(coin);
+    assertThat(output.toString(), equalTo("OX(Open,Coin)RX(Closed,Coin)"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void decisionsMustReturnInt() throws Exception {
+    SmcRuntime.compile("Initial: Closed FSM: Gate {Closed Coin Check - Check ?open {yes Closed -}}", GateActions.class);
+  }
+}
@@ -0,0 +1,97 @@
+package smc.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SnapshotTest {
+  private static final String TURNSTILE = "" +
+    "Initial: Locked FSM: t {Locked Coin Unlocked - Locked Pass Locked - Unlocked Pass Locked - Unlocked Coin Unlocked -}";
+
+  private Path directory;
+  private Path file;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("snapshots");
+    file = directory.resolve("turnstiles.snapshot");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(file);
+    Files.deleteIfExists(directory);
+  }
+
+  private StateStore storeOf(TransitionTable table, String... states) {
+    StateStore store = StateStore.allocate(states.length, table.getStates().size());
+    for (int i = 0; i < states.length; i++)
+      store.set(i, table.stateCode(states[i]));
+    return store;
+  }
+
+  private String[] statesOf(TransitionTable table, StateStore store) {
+    String[] states = new String[store.size()];
+    for (int i = 0; i < states.length; i++)
+      states[i] = table.getStates().get(store.get(i));
+    return states;
+  }
+
+  @Test
+  public void tablesOfTheSameDefinitionHaveTheSameFingerprint() throws Exception {
+    assertThat(TransitionTable.compile(TURNSTILE).getFingerprint(),
+      equalTo(TransitionTable.compile(TURNSTILE).getFingerprint()));
+    assertThat(TransitionTable.compile(TURNSTILE.replace("Unlocked Coin Unlocked", "Unlocked Coin Locked")).getFingerprint(),
+      not(equalTo(TransitionTable.compile(TURNSTILE).getFingerprint())));
+  }
+
+  @Test
+  public void restoringTheSameDefinitionGivesBackTheStates() throws Exception {
+    TransitionTable table = TransitionTable.compile(TURNSTILE);
+    Snapshot.write(file, table, storeOf(table, "Unlocked", "Locked", "Unlocked"));
+    StateStore restored = Snapshot.restore(file, table);
+    assertThat(statesOf(table, restored), arrayContaining("Unlocked", "Locked", "Unlocked"));
+  }
+
+  @Test
+  public void updatesToARestoredStoreDoNotChangeTheSnapshot() throws Exception {
+    TransitionTable table = TransitionTable.compile(TURNSTILE);
+    Snapshot.write(file, table, storeOf(table, "Unlocked", "Locked"));
+    Snapshot.restore(file, table).set(0, table.stateCode("Locked"));
+    assertThat(statesOf(table, Snapshot.restore(file, table)), arrayContaining("Unlocked", "Locked"));
+  }
+
+  @Test
+  public void changedDefinitionsAreRestoredByStateName() throws Exception {
+    TransitionTable table = TransitionTable.compile(TURNSTILE);
+    Snapshot.write(file, table, storeOf(table, "Unlocked", "Locked"));
+    TransitionTable changed = TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Broken Fix Locked - Unlocked Pass Locked - Locked {Coin Unlocked - Kick Broken -}}");
+    StateStore restored = Snapshot.restore(file, changed);
+    assertThat(restored.get(0), equalTo(changed.stateCode("Unlocked")));
+    assertThat(statesOf(changed, restored), arrayContaining("Unlocked", "Locked"));
+  }
+
+  @Test
+  public void removedStatesFallBack() throws Exception {
+    TransitionTable table = TransitionTable.compile(TURNSTILE);
+    Snapshot.write(file, table, storeOf(table, "Unlocked", "Locked"));
+    TransitionTable changed = TransitionTable.compile("" +
+      "Initial: Locked FSM: t {Locked Coin Open - Open Pass Locked -}");
+    assertThat(statesOf(changed, Snapshot.restore(file, changed)), arrayContaining("Locked", "Locked"));
+    assertThat(statesOf(changed, Snapshot.restore(file, changed, StateFallback.to("Open"))), arrayContaining("Open", "Locked"));
+  }
+
+  @Test(expected = IOException.class)
+  public void otherFilesAreRejected() throws Exception {
+    Files.write(file, new byte[64]);
+    Snapshot.restore(file, TransitionTable.compile(TURNSTILE));
+  }
+}
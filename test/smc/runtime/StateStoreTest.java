@@ -0,0 +1,97 @@
+package smc.runtime;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class StateStoreTest {
+  @Test
+  public void statesAreAsNarrowAsTheStateCountAllows() throws Exception {
+    assertThat(StateStore.allocate(10, 2).width(), equalTo(1));
+    assertThat(StateStore.allocate(10, 256).width(), equalTo(1));
+    assertThat(StateStore.allocate(10, 257).width(), equalTo(2));
+    assertThat(StateStore.allocate(10, 65537).width(), equalTo(4));
+    assertThat(StateStore.bytesFor(5, 1), equalTo(8L));
+  }
+
+  @Test
+  public void neighbouringStatesDoNotDisturbEachOther() throws Exception {
+    for (int stateCount : new int[]{200, 60000, 100000}) {
+      StateStore store = StateStore.allocate(7, stateCount);
+      for (int i = 0; i < 7; i++)
+        store.set(i, stateCount - 1 - i);
+      for (int i = 0; i < 7; i++)
+        assertThat(store.get(i), equalTo(stateCount - 1 - i));
+    }
+  }
+
+  @Test
+  public void compareAndSetOnlySucceedsFromTheExpectedState() throws Exception {
+    StateStore store = StateStore.allocate(3, 3);
+    assertThat(store.compareAndSet(1, 1, 2), is(false));
+    assertThat(store.compareAndSet(1, 0, 2), is(true));
+    assertThat(store.get(1), equalTo(2));
+    assertThat(store.get(0), equalTo(0));
+    assertThat(store.get(2), equalTo(0));
+  }
+
+  @Test
+  public void fillSetsEveryInstance() throws Exception {
+    StateStore store = StateStore.allocate(5, 300);
+    store.fill(299);
+    for (int i = 0; i < 5; i++)
+      assertThat(store.get(i), equalTo(299));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void instancesOutsideTheStoreAreRejected() throws Exception {
+    StateStore.allocate(5, 2).get(5);
+  }
+
+  @Test
+  public void concurrentUpdatesOfNeighboursAreNotLost() throws Exception {
+    StateStore store = StateStore.allocate(4, 256);
+    AtomicInteger done = new AtomicInteger();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      int instance = t;
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 100000; i++) {
+          int state;
+          do
+            state = store.get(instance);
+          while (!store.compareAndSet(instance, state, (state + 1) & 0xFF));
+        }
+        done.incrementAndGet();
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    assertThat(done.get(), equalTo(4));
+    for (int i = 0; i < 4; i++)
+      assertThat(store.get(i), equalTo(100000 & 0xFF));
+  }
+
+  @Test
+  public void mappedStatesSurviveRemapping() throws Exception {
+    Path file = Files.createTempFile("states", ".bin");
+    try {
+      StateStore store = StateStore.map(file, 16, 10, 1000);
+      store.set(9, 999);
+      store.force();
+      assertThat(Files.size(file), equalTo(16L + 20));
+
+      StateStore remapped = StateStore.map(file, 16, 10, 1000);
+      assertThat(remapped.get(9), equalTo(999));
+      assertThat(remapped.get(0), equalTo(0));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
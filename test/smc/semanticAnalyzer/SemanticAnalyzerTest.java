@@ -295,6 +295,44 @@ public class SemanticAnalyzerTest {
         List<AnalysisError> errors = produceAst("{ds >x - - - ds <y - -}").errors;
         assertThat(errors, hasItems(new AnalysisError(STATE_ACTIONS_MULTIPLY_DEFINED, "ds")));
       }
+
+      @Test
+      public void choiceStatesCannotTakePartInHierarchies() throws Exception {
+        List<AnalysisError> errors = produceAst("{s e c - (c) ?d x s - b:c ?d x s - t:b e - -}").errors;
+        assertThat(errors, hasItems(
+          new AnalysisError(INVALID_CHOICE_STATE, "c is abstract"),
+          new AnalysisError(INVALID_CHOICE_STATE, "b has super states"),
+          new AnalysisError(INVALID_CHOICE_STATE, "b is a super state of t")));
+      }
+
+      @Test
+      public void choiceStatesNeedBranchesAndOneDecision() throws Exception {
+        List<AnalysisError> errors = produceAst("{s e c - s f d - c ?x {} d ?y a s - d ?z b s -}").errors;
+        assertThat(errors, hasItems(
+          new AnalysisError(INVALID_CHOICE_STATE, "c has no branches"),
+          new AnalysisError(INVALID_CHOICE_STATE, "d has decisions y and z")));
+      }
+
+      @Test
+      public void decisionsAreNotActions() throws Exception {
+        List<AnalysisError> errors = produceAst("{s e c a c ?a x s -}").errors;
+        assertThat(errors, hasItems(new AnalysisError(INVALID_CHOICE_STATE, "a is both a decision and an action")));
+      }
+
+      @Test
+      public void choiceStatesCannotBeInitial() throws Exception {
+        List<AnalysisError> errors = produceAst("initial: c {c ?d x s - s e c -}").errors;
+        assertThat(errors, hasItems(new AnalysisError(INVALID_CHOICE_STATE, "c is the initial state")));
+      }
+
+      @Test
+      public void choicesCannotLeadBackToThemselves() throws Exception {
+        List<AnalysisError> errors = produceAst("{s e c - c ?d {x s - y d -} d ?f {x c -} t e u - u ?g x - -}").errors;
+        assertThat(errors, hasItems(
+          new AnalysisError(CHOICE_CYCLE, "c"),
+          new AnalysisError(CHOICE_CYCLE, "d"),
+          new AnalysisError(CHOICE_CYCLE, "u")));
+      }
     } // Transition Errors
   }// Semantic Errors.
 
@@ -358,6 +396,13 @@ public class SemanticAnalyzerTest {
       assertThat(ast.actions, hasSize(3));
     }
 
+    @Test
+    public void branchLabelsAreNotEvents() throws Exception {
+      SemanticStateMachine ast = produceAst("{s e c - c ?d {yes s - no s -}}");
+      assertThat(ast.events, contains("e"));
+      assertThat(ast.decisions, contains("d"));
+    }
+
     @Test
     public void entryAndExitActionsAreCountedAsActions() throws Exception {
       SemanticStateMachine ast = produceAst("{s <ea >xa - - a}");
@@ -451,6 +496,22 @@ public class SemanticAnalyzerTest {
           "  }\n" +
           "}\n");
     }
+
+    @Test
+    public void choiceStatesKeepTheirBranchesInOrder() throws Exception {
+      assertSyntaxToAst("{s e c - c <x ?d {yes s a no s b}}",
+        "" +
+          "{\n" +
+          "  c <x ?d {\n" +
+          "    yes s {a}\n" +
+          "    no s {b}\n" +
+          "  }\n" +
+          "\n" +
+          "  s {\n" +
+          "    e c {}\n" +
+          "  }\n" +
+          "}\n");
+    }
   } //Logic
 
   public class AcceptanceTests {
@@ -210,14 +210,14 @@ hidePageScreen();
 displayAutoThumbnailProcessing();
 break;
 case assign:
-setState(State.page);
+setState(State.pageAutoBatch);
 hidePageScreen();
 displayPageScreen();
 assignPage();
 redisplayPageScreen();
 break;
 case setZone:
-setState(State.page);
+setState(State.pageAutoBatch);
 hidePageScreen();
 displayPageScreen();
 assignZone();
@@ -234,14 +234,14 @@ hidePageScreen();
 displayAutoThumbnailProcessing();
 break;
 case assign:
-setState(State.page);
+setState(State.pageAutoBatchStopped);
 hidePageScreen();
 displayPageScreen();
 assignPage();
 redisplayPageScreen();
 break;
 case setZone:
-setState(State.page);
+setState(State.pageAutoBatchStopped);
 hidePageScreen();
 displayPageScreen();
 assignZone();
@@ -258,14 +258,14 @@ hidePageScreen();
 displayManualThumbnailProcessing();
 break;
 case assign:
-setState(State.page);
+setState(State.pageManualBatch);
 hidePageScreen();
 displayPageScreen();
 assignPage();
 redisplayPageScreen();
 break;
 case setZone:
-setState(State.page);
+setState(State.pageManualBatch);
 hidePageScreen();
 displayPageScreen();
 assignZone();
@@ -305,11 +305,11 @@ hideThumbnailScreen();
 displayAutoThumbnailProcessing();
 break;
 case ok:
-setState(State.processingBatch);
+setState(State.processingAutoBatch);
 hideThumbnailScreen();
 break;
 case cancel:
-setState(State.processingBatch);
+setState(State.processingAutoBatch);
 hideThumbnailScreen();
 break;
 case requeue:
@@ -321,7 +321,7 @@ requeueBatch();
 cleanupBatch();
 break;
 case assign:
-setState(State.processingBatch);
+setState(State.processingAutoBatch);
 hideThumbnailScreen();
 assignPage();
 break;
@@ -367,11 +367,11 @@ hideThumbnailScreen();
 displayAutoThumbnailProcessing();
 break;
 case ok:
-setState(State.processingBatch);
+setState(State.processingAutoBatchStopped);
 hideThumbnailScreen();
 break;
 case cancel:
-setState(State.processingBatch);
+setState(State.processingAutoBatchStopped);
 hideThumbnailScreen();
 break;
 case requeue:
@@ -383,7 +383,7 @@ requeueBatch();
 cleanupBatch();
 break;
 case assign:
-setState(State.processingBatch);
+setState(State.processingAutoBatchStopped);
 hideThumbnailScreen();
 assignPage();
 break;
@@ -409,11 +409,11 @@ hideThumbnailScreen();
 displayManualThumbnailProcessing();
 break;
 case ok:
-setState(State.processingBatch);
+setState(State.processingManualBatch);
 hideThumbnailScreen();
 break;
 case cancel:
-setState(State.processingBatch);
+setState(State.processingManualBatch);
 hideThumbnailScreen();
 break;
 case complete:
@@ -441,7 +441,7 @@ rejectBatch();
 cleanupBatch();
 break;
 case assign:
-setState(State.processingBatch);
+setState(State.processingManualBatch);
 hideThumbnailScreen();
 assignPage();
 break;
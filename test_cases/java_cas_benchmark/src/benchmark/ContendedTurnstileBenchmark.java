@@ -0,0 +1,51 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Compares a plain generated turnstile, with every event wrapped in a
+// synchronized block, against the -f concurrency:cas version.  All threads
+// fire events at one shared instance.
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContendedTurnstileBenchmark {
+  private plain.Turnstile synchronizedTurnstile = new plain.Turnstile() {
+    public void unhandledTransition(String state, String event) {}
+    protected void unlock() {}
+    protected void alarm() {}
+    protected void thankyou() {}
+    protected void lock() {}
+  };
+
+  private cas.Turnstile casTurnstile = new cas.Turnstile() {
+    public void unhandledTransition(String state, String event) {}
+    protected void unlock() {}
+    protected void alarm() {}
+    protected void thankyou() {}
+    protected void lock() {}
+  };
+
+  @Benchmark
+  @Threads(4)
+  public void synchronizedWrapping() {
+    synchronized (synchronizedTurnstile) {
+      synchronizedTurnstile.Coin();
+    }
+    synchronized (synchronizedTurnstile) {
+      synchronizedTurnstile.Pass();
+    }
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void compareAndSet() {
+    casTurnstile.Coin();
+    casTurnstile.Pass();
+  }
+}